@@ -0,0 +1,21 @@
+package com.docstyler.backend.config;
+
+import com.docstyler.backend.controller.UserAdmissionInterceptor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+@RequiredArgsConstructor
+public class WebConfig implements WebMvcConfigurer {
+
+    private final UserAdmissionInterceptor userAdmissionInterceptor;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Проверки пользователя и очереди до приёма загрузок
+        registry.addInterceptor(userAdmissionInterceptor)
+                .addPathPatterns("/api/documents/process", "/api/documents/process-uploads", "/api/documents/batch");
+    }
+}
@@ -1,18 +1,32 @@
 package com.docstyler.backend.controller;
 
+import com.docstyler.backend.model.BatchStatus;
 import com.docstyler.backend.model.ProcessStatus;
+import com.docstyler.backend.service.BatchProcessingService;
 import com.docstyler.backend.service.DocumentProcessingService;
+import com.docstyler.backend.service.JobRejectedException;
+import com.docstyler.backend.service.UserLimitExceededException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/documents")
@@ -20,7 +34,25 @@ import java.util.List;
 @CrossOrigin(origins = "*")
 public class DocumentController {
 
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final long MAX_STATUS_WAIT_SECONDS = 60;
+
+    private static final List<String> FUNNY_MESSAGES = List.of(
+            "УткаИИ усердно перелопачивает ваш текст...",
+            "Ищем смысл между строк...",
+            "Нейросеть пьёт кофе и думает...",
+            "Ускоряем мыслительный процесс...",
+            "Магия стилизации в процессе...",
+            "Ищем потерянные запятые...",
+            "Добавляем немного волшебства..."
+    );
+
     private final DocumentProcessingService processingService;
+    private final BatchProcessingService batchService;
 
     @GetMapping("/health")
     public ResponseEntity<String> health() {
@@ -31,64 +63,219 @@ public class DocumentController {
     public ResponseEntity<ProcessStatus> processDocuments(
             @RequestParam("template") MultipartFile template,
             @RequestParam("draft") MultipartFile draft,
+            @RequestParam(value = "deadlineSeconds", required = false) Integer deadlineSeconds,
             @RequestHeader(value = "X-User-Id", required = false) String userId) {
 
         String user = userId != null ? userId : "anonymous";
-        String processId = processingService.startDocumentProcessing(user, template, draft);
-        ProcessStatus status = processingService.getProcessStatus(processId);
+        try {
+            String processId = processingService.startDocumentProcessing(user, template, draft, deadlineSeconds);
+            ProcessStatus status = processingService.getProcessStatus(processId);
+
+            return ResponseEntity.accepted().body(status);
+        } catch (JobRejectedException e) {
+            return rejected(e);
+        }
+    }
+
+    /**
+     * Задание по файлам, уже загруженным по частям через /api/uploads.
+     */
+    @PostMapping("/process-uploads")
+    public ResponseEntity<ProcessStatus> processUploads(
+            @RequestParam("templateUploadId") String templateUploadId,
+            @RequestParam("draftUploadId") String draftUploadId,
+            @RequestParam(value = "deadlineSeconds", required = false) Integer deadlineSeconds,
+            @RequestHeader(value = "X-User-Id", required = false) String userId) {
+
+        String user = userId != null ? userId : "anonymous";
+        try {
+            String processId = processingService.startUploadedProcessing(
+                    user, templateUploadId, draftUploadId, deadlineSeconds);
+            return ResponseEntity.accepted().body(processingService.getProcessStatus(processId));
+        } catch (JobRejectedException e) {
+            return rejected(e);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Отмена задания: из очереди оно убирается сразу, у выполняющегося убивается
+     * процесс агента, и статус становится CANCELLED, когда процесс завершится.
+     */
+    @DeleteMapping("/{processId}")
+    public ResponseEntity<ProcessStatus> cancelProcessing(@PathVariable String processId) {
+        if (processingService.findProcessStatus(processId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        boolean cancelled = processingService.cancelJob(processId);
+        ProcessStatus status = processingService.getProcessStatus(processId).snapshot();
+        return cancelled
+                ? ResponseEntity.accepted().body(status)
+                : ResponseEntity.status(HttpStatus.CONFLICT).body(status);
+    }
+
+    /**
+     * Пакет: один шаблон и много черновиков (несколько частей drafts и/или zip архив archive).
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BatchStatus> processBatch(
+            @RequestParam("template") MultipartFile template,
+            @RequestParam(value = "drafts", required = false) List<MultipartFile> drafts,
+            @RequestParam(value = "archive", required = false) MultipartFile archive,
+            @RequestHeader(value = "X-User-Id", required = false) String userId) {
+
+        String user = userId != null ? userId : "anonymous";
+        try {
+            return ResponseEntity.accepted().body(batchService.startBatch(user, template, drafts, archive));
+        } catch (JobRejectedException e) {
+            return rejected(e);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
 
-        return ResponseEntity.accepted().body(status);
+    @GetMapping("/batch/{batchId}")
+    public ResponseEntity<BatchStatus> getBatchStatus(@PathVariable String batchId) {
+        return ResponseEntity.ok(batchService.getBatchStatus(batchId));
     }
 
+    @GetMapping("/batch/{batchId}/result")
+    public ResponseEntity<StreamingResponseBody> getBatchResult(@PathVariable String batchId) {
+        // Проверяем, что пакет существует, до начала потоковой отдачи
+        batchService.getBatchStatus(batchId);
+
+        StreamingResponseBody body = out -> batchService.writeResultsZip(batchId, out);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"batch_" + batchId + ".zip\"")
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(body);
+    }
+
+    /**
+     * Статус задания с ETag. Клиент, приславший актуальный If-None-Match, получает 304;
+     * с параметром wait (секунды) ответ откладывается до следующего изменения статуса.
+     */
     @GetMapping("/status/{processId}")
-    public ResponseEntity<ProcessStatus> getStatus(@PathVariable String processId) {
+    public DeferredResult<ResponseEntity<ProcessStatus>> getStatus(
+            @PathVariable String processId,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestParam(value = "wait", required = false) Integer waitSeconds) {
+
         ProcessStatus status = processingService.getProcessStatus(processId);
+        DeferredResult<ResponseEntity<ProcessStatus>> result = new DeferredResult<>();
 
-        if ("PROCESSING".equals(status.getStatus())) {
-            List<String> funnyMessages = Arrays.asList(
-                    "УткаИИ усердно перелопачивает ваш текст...",
-                    "Ищем смысл между строк...",
-                    "Нейросеть пьёт кофе и думает...",
-                    "Ускоряем мыслительный процесс...",
-                    "Магия стилизации в процессе...",
-                    "Ищем потерянные запятые...",
-                    "Добавляем немного волшебства..."
-            );
-
-            int index = (int) (System.currentTimeMillis() / 5000) % funnyMessages.size();
-            status.setMessage(funnyMessages.get(index));
+        String etag = statusEtag(status);
+        if (!etag.equals(ifNoneMatch)) {
+            result.setResult(statusResponse(status));
+            return result;
         }
 
-        return ResponseEntity.ok(status);
+        if (waitSeconds == null || waitSeconds <= 0 || status.isFinished()) {
+            result.setResult(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build());
+            return result;
+        }
+
+        // Long-poll: ждём изменения статуса не дольше wait секунд
+        long timeoutMs = Math.min(waitSeconds, MAX_STATUS_WAIT_SECONDS) * 1000L;
+        DeferredResult<ResponseEntity<ProcessStatus>> pending = new DeferredResult<>(timeoutMs, () -> {
+            ProcessStatus current = processingService.getProcessStatus(processId);
+            return etag.equals(statusEtag(current))
+                    ? ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build()
+                    : statusResponse(current);
+        });
+        Runnable unsubscribe = processingService.awaitStatusChange(status,
+                changed -> pending.setResult(statusResponse(changed)));
+        pending.onCompletion(unsubscribe);
+
+        // Изменение могло произойти до подписки
+        if (!etag.equals(statusEtag(status))) {
+            pending.setResult(statusResponse(status));
+        }
+        return pending;
     }
 
-    @GetMapping("/result/{processId}")
-    public ResponseEntity<Resource> getResult(@PathVariable String processId) {
-        try {
-            byte[] fileContent = processingService.getProcessResult(processId);
+    @GetMapping(value = "/status/{processId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStatus(@PathVariable String processId) {
+        return processingService.subscribeToStatus(processId);
+    }
 
-            ByteArrayResource resource = new ByteArrayResource(fileContent);
+    /**
+     * Те же коды, что у UserAdmissionInterceptor: 429 - ограничение пользователя,
+     * 503 - очередь сервера заполнена.
+     */
+    private static <T> ResponseEntity<T> rejected(JobRejectedException e) {
+        HttpStatus status = e instanceof UserLimitExceededException
+                ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+        return ResponseEntity.status(status)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .build();
+    }
 
-            // Определяем имя файла
-            String filename = "styled_document.txt";
-            ProcessStatus status = processingService.getProcessStatus(processId);
-            if (status.getResultFilePath() != null) {
-                String resultPath = status.getResultFilePath();
-                filename = resultPath.substring(resultPath.lastIndexOf("/") + 1);
-                if (filename.isEmpty()) filename = "result.txt";
-            }
-
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION,
-                            "attachment; filename=\"" + filename + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .contentLength(fileContent.length)
-                    .body(resource);
+    private ResponseEntity<ProcessStatus> statusResponse(ProcessStatus status) {
+        // Своя копия: снимок из рассылки получают и другие подписчики, его не меняем
+        ProcessStatus snapshot = status.snapshot();
+        String etag = statusEtag(snapshot);
+        if ("PROCESSING".equals(snapshot.getStatus())) {
+            int index = (int) (System.currentTimeMillis() / 5000) % FUNNY_MESSAGES.size();
+            snapshot.setMessage(FUNNY_MESSAGES.get(index));
+        }
+        return ResponseEntity.ok().eTag(etag).body(snapshot);
+    }
+
+    private static String statusEtag(ProcessStatus status) {
+        Integer queuePosition = status.getQueuePosition();
+        return "\"" + status.getProcessId() + "-" + status.getVersion()
+                + (queuePosition != null && queuePosition > 0 ? "-q" + queuePosition : "") + "\"";
+    }
 
+    @GetMapping("/result/{processId}")
+    public ResponseEntity<Resource> getResult(@PathVariable String processId,
+                                              HttpServletRequest request,
+                                              HttpServletResponse response) {
+        Path resultPath;
+        String filename;
+        long size;
+        long lastModified;
+        try {
+            resultPath = processingService.getResultFile(processId);
+            filename = processingService.getResultFileName(processId);
+            size = Files.size(resultPath);
+            lastModified = Files.getLastModifiedTime(resultPath).toMillis();
         } catch (Exception e) {
             return ResponseEntity.status(404)
                     .body(new ByteArrayResource(("Error: " + e.getMessage()).getBytes()));
         }
+
+        // Повторное скачивание неизменившегося файла - 304 без тела
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return null;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+
+        // Целый файл без Range: Tomcat отдаёт его через sendfile, минуя heap
+        if (request.getHeader(HttpHeaders.RANGE) == null
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, resultPath.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, 0L);
+            request.setAttribute(SENDFILE_END_ATTR, size);
+            return ResponseEntity.ok().headers(headers).contentLength(size).build();
+        }
+
+        // Range запросы (докачка) Spring обрабатывает сам, читая файл через канал частями
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(new FileSystemResource(resultPath));
+    }
+
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStatistics() {
+        return ResponseEntity.ok(processingService.getStatistics());
     }
 
     @GetMapping("/test-python")
@@ -115,8 +302,13 @@ public class DocumentController {
                     "1. GET /api/documents/health - проверка работы\n" +
                     "2. GET /api/documents/test-python - тест Python\n" +
                     "3. POST /api/documents/process - обработка документов\n" +
+                    "   POST /api/uploads, PATCH /api/uploads/{id} - загрузка по частям с докачкой\n" +
+                    "   POST /api/documents/process-uploads - обработка загруженных по частям файлов\n" +
                     "4. GET /api/documents/status/{id} - статус обработки\n" +
-                    "5. GET /api/documents/result/{id} - скачивание результата");
+                    "   GET /api/documents/status/{id}/stream - статус через SSE\n" +
+                    "5. GET /api/documents/result/{id} - скачивание результата\n" +
+                    "6. POST /api/documents/batch - пакет: шаблон + много черновиков\n" +
+                    "7. GET /api/documents/batch/{id}[/result] - статус пакета / zip с результатами");
         } catch (Exception e) {
             return ResponseEntity.status(500).body("Error: " + e.getMessage());
         }
@@ -0,0 +1,104 @@
+package com.docstyler.backend.controller;
+
+import com.docstyler.backend.model.UploadStatus;
+import com.docstyler.backend.service.JobRejectedException;
+import com.docstyler.backend.service.ResumableUploadService;
+import com.docstyler.backend.service.UploadOffsetConflictException;
+import com.docstyler.backend.service.UploadRejectedException;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Загрузка больших файлов по частям с докачкой:
+ * POST /api/uploads?fileName=&size= - начать, PATCH /api/uploads/{id} с заголовком
+ * Upload-Offset и сырыми байтами в теле (application/octet-stream) - очередной фрагмент, GET /api/uploads/{id} -
+ * сколько уже принято (после обрыва продолжать с этого смещения), DELETE - отменить.
+ * Завершённые загрузки передаются в POST /api/documents/process-uploads.
+ */
+@RestController
+@RequestMapping("/api/uploads")
+@RequiredArgsConstructor
+@CrossOrigin(origins = "*", exposedHeaders = {UploadController.UPLOAD_OFFSET, HttpHeaders.LOCATION})
+public class UploadController {
+
+    static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    private final ResumableUploadService uploadService;
+
+    @PostMapping
+    public ResponseEntity<?> createUpload(
+            @RequestParam("fileName") String fileName,
+            @RequestParam("size") long size,
+            @RequestHeader(value = "X-User-Id", required = false) String userId) throws IOException {
+
+        String user = userId != null ? userId : "anonymous";
+        try {
+            UploadStatus status = uploadService.create(user, fileName, size);
+            return ResponseEntity.created(ServletUriComponentsBuilder.fromCurrentRequestUri()
+                            .path("/{id}").buildAndExpand(status.getUploadId()).toUri())
+                    .header(UPLOAD_OFFSET, "0")
+                    .body(status);
+        } catch (JobRejectedException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(e.getMessage());
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getMessage());
+        } catch (IllegalStateException e) {
+            // Режим кластера без привязки к узлу: клиент отправляет файлы целиком
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(e.getMessage());
+        }
+    }
+
+    /**
+     * Фрагмент файла. Тело не буферизуется: байты идут из сокета прямо в хранилище.
+     * Только application/octet-stream - тело формы прочитал бы FormContentFilter.
+     */
+    @PatchMapping(value = "/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> appendChunk(@PathVariable String uploadId,
+                                         @RequestHeader(UPLOAD_OFFSET) long offset,
+                                         HttpServletRequest request) throws IOException {
+        try (InputStream body = request.getInputStream()) {
+            UploadStatus status = uploadService.append(uploadId, offset, body);
+            return ResponseEntity.ok()
+                    .header(UPLOAD_OFFSET, String.valueOf(status.getOffset()))
+                    .body(status);
+        } catch (UploadOffsetConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(UPLOAD_OFFSET, String.valueOf(e.getCurrentOffset()))
+                    .body(e.getMessage());
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.unprocessableEntity().body(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<UploadStatus> getUpload(@PathVariable String uploadId) {
+        UploadStatus status = uploadService.getStatus(uploadId);
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .header(UPLOAD_OFFSET, String.valueOf(status.getOffset()))
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .body(status);
+    }
+
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable String uploadId) {
+        return uploadService.abort(uploadId)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+}
@@ -0,0 +1,66 @@
+package com.docstyler.backend.controller;
+
+import com.docstyler.backend.service.DocumentProcessingService;
+import com.docstyler.backend.service.JobRejectedException;
+import com.docstyler.backend.service.UserLimitExceededException;
+import com.docstyler.backend.service.UserRateLimiter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Допуск запросов на обработку до чтения тела: multipart разбирается лениво
+ * (spring.servlet.multipart.resolve-lazily), поэтому отклонённый здесь запрос
+ * не пишет загрузки ни во временные файлы, ни в хранилище.
+ */
+@Component
+@RequiredArgsConstructor
+public class UserAdmissionInterceptor implements HandlerInterceptor {
+
+    private final UserRateLimiter userRateLimiter;
+    private final DocumentProcessingService processingService;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request,
+                             HttpServletResponse response,
+                             Object handler) throws IOException {
+        if (!"POST".equals(request.getMethod())) {
+            return true;
+        }
+
+        String userId = request.getHeader("X-User-Id");
+        try {
+            userRateLimiter.admit(userId != null ? userId : "anonymous");
+            processingService.ensureCapacity();
+            return true;
+        } catch (JobRejectedException e) {
+            // afterCompletion для отклонённого здесь запроса не вызывается
+            userRateLimiter.release();
+            HttpStatus status = e instanceof UserLimitExceededException
+                    ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+            response.setStatus(status.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            response.getWriter().write(e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request,
+                                HttpServletResponse response,
+                                Object handler,
+                                Exception ex) {
+        // Слот пользователя, не доставшийся заданию (ошибка, результат из кэша), освобождается
+        userRateLimiter.release();
+    }
+}
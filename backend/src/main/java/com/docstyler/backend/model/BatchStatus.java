@@ -0,0 +1,32 @@
+package com.docstyler.backend.model;
+
+import lombok.Data;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class BatchStatus {
+    private String batchId;
+    private String userId;
+    private String status; // PROCESSING, COMPLETED, PARTIAL (часть черновиков с ошибкой), ERROR
+    private Integer progress; // 0-100, среднее по черновикам
+    private int total;
+    private int waiting; // ещё не отправлены в очередь заданий
+    private int queued;
+    private int processing;
+    private int completed;
+    private int failed;
+    private LocalDateTime startTime;
+    private LocalDateTime endTime;
+    private List<Item> items = new ArrayList<>();
+
+    @Data
+    public static class Item {
+        private String draftName;
+        private String processId; // null, пока черновик ждёт своей очереди в пакете
+        private String status;
+        private Integer progress;
+        private String message;
+    }
+}
@@ -1,5 +1,6 @@
 package com.docstyler.backend.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import java.time.LocalDateTime;
 
@@ -7,13 +8,17 @@ import java.time.LocalDateTime;
 public class ProcessStatus {
     private String id;
     private String processId;
-    private String status; // PROCESSING, COMPLETED, ERROR
+    private String status; // QUEUED, PROCESSING, COMPLETED, ERROR, CANCELLED, TIMEOUT
     private Integer progress; // 0-100
+    private Integer queuePosition; // позиция в очереди, пока статус QUEUED
     private String message;
     private String userId;
     private LocalDateTime startTime;
     private LocalDateTime endTime;
     private String resultFilePath;
+    private String draftName; // исходное имя черновика, по нему называется скачиваемый результат
+    private Integer deadlineSeconds; // предельное время выполнения задания
+    private long version; // растёт при каждом изменении, основа для ETag статуса
 
     public ProcessStatus() {
         this.startTime = LocalDateTime.now();
@@ -25,6 +30,37 @@ public class ProcessStatus {
         this();
         this.processId = processId;
         this.userId = userId;
+        this.status = "QUEUED";
         this.message = "Документы приняты в обработку";
     }
-}
\ No newline at end of file
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return !"QUEUED".equals(status) && !"PROCESSING".equals(status);
+    }
+
+    /**
+     * Копия для отдачи клиенту: общий объект продолжает меняться в потоке обработки.
+     */
+    public synchronized ProcessStatus snapshot() {
+        ProcessStatus copy = new ProcessStatus();
+        copy.id = id;
+        copy.processId = processId;
+        copy.status = status;
+        copy.progress = progress;
+        copy.queuePosition = queuePosition;
+        copy.message = message;
+        copy.userId = userId;
+        copy.startTime = startTime;
+        copy.endTime = endTime;
+        copy.resultFilePath = resultFilePath;
+        copy.draftName = draftName;
+        copy.deadlineSeconds = deadlineSeconds;
+        copy.version = version;
+        return copy;
+    }
+
+    public synchronized long nextVersion() {
+        return ++version;
+    }
+}
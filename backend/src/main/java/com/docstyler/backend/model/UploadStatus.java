@@ -0,0 +1,17 @@
+package com.docstyler.backend.model;
+
+import lombok.Data;
+import java.time.LocalDateTime;
+
+@Data
+public class UploadStatus {
+    private String uploadId;
+    private String userId;
+    private String fileName;
+    private String status; // UPLOADING, COMPLETED, REJECTED
+    private long size; // объявленный размер файла
+    private long offset; // сколько байтов уже принято - с этого места продолжается загрузка
+    private String hash; // SHA-256 содержимого, когда загрузка завершена
+    private String message;
+    private LocalDateTime createdAt;
+}
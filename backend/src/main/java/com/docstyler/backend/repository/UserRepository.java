@@ -0,0 +1,9 @@
+package com.docstyler.backend.repository;
+
+import com.docstyler.backend.model.User;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserRepository extends MongoRepository<User, String> {
+}
@@ -0,0 +1,163 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Расположение Python агента и интерпретатора. Путь к main.py ищется один раз при
+ * запуске, а не на каждое задание; заново - только если файл агента пропал.
+ * Интерпретатор проверяется при запуске (python.agent.validate-on-startup), с
+ * python.agent.fail-fast экземпляр без рабочего агента не стартует вовсе.
+ */
+@Component
+@Slf4j
+public class AgentLocator {
+
+    private static final long VALIDATE_TIMEOUT_SECONDS = 10;
+
+    @Value("${python.agent.path:../python_agent}")
+    private String pythonAgentPath;
+
+    @Value("${python.executable:python3}")
+    private String pythonExecutable;
+
+    @Value("${python.agent.validate-on-startup:true}")
+    private boolean validateOnStartup;
+
+    @Value("${python.agent.fail-fast:false}")
+    private boolean failFast;
+
+    private volatile File agentFile;
+    private volatile AgentVersion agentVersion;
+    private volatile String interpreterVersion;
+
+    @PostConstruct
+    public void init() {
+        try {
+            agentFile = resolve();
+            log.info("Python agent resolved at {}", agentFile.getAbsolutePath());
+            if (validateOnStartup) {
+                interpreterVersion = validateInterpreter();
+                log.info("Python interpreter {}: {}", pythonExecutable, interpreterVersion);
+            }
+        } catch (RuntimeException e) {
+            if (failFast) {
+                throw new IllegalStateException("Python agent is not usable: " + e.getMessage(), e);
+            }
+            log.warn("Python agent is not usable yet, jobs will retry the lookup: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Файл main.py агента.
+     */
+    public File agentFile() {
+        File file = agentFile;
+        if (file == null) {
+            file = resolve();
+            agentFile = file;
+            log.info("Python agent resolved at {}", file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    /**
+     * Версия агента для ключа кэша результатов - хэш содержимого main.py,
+     * так что любое изменение агента делает старые результаты недействительными.
+     */
+    public String version() {
+        File file = agentFile();
+        long modified = file.lastModified();
+        if (modified == 0) {
+            // Файл удалён или перенесён - ищем агента заново
+            agentFile = null;
+            file = agentFile();
+            modified = file.lastModified();
+        }
+
+        AgentVersion version = agentVersion;
+        if (version == null || version.lastModified() != modified) {
+            try {
+                byte[] digest = UploadSpool.newDigest().digest(Files.readAllBytes(file.toPath()));
+                version = new AgentVersion(HexFormat.of().formatHex(digest), modified);
+                agentVersion = version;
+            } catch (Exception e) {
+                throw new RuntimeException("Cannot read Python agent: " + e.getMessage(), e);
+            }
+        }
+        return version.hash();
+    }
+
+    /**
+     * Версия интерпретатора, если он проверялся при запуске; иначе null.
+     */
+    public String getInterpreterVersion() {
+        return interpreterVersion;
+    }
+
+    private File resolve() {
+        // 1. Сначала пробуем путь из конфигурации
+        File configured = new File(pythonAgentPath, "main.py");
+        if (configured.isFile()) {
+            return configured;
+        }
+
+        // 2. Относительный путь - пробуем от директории запуска и её родителя
+        if (!configured.isAbsolute()) {
+            File backendDir = new File(".").getAbsoluteFile();
+            File[] candidates = {
+                    new File(backendDir.getParentFile(), "python_agent/main.py"),
+                    new File("../python_agent/main.py"),
+                    new File("../../python_agent/main.py")
+            };
+            for (File candidate : candidates) {
+                log.debug("Checking path: {}", candidate.getAbsolutePath());
+                if (candidate.isFile()) {
+                    return candidate;
+                }
+            }
+        }
+
+        throw new RuntimeException("Python agent not found. Searched paths:\n" +
+                "1. " + configured.getAbsolutePath() + "\n" +
+                "2. From backend dir: " + new File(".").getAbsolutePath());
+    }
+
+    private String validateInterpreter() {
+        ProcessBuilder pb = new ProcessBuilder(pythonExecutable, "--version").redirectErrorStream(true);
+        try {
+            Process process = pb.start();
+            String output;
+            try (InputStream in = process.getInputStream()) {
+                output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+            }
+            if (!process.waitFor(VALIDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new RuntimeException(pythonExecutable + " --version did not finish");
+            }
+            if (process.exitValue() != 0) {
+                throw new RuntimeException(pythonExecutable + " --version exited with "
+                        + process.exitValue() + ": " + output);
+            }
+            return output;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot start " + pythonExecutable + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while checking " + pythonExecutable, e);
+        }
+    }
+
+    private record AgentVersion(String hash, long lastModified) {
+    }
+}
@@ -0,0 +1,192 @@
+package com.docstyler.backend.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Разбор вывода Python агента (PROGRESS:, MESSAGE:, RESULT:, ERROR:, а у воркеров
+ * ещё READY и DONE:) прямо по байтам. Строка читается в переиспользуемый буфер,
+ * тип определяется сравнением префикса, число из PROGRESS/DONE разбирается без
+ * создания строк; String создаётся, только если обработчик попросил текст.
+ * Экземпляр описывает текущую строку и меняется при следующем чтении.
+ */
+public final class AgentProtocolReader {
+
+    public enum Kind { PROGRESS, MESSAGE, RESULT, ERROR, DONE, READY, OTHER, EOF }
+
+    private static final byte[] PROGRESS_PREFIX = ascii("PROGRESS:");
+    private static final byte[] MESSAGE_PREFIX = ascii("MESSAGE:");
+    private static final byte[] RESULT_PREFIX = ascii("RESULT:");
+    private static final byte[] ERROR_PREFIX = ascii("ERROR:");
+    private static final byte[] DONE_PREFIX = ascii("DONE:");
+    private static final byte[] READY_LINE = ascii("READY");
+
+    // Длиннее строки обрезаются: протокол не передаёт большие данные
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    private Kind kind = Kind.OTHER;
+    private int payloadStart;
+    private int number;
+
+    public AgentProtocolReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Читает следующую строку и возвращает её тип; EOF - поток закрыт.
+     */
+    public Kind read() throws IOException {
+        if (!readLine()) {
+            kind = Kind.EOF;
+            return kind;
+        }
+
+        if (startsWith(PROGRESS_PREFIX)) {
+            kind = parseNumber(PROGRESS_PREFIX.length) ? Kind.PROGRESS : Kind.OTHER;
+        } else if (startsWith(MESSAGE_PREFIX)) {
+            kind = payload(Kind.MESSAGE, MESSAGE_PREFIX.length);
+        } else if (startsWith(RESULT_PREFIX)) {
+            kind = payload(Kind.RESULT, RESULT_PREFIX.length);
+        } else if (startsWith(ERROR_PREFIX)) {
+            kind = payload(Kind.ERROR, ERROR_PREFIX.length);
+        } else if (startsWith(DONE_PREFIX)) {
+            kind = parseNumber(DONE_PREFIX.length) ? Kind.DONE : Kind.OTHER;
+        } else if (lineLength == READY_LINE.length && startsWith(READY_LINE)) {
+            kind = Kind.READY;
+        } else {
+            kind = Kind.OTHER;
+            payloadStart = 0;
+        }
+        return kind;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Число из строки PROGRESS: или DONE:.
+     */
+    public int number() {
+        return number;
+    }
+
+    /**
+     * Текст после префикса (для OTHER - вся строка).
+     */
+    public String text() {
+        int start = payloadStart;
+        // "ERROR: текст" - пробел после двоеточия не часть сообщения
+        while (kind == Kind.ERROR && start < lineLength && line[start] == ' ') {
+            start++;
+        }
+        return new String(line, start, lineLength - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Вся строка целиком, для журнала.
+     */
+    public String line() {
+        return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+    }
+
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean sawData = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return sawData;
+                }
+            }
+            sawData = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position - start);
+            if (position < limit) {
+                position++; // '\n'
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void append(int start, int length) {
+        int room = MAX_LINE_BYTES - lineLength;
+        length = Math.min(length, room);
+        if (length <= 0) {
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_BYTES, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(buffer, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (lineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Kind payload(Kind payloadKind, int start) {
+        payloadStart = start;
+        return payloadKind;
+    }
+
+    private boolean parseNumber(int start) {
+        int i = start;
+        while (i < lineLength && line[i] == ' ') {
+            i++;
+        }
+        boolean negative = i < lineLength && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int digitsStart = i;
+        int value = 0;
+        while (i < lineLength && line[i] >= '0' && line[i] <= '9' && i - digitsStart < 9) {
+            value = value * 10 + (line[i] - '0');
+            i++;
+        }
+        while (i < lineLength && line[i] == ' ') {
+            i++;
+        }
+        if (i == digitsStart || i != lineLength) {
+            payloadStart = 0;
+            return false;
+        }
+        number = negative ? -value : value;
+        payloadStart = start;
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,39 @@
+package com.docstyler.backend.service;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Одно задание для Python агента.
+ *
+ * @param mode         process - весь документ, chunks - отдельные абзацы черновика, merge - сборка частей
+ * @param templatePath файл шаблона (для chunks не нужен)
+ * @param draftPath    файл черновика; для chunks - JSON список абзацев [{text, first}]
+ * @param outputDir    директория для результата
+ * @param styles       стили шаблона, уже извлечённые на стороне Java (null - агент разберёт шаблон сам)
+ * @param parts        размеченные части по порядку (только для merge)
+ */
+public record AgentRequest(String mode,
+                           Path templatePath,
+                           Path draftPath,
+                           Path outputDir,
+                           List<String> styles,
+                           List<Path> parts) {
+
+    public static final String PROCESS = "process";
+    public static final String CHUNKS = "chunks";
+    public static final String MERGE = "merge";
+
+    public AgentRequest(Path templatePath, Path draftPath, Path outputDir, List<String> styles) {
+        this(PROCESS, templatePath, draftPath, outputDir, styles, null);
+    }
+
+    public static AgentRequest chunks(Path chunksPath, Path outputDir, List<String> styles) {
+        return new AgentRequest(CHUNKS, null, chunksPath, outputDir, styles, null);
+    }
+
+    public static AgentRequest merge(Path templatePath, Path draftPath, Path outputDir,
+                                     List<String> styles, List<Path> parts) {
+        return new AgentRequest(MERGE, templatePath, draftPath, outputDir, styles, parts);
+    }
+}
@@ -0,0 +1,128 @@
+package com.docstyler.backend.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Выполняющееся задание с точки зрения сторожа: процессы агента, срок и время
+ * последнего вывода. Остановить задание можно до запуска агента - тогда процесс
+ * будет убит сразу при подключении.
+ */
+@Slf4j
+public final class AgentRun {
+
+    private final String processId;
+    private final long startedAt;
+    private final long deadlineAt;
+
+    private final List<Process> processes = new ArrayList<>();
+    private volatile StderrTail stderr;
+    private volatile long lastOutputAt;
+    private volatile String killReason;
+
+    AgentRun(String processId, long deadlineNanos) {
+        this.processId = processId;
+        this.startedAt = System.nanoTime();
+        this.deadlineAt = startedAt + deadlineNanos;
+        this.lastOutputAt = startedAt;
+    }
+
+    /**
+     * Процесс, в котором выполняется задание (отдельный или воркер пула), и хвост его stderr.
+     * Разделы большого черновика выполняются в нескольких процессах одновременно.
+     */
+    public synchronized void attach(Process process, StderrTail stderr) {
+        processes.add(process);
+        this.stderr = stderr;
+        this.lastOutputAt = System.nanoTime();
+        if (killReason != null) {
+            destroyTree(process);
+        }
+    }
+
+    /**
+     * То же для воркера пула: если задание уже остановлено (отменено, пока ждало воркера),
+     * процесс не подключается и не убивается - воркер возвращается в пул целым.
+     */
+    public synchronized boolean attachIfRunning(Process process, StderrTail stderr) {
+        if (killReason != null) {
+            return false;
+        }
+        attach(process, stderr);
+        return true;
+    }
+
+    /**
+     * Процесс закончил свою часть задания и больше ему не принадлежит.
+     * true, если задание успели остановить, пока процесс был подключён: его уничтожение
+     * асинхронно, и процесс может ещё казаться живым.
+     */
+    public synchronized boolean detach(Process process) {
+        return processes.remove(process) && killReason != null;
+    }
+
+    /**
+     * Агент ещё жив: вызывается на каждую строку его вывода.
+     */
+    public void touch() {
+        lastOutputAt = System.nanoTime();
+    }
+
+    /**
+     * Останавливает задание: убивает процесс агента вместе с дочерними процессами.
+     * Возвращает false, если задание уже остановлено.
+     */
+    synchronized boolean kill(String reason) {
+        if (killReason != null) {
+            return false;
+        }
+        killReason = reason;
+        for (Process process : processes) {
+            log.info("Killing agent pid={} of job {}: {}", process.pid(), processId, reason);
+            destroyTree(process);
+        }
+        return true;
+    }
+
+    /**
+     * CANCELLED или TIMEOUT, если задание было остановлено; иначе null.
+     */
+    public String getKillReason() {
+        return killReason;
+    }
+
+    /**
+     * stderr агента за время задания; null, если агент ещё не запущен.
+     */
+    public StderrTail getStderrTail() {
+        return stderr;
+    }
+
+    public boolean isKilled() {
+        return killReason != null;
+    }
+
+    String getProcessId() {
+        return processId;
+    }
+
+    boolean isPastDeadline(long now) {
+        return now - deadlineAt > 0;
+    }
+
+    /**
+     * Агент молчит дольше stallNanos. Считается только пока к заданию подключён процесс:
+     * ожидание воркера в пуле и паузы между разделами зависанием не являются,
+     * а attach сбрасывает отсчёт.
+     */
+    synchronized boolean isStalled(long now, long stallNanos) {
+        return !processes.isEmpty() && now - lastOutputAt > stallNanos;
+    }
+
+    private static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+}
@@ -0,0 +1,447 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.BatchStatus;
+import com.docstyler.backend.model.ProcessStatus;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Пакетная обработка: один шаблон и много черновиков. Шаблон сохраняется и
+ * разбирается один раз, черновики проходят через агента конвейером - одновременно
+ * в очереди заданий не больше batch.parallelism черновиков пакета.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class BatchProcessingService {
+
+    private final DocumentProcessingService processingService;
+    private final UploadSpool uploadSpool;
+    private final TemplateStyleCache templateStyleCache;
+
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    @Value("${batch.parallelism:2}")
+    private int parallelism;
+
+    @Value("${batch.max-drafts:200}")
+    private int maxDrafts;
+
+    @Value("${batch.archive.max-entry-size-mb:50}")
+    private long maxEntrySizeMb;
+
+    @Value("${batch.archive.max-uncompressed-mb:512}")
+    private long maxArchiveUncompressedMb;
+
+    public BatchStatus startBatch(String userId,
+                                  MultipartFile template,
+                                  List<MultipartFile> drafts,
+                                  MultipartFile archive) {
+
+        processingService.ensureCapacity();
+
+        SpooledFile templateFile;
+        try {
+            templateFile = uploadSpool.spool(template, "template.txt");
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось сохранить шаблон: " + e.getMessage(), e);
+        }
+
+        Batch batch = new Batch(UUID.randomUUID().toString(), userId, templateFile);
+        try {
+            if (drafts != null) {
+                for (MultipartFile draft : drafts) {
+                    addDraft(batch, uploadSpool.spool(draft, "draft.txt"));
+                }
+            }
+            if (archive != null && !archive.isEmpty()) {
+                spoolArchive(batch, archive);
+            }
+        } catch (IOException | RuntimeException e) {
+            batch.pending.forEach(item -> uploadSpool.release(item.draft));
+            uploadSpool.release(templateFile);
+            throw e instanceof RuntimeException re ? re
+                    : new RuntimeException("Не удалось сохранить черновики: " + e.getMessage(), e);
+        }
+
+        if (batch.items.isEmpty()) {
+            uploadSpool.release(templateFile);
+            throw new IllegalArgumentException("В пакете нет ни одного черновика");
+        }
+
+        // Разбираем шаблон заранее: все задания пакета возьмут стили из кэша
+        templateStyleCache.getStyles(templateFile);
+
+        batches.put(batch.batchId, batch);
+        log.info("Batch {} started: user {}, {} drafts", batch.batchId, userId, batch.items.size());
+
+        feed(batch);
+        return getBatchStatus(batch.batchId);
+    }
+
+    public BatchStatus getBatchStatus(String batchId) {
+        Batch batch = getBatch(batchId);
+
+        BatchStatus result = new BatchStatus();
+        result.setBatchId(batch.batchId);
+        result.setUserId(batch.userId);
+        result.setStartTime(batch.startTime);
+        result.setTotal(batch.items.size());
+
+        int progressSum = 0;
+        for (BatchItem item : batch.items) {
+            BatchStatus.Item view = new BatchStatus.Item();
+            view.setDraftName(item.draft.originalName());
+            view.setProcessId(item.processId);
+
+            ProcessStatus status = item.processId != null ? processingService.findProcessStatus(item.processId) : null;
+            if (item.processId == null && item.finalStatus == null) {
+                view.setStatus("WAITING");
+                view.setProgress(0);
+                result.setWaiting(result.getWaiting() + 1);
+            } else if (item.processId == null) {
+                // Задание не приняли в очередь
+                view.setStatus(item.finalStatus);
+                view.setProgress(100);
+                view.setMessage(item.failureMessage);
+            } else if (status == null) {
+                // Задание уже удалено по сроку хранения
+                view.setStatus(item.finalStatus != null ? item.finalStatus : "EXPIRED");
+                view.setProgress(100);
+            } else {
+                view.setStatus(status.getStatus());
+                view.setProgress(status.getProgress());
+                view.setMessage(status.getMessage());
+            }
+
+            switch (view.getStatus()) {
+                case "QUEUED" -> result.setQueued(result.getQueued() + 1);
+                case "PROCESSING" -> result.setProcessing(result.getProcessing() + 1);
+                case "COMPLETED" -> result.setCompleted(result.getCompleted() + 1);
+                case "WAITING" -> { }
+                default -> result.setFailed(result.getFailed() + 1);
+            }
+            progressSum += view.getProgress() != null ? view.getProgress() : 0;
+            result.getItems().add(view);
+        }
+
+        result.setProgress(progressSum / batch.items.size());
+        boolean finished = result.getCompleted() + result.getFailed() == result.getTotal();
+        if (!finished) {
+            result.setStatus("PROCESSING");
+        } else if (result.getFailed() == 0) {
+            result.setStatus("COMPLETED");
+        } else {
+            result.setStatus(result.getCompleted() > 0 ? "PARTIAL" : "ERROR");
+        }
+        result.setEndTime(finished ? batch.endTime : null);
+        return result;
+    }
+
+    /**
+     * Пишет готовые результаты пакета одним zip архивом прямо в поток ответа.
+     */
+    public void writeResultsZip(String batchId, OutputStream out) throws IOException {
+        Batch batch = getBatch(batchId);
+        Set<String> usedNames = new HashSet<>();
+
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            int index = 0;
+            for (BatchItem item : batch.items) {
+                index++;
+                if (item.processId == null) {
+                    continue;
+                }
+                Path resultFile;
+                String name;
+                try {
+                    resultFile = processingService.getResultFile(item.processId);
+                    name = processingService.getResultFileName(item.processId);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+
+                if (!usedNames.add(name)) {
+                    name = index + "_" + name;
+                    usedNames.add(name);
+                }
+                zip.putNextEntry(new ZipEntry(name));
+                Files.copy(resultFile, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    public int getActiveBatchCount() {
+        return (int) batches.values().stream().filter(batch -> batch.endTime == null).count();
+    }
+
+    /**
+     * Пакет забывается, когда все его задания завершены и удалены из памяти.
+     */
+    @Scheduled(fixedDelayString = "${jobs.sweep.interval-ms:60000}")
+    public void sweepBatches() {
+        batches.values().removeIf(batch -> batch.endTime != null && batch.items.stream()
+                .allMatch(item -> item.processId == null || processingService.findProcessStatus(item.processId) == null));
+    }
+
+    private Batch getBatch(String batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch == null) {
+            throw new RuntimeException("Batch not found: " + batchId);
+        }
+        return batch;
+    }
+
+    /**
+     * Черновики из zip архива. Распакованный объём считается по реальным байтам, а не по
+     * заголовкам записей: запись больше batch.archive.max-entry-size-mb или архив больше
+     * batch.archive.max-uncompressed-mb в сумме отклоняется, не заполнив диск.
+     */
+    private void spoolArchive(Batch batch, MultipartFile archive) throws IOException {
+        long maxEntryBytes = maxEntrySizeMb * 1024 * 1024;
+        long[] remaining = {maxArchiveUncompressedMb * 1024 * 1024};
+        try (ZipInputStream zip = new ZipInputStream(archive.getInputStream())) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = UploadSpool.sanitizeName(entry.getName(), "draft.txt");
+                // Папки и служебные файлы архиваторов пропускаем
+                if (entry.isDirectory() || name.startsWith(".") || entry.getName().startsWith("__MACOSX/")) {
+                    continue;
+                }
+                if (batch.items.size() >= maxDrafts) {
+                    throw new IllegalArgumentException("Слишком много черновиков в пакете (максимум " + maxDrafts + ")");
+                }
+                try {
+                    addDraft(batch, uploadSpool.spool(new LimitedEntryStream(zip, maxEntryBytes, remaining), name));
+                } catch (ArchiveLimitException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void addDraft(Batch batch, SpooledFile draft) {
+        BatchItem item = new BatchItem(draft);
+        batch.items.add(item);
+        batch.pending.add(item);
+        if (batch.items.size() > maxDrafts) {
+            throw new IllegalArgumentException("Слишком много черновиков в пакете (максимум " + maxDrafts + ")");
+        }
+    }
+
+    /**
+     * Отправляет в очередь следующие черновики, пока в работе меньше batch.parallelism.
+     * Вызывается повторно по завершении каждого задания пакета.
+     */
+    private void feed(Batch batch) {
+        synchronized (batch) {
+            if (batch.feeding) {
+                return;
+            }
+            batch.feeding = true;
+        }
+
+        while (true) {
+            BatchItem next;
+            synchronized (batch) {
+                if (batch.inFlight >= parallelism || batch.pending.isEmpty()) {
+                    batch.feeding = false;
+                    if (batch.inFlight == 0 && batch.pending.isEmpty()) {
+                        finish(batch);
+                    }
+                    return;
+                }
+                next = batch.pending.poll();
+                batch.inFlight++;
+            }
+            if (!start(batch, next)) {
+                // Очередь заполнена: черновик ждёт следующего feed (завершения задания или retryWaitingDrafts)
+                synchronized (batch) {
+                    batch.feeding = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Повторяет отправку черновиков, отложенных из-за заполненной очереди, если у пакета
+     * нет заданий в работе (иначе feed вызовется по их завершении).
+     */
+    @Scheduled(fixedDelayString = "${batch.retry-interval-ms:5000}")
+    public void retryWaitingDrafts() {
+        for (Batch batch : batches.values()) {
+            boolean idle;
+            synchronized (batch) {
+                idle = batch.endTime == null && batch.inFlight == 0 && !batch.pending.isEmpty();
+            }
+            if (idle) {
+                feed(batch);
+            }
+        }
+    }
+
+    /**
+     * false - очередь заполнена, черновик возвращён в начало pending и будет отправлен позже.
+     */
+    private boolean start(Batch batch, BatchItem item) {
+        // Своя ссылка на черновик у задания: при отказе очереди ссылка пакета остаётся целой
+        SpooledFile draft = uploadSpool.retain(item.draft);
+        try {
+            item.processId = processingService.submitSpooled(batch.userId,
+                    uploadSpool.retain(batch.template), draft,
+                    status -> {
+                        item.finalStatus = status.getStatus();
+                        synchronized (batch) {
+                            batch.inFlight--;
+                        }
+                        feed(batch);
+                    });
+            uploadSpool.release(item.draft);
+            return true;
+        } catch (JobRejectedException e) {
+            // Временный отказ: ссылки задания уже освобождены, черновик ждёт своей очереди
+            log.info("Batch {}: draft {} postponed: {}", batch.batchId, item.draft.originalName(), e.getMessage());
+            synchronized (batch) {
+                batch.inFlight--;
+                batch.pending.addFirst(item);
+            }
+            return false;
+        } catch (RuntimeException e) {
+            // Задание не принято по другой причине: черновик пакета считаем неудавшимся
+            log.warn("Batch {}: draft {} rejected: {}", batch.batchId, item.draft.originalName(), e.getMessage());
+            uploadSpool.release(item.draft);
+            item.failureMessage = "Ошибка: " + e.getMessage();
+            item.finalStatus = "ERROR";
+            synchronized (batch) {
+                batch.inFlight--;
+                batch.rejected.add(item);
+            }
+            return true;
+        }
+    }
+
+    private void finish(Batch batch) {
+        if (batch.endTime != null) {
+            return;
+        }
+        batch.endTime = LocalDateTime.now();
+        uploadSpool.release(batch.template);
+        log.info("Batch {} finished, {} drafts rejected", batch.batchId, batch.rejected.size());
+    }
+
+    private static final class Batch {
+        private final String batchId;
+        private final String userId;
+        private final SpooledFile template;
+        private final LocalDateTime startTime = LocalDateTime.now();
+        private final List<BatchItem> items = new ArrayList<>();
+        private final Deque<BatchItem> pending = new ArrayDeque<>();
+        private final List<BatchItem> rejected = new ArrayList<>();
+        private int inFlight;
+        private boolean feeding;
+        private volatile LocalDateTime endTime;
+
+        private Batch(String batchId, String userId, SpooledFile template) {
+            this.batchId = batchId;
+            this.userId = userId;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Поток одной записи архива: считает реально распакованные байты записи и всего архива.
+     * Не закрывает архив - spool не закрывает переданный поток, но на всякий случай.
+     */
+    private static final class LimitedEntryStream extends FilterInputStream {
+
+        private final long maxEntryBytes;
+        private final long[] archiveRemaining;
+        private long entryBytes;
+
+        private LimitedEntryStream(InputStream in, long maxEntryBytes, long[] archiveRemaining) {
+            super(in);
+            this.maxEntryBytes = maxEntryBytes;
+            this.archiveRemaining = archiveRemaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // Архив закрывает spoolArchive
+        }
+
+        private void count(int n) throws ArchiveLimitException {
+            entryBytes += n;
+            archiveRemaining[0] -= n;
+            if (entryBytes > maxEntryBytes) {
+                throw new ArchiveLimitException("Черновик в архиве больше " + maxEntryBytes / (1024 * 1024) + " МБ");
+            }
+            if (archiveRemaining[0] < 0) {
+                throw new ArchiveLimitException("Распакованный архив слишком большой");
+            }
+        }
+    }
+
+    /**
+     * IOException, чтобы spool удалил недописанный файл.
+     */
+    private static final class ArchiveLimitException extends IOException {
+        private ArchiveLimitException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class BatchItem {
+        private final SpooledFile draft;
+        private volatile String processId;
+        private volatile String finalStatus;
+        private volatile String failureMessage;
+
+        private BatchItem(SpooledFile draft) {
+            this.draft = draft;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш размеченных абзацев черновика. Ключ - SHA-256 от шаблона, версии агента,
+ * контекста абзаца (открывает ли он документ) и его текста, так что после правки
+ * черновика агенту уходят только новые и изменённые абзацы.
+ * Ограничен суммарным размером текста, вытесняются давно не использованные.
+ */
+@Component
+public class ChunkCache {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ProcessingMetrics metrics;
+    private final long maxChars;
+    private final LinkedHashMap<String, String> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalChars;
+
+    public ChunkCache(ProcessingMetrics metrics,
+                      @Value("${processing.chunks.cache-max-size-mb:64}") long maxSizeMb) {
+        this.metrics = metrics;
+        // Строки в памяти занимают около двух байт на символ
+        this.maxChars = maxSizeMb * 1024 * 1024 / 2;
+    }
+
+    /**
+     * Не в конструкторе: реестр метрик не должен видеть недостроенный объект.
+     */
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.counter("docstyler.chunk.cache.hits", "Абзацев, взятых из кэша", hits, AtomicLong::get);
+        metrics.counter("docstyler.chunk.cache.misses", "Абзацев, отправленных агенту", misses, AtomicLong::get);
+        metrics.gauge("docstyler.chunk.cache.size", "Абзацев в кэше", this, ChunkCache::getSize);
+    }
+
+    /**
+     * Ключ абзаца. context - всё, от чего зависит разметка помимо текста:
+     * шаблон и версия агента.
+     */
+    public static String key(String context, boolean firstChunk, String text) {
+        MessageDigest digest = UploadSpool.newDigest();
+        digest.update(context.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) (firstChunk ? 1 : 0));
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public String get(String key) {
+        String output;
+        synchronized (cache) {
+            output = cache.get(key);
+        }
+        (output != null ? hits : misses).incrementAndGet();
+        return output;
+    }
+
+    public void put(String key, String output) {
+        synchronized (cache) {
+            String previous = cache.put(key, output);
+            totalChars += output.length() - (previous != null ? previous.length() : 0);
+
+            Iterator<Map.Entry<String, String>> eldest = cache.entrySet().iterator();
+            while (totalChars > maxChars && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                totalChars -= entry.getValue().length();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
@@ -0,0 +1,625 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Общее хранилище заданий для работы нескольких экземпляров backend за балансировщиком.
+ * Лежит в каталоге на общей файловой системе (NFS и т.п.; для проверки - локальный
+ * каталог, общий для экземпляров на одной машине):
+ * <pre>
+ *   jobs/&lt;id&gt;.json     - последний статус задания и имена входных файлов
+ *   inputs/&lt;id&gt;/       - шаблон и черновик, пока задание не выполнено
+ *   queue/&lt;время&gt;-&lt;id&gt; - ожидающие задания, по порядку поступления
+ *   leases/&lt;id&gt;       - аренда: задание взято узлом, указанным в файле
+ *   cancels/&lt;id&gt;      - просьба отменить задание, выполняющееся на другом узле
+ *   results/&lt;id&gt;/      - результаты, доступные с любого узла
+ * </pre>
+ * Аренда берётся атомарным созданием файла, а продлевается обновлением его времени
+ * изменения. Аренду, которую долго не продлевали, любой узел забирает переименованием
+ * (выигрывает один) и возвращает задание в очередь.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ClusterJobStore {
+
+    private static final String JOBS = "jobs";
+    private static final String INPUTS = "inputs";
+    private static final String QUEUE = "queue";
+    private static final String LEASES = "leases";
+    private static final String CANCELS = "cancels";
+    private static final String RESULTS = "results";
+    private static final String RECLAIM_SUFFIX = ".reclaim-";
+
+    private final ObjectMapper objectMapper;
+
+    // Задания, аренду которых держит этот узел
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Object unfinishedLock = new Object();
+    // Незавершённые задания по пользователям: перечитываются не чаще раза за опрос очереди
+    private volatile UnfinishedCounts unfinished;
+
+    @Value("${cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cluster.directory:./cluster}")
+    private String directory;
+
+    @Value("${cluster.node-id:}")
+    private String nodeId;
+
+    @Value("${cluster.lease-ttl-seconds:30}")
+    private long leaseTtlSeconds;
+
+    @Value("${cluster.status-write-interval-ms:500}")
+    private long statusWriteIntervalMs;
+
+    @Value("${cluster.poll-interval-ms:500}")
+    private long pollIntervalMs;
+
+    @Value("${cluster.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${jobs.scheduler.retry-after-seconds:30}")
+    private int retryAfterSeconds;
+
+    private Path root;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        root = Paths.get(directory);
+        for (String dir : List.of(JOBS, INPUTS, QUEUE, LEASES, CANCELS, RESULTS)) {
+            Files.createDirectories(root.resolve(dir));
+        }
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        }
+        log.info("Cluster mode: node {}, shared store {}", nodeId, root.toAbsolutePath());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Проверка до приёма файлов: есть ли место в общей очереди.
+     */
+    public void ensureCapacity() {
+        if (queuedJobs().size() >= queueCapacity) {
+            throw new JobRejectedException("Очередь обработки заполнена, попробуйте позже", retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Сколько незавершённых заданий пользователя в общей очереди и в аренде у узлов,
+     * не больше limit. Общее хранилище перечитывается не чаще раза в cluster.poll-interval-ms,
+     * а не на каждый запрос; задания, поставленные этим узлом после чтения, досчитываются.
+     * Узлы проверяют независимо, поэтому одновременные запросы через разные узлы могут
+     * превысить потолок на несколько заданий; выполнение на каждом узле всё равно
+     * ограничено его планировщиком.
+     */
+    public int countUnfinished(String userId, int limit) {
+        return Math.min(unfinishedCounts().byUser().getOrDefault(userId, 0), limit);
+    }
+
+    private UnfinishedCounts unfinishedCounts() {
+        UnfinishedCounts counts = unfinished;
+        if (counts != null && System.currentTimeMillis() - counts.readAt() < pollIntervalMs) {
+            return counts;
+        }
+        synchronized (unfinishedLock) {
+            counts = unfinished;
+            if (counts != null && System.currentTimeMillis() - counts.readAt() < pollIntervalMs) {
+                return counts;
+            }
+            long readAt = System.currentTimeMillis();
+            List<String> jobs = new ArrayList<>(queuedJobs());
+            try (Stream<Path> files = Files.list(root.resolve(LEASES))) {
+                files.map(file -> file.getFileName().toString())
+                        .map(name -> name.contains(RECLAIM_SUFFIX) ? name.substring(0, name.indexOf(RECLAIM_SUFFIX)) : name)
+                        .filter(processId -> !jobs.contains(processId))
+                        .forEach(jobs::add);
+            } catch (IOException e) {
+                log.warn("Could not list shared leases: {}", e.getMessage());
+            }
+
+            Map<String, Integer> byUser = new ConcurrentHashMap<>();
+            for (String processId : jobs) {
+                JobRecord record = readRecord(processId);
+                if (record != null && !record.status().isFinished() && record.status().getUserId() != null) {
+                    byUser.merge(record.status().getUserId(), 1, Integer::sum);
+                }
+            }
+            counts = new UnfinishedCounts(byUser, readAt);
+            unfinished = counts;
+            return counts;
+        }
+    }
+
+    /**
+     * Кладёт задание в общую очередь вместе с копией входных файлов.
+     */
+    public void enqueue(ProcessStatus status, SpooledFile template, SpooledFile draft) throws IOException {
+        String processId = status.getProcessId();
+        Path inputs = Files.createDirectories(root.resolve(INPUTS).resolve(processId));
+        Files.copy(template.path(), inputs.resolve("template"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(draft.path(), inputs.resolve("draft"), StandardCopyOption.REPLACE_EXISTING);
+
+        JobRecord record = new JobRecord(status.snapshot(), template.originalName(), draft.originalName(),
+                System.currentTimeMillis());
+        writeRecord(record);
+        // Билет в очереди - последним: без записи и входных файлов его нельзя взять
+        createTicket(record);
+
+        UnfinishedCounts counts = unfinished;
+        if (counts != null && status.getUserId() != null) {
+            counts.byUser().merge(status.getUserId(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Статус задания из общего хранилища или null, если такого нет.
+     */
+    public ProcessStatus readStatus(String processId) {
+        JobRecord record = readRecord(processId);
+        if (record == null) {
+            return null;
+        }
+        ProcessStatus status = record.status();
+        if ("QUEUED".equals(status.getStatus())) {
+            int position = queuedJobs().indexOf(processId);
+            status.setQueuePosition(position >= 0 ? position + 1 : null);
+        }
+        return status;
+    }
+
+    /**
+     * Вызывается при каждой публикации статуса (см. JobStatusPublisher). Пишет статус
+     * заданий, взятых этим узлом: смену состояния сразу, прогресс - не чаще
+     * cluster.status-write-interval-ms. Итоговый статус записывает complete().
+     */
+    public void recordStatus(ProcessStatus snapshot) {
+        if (!enabled || snapshot.isFinished()) {
+            return;
+        }
+        Lease lease = leases.get(snapshot.getProcessId());
+        if (lease == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lease) {
+            if (snapshot.getStatus().equals(lease.lastState) && now - lease.lastWrite < statusWriteIntervalMs) {
+                return;
+            }
+            lease.lastState = snapshot.getStatus();
+            lease.lastWrite = now;
+        }
+        try {
+            writeRecord(lease.record.withStatus(snapshot));
+        } catch (IOException e) {
+            log.warn("Could not write status of {} to the shared store: {}", snapshot.getProcessId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Отмена задания, которого нет в памяти этого узла. Ожидающее в общей очереди
+     * отменяется сразу (marker помечает статус), выполняющемуся на другом узле
+     * оставляется просьба, которую тот заберёт при продлении аренды.
+     * false, если задание уже завершилось.
+     */
+    public boolean requestCancel(String processId, Consumer<ProcessStatus> marker) throws IOException {
+        JobRecord record = readRecord(processId);
+        if (record == null || record.status().isFinished()) {
+            return false;
+        }
+
+        if (tryLease(processId)) {
+            // Аренду удалось взять - задание никто не выполняет
+            try {
+                removeTicket(processId);
+                record = readRecord(processId);
+                if (record == null || record.status().isFinished()) {
+                    return false;
+                }
+                ProcessStatus status = record.status();
+                marker.accept(status);
+                writeRecord(record.withStatus(status));
+                FileSystemUtils.deleteRecursively(root.resolve(INPUTS).resolve(processId));
+                return true;
+            } finally {
+                releaseLease(processId);
+            }
+        }
+
+        try {
+            Files.createFile(root.resolve(CANCELS).resolve(processId));
+        } catch (FileAlreadyExistsException e) {
+            // уже просили
+        }
+        return true;
+    }
+
+    /**
+     * Идентификаторы ожидающих заданий в порядке поступления.
+     */
+    List<String> queuedJobs() {
+        try (Stream<Path> tickets = Files.list(root.resolve(QUEUE))) {
+            return tickets.map(ticket -> ticket.getFileName().toString())
+                    .sorted()
+                    .map(name -> name.substring(name.indexOf('-') + 1))
+                    .toList();
+        } catch (IOException e) {
+            log.warn("Could not list the shared queue: {}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Пытается взять аренду задания; false, если её держит другой узел.
+     */
+    boolean tryLease(String processId) {
+        Path lease = root.resolve(LEASES).resolve(processId);
+        try {
+            Files.write(lease, nodeId.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn("Could not take lease of {}: {}", processId, e.getMessage());
+            return false;
+        }
+        JobRecord record = readRecord(processId);
+        leases.put(processId, new Lease(record));
+        return true;
+    }
+
+    /**
+     * Продлевает аренду; false, если её за это время забрал другой узел.
+     * Пока другой узел проверяет аренду (reclaimExpiredLeases), файл временно
+     * переименован в &lt;id&gt;.reclaim-&lt;узел&gt;: живая аренда вернётся на место,
+     * поэтому такое отсутствие файла - не потеря аренды.
+     */
+    boolean renewLease(String processId) {
+        Path lease = root.resolve(LEASES).resolve(processId);
+        try {
+            if (!nodeId.equals(Files.readString(lease, StandardCharsets.UTF_8))) {
+                leases.remove(processId);
+                return false;
+            }
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            try {
+                if (hasLease(processId)) {
+                    // Аренду проверяет другой узел; продлим на следующем такте
+                    return true;
+                }
+            } catch (IOException listError) {
+                log.warn("Could not check lease of {}: {}", processId, listError.getMessage());
+                return true;
+            }
+            leases.remove(processId);
+            return false;
+        } catch (IOException e) {
+            // Временный сбой общего хранилища: аренда ещё не истекла, попробуем в следующий раз
+            log.warn("Could not renew lease of {}: {}", processId, e.getMessage());
+            return true;
+        }
+    }
+
+    void releaseLease(String processId) {
+        leases.remove(processId);
+        Path lease = root.resolve(LEASES).resolve(processId);
+        try {
+            if (nodeId.equals(Files.readString(lease, StandardCharsets.UTF_8))) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (NoSuchFileException e) {
+            // аренду уже забрали
+        } catch (IOException e) {
+            log.warn("Could not release lease of {}: {}", processId, e.getMessage());
+        }
+    }
+
+    /**
+     * Возвращает взятое задание в очередь, не выполняя его.
+     */
+    void returnToQueue(String processId) {
+        JobRecord record = readRecord(processId);
+        try {
+            if (record != null) {
+                createTicket(record);
+            }
+        } catch (IOException e) {
+            // Билет восстановит sweep, когда аренда будет освобождена
+            log.warn("Could not return {} to the shared queue: {}", processId, e.getMessage());
+        } finally {
+            releaseLease(processId);
+        }
+    }
+
+    List<String> ownedJobs() {
+        return new ArrayList<>(leases.keySet());
+    }
+
+    /**
+     * Забирает просьбу об отмене задания, если она есть.
+     */
+    boolean takeCancelRequest(String processId) {
+        try {
+            return Files.deleteIfExists(root.resolve(CANCELS).resolve(processId));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    InputStream openInput(String processId, String name) throws IOException {
+        return Files.newInputStream(root.resolve(INPUTS).resolve(processId).resolve(name));
+    }
+
+    void removeTicket(String processId) {
+        JobRecord record = readRecord(processId);
+        if (record == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(ticket(record));
+        } catch (IOException e) {
+            log.warn("Could not remove {} from the shared queue: {}", processId, e.getMessage());
+        }
+    }
+
+    /**
+     * Итог задания, взятого этим узлом: результат копируется в общее хранилище,
+     * статус записывается с путём к копии, аренда освобождается.
+     */
+    public void complete(ProcessStatus status) {
+        String processId = status.getProcessId();
+        Lease lease = leases.get(processId);
+        if (lease == null) {
+            // Аренду потеряли - задание уже перезапущено другим узлом
+            return;
+        }
+
+        ProcessStatus snapshot = status.snapshot();
+        try {
+            if ("COMPLETED".equals(snapshot.getStatus()) && snapshot.getResultFilePath() != null) {
+                Path local = Paths.get(snapshot.getResultFilePath());
+                Path shared = Files.createDirectories(root.resolve(RESULTS).resolve(processId))
+                        .resolve(local.getFileName());
+                Path incoming = shared.resolveSibling(shared.getFileName() + "." + nodeId + ".part");
+                Files.copy(local, incoming, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(incoming, shared, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshot.setResultFilePath(shared.toString());
+            }
+            writeRecord(lease.record.withStatus(snapshot));
+            FileSystemUtils.deleteRecursively(root.resolve(INPUTS).resolve(processId));
+        } catch (IOException e) {
+            log.error("Could not store result of {} in the shared store", processId, e);
+            snapshot.setStatus("ERROR");
+            snapshot.setMessage("Не удалось сохранить результат: " + e.getMessage());
+            snapshot.setResultFilePath(null);
+            try {
+                writeRecord(lease.record.withStatus(snapshot));
+            } catch (IOException ignored) {
+                // запись статуса тоже недоступна - после истечения аренды задание перезапустят
+            }
+        } finally {
+            releaseLease(processId);
+        }
+    }
+
+    /**
+     * Возвращает в очередь задания, чьи аренды давно не продлевались (узел упал
+     * или завис). Из нескольких узлов аренду забирает один - тот, чьё
+     * переименование файла прошло.
+     */
+    int reclaimExpiredLeases() {
+        long expiredBefore = System.currentTimeMillis() - leaseTtlSeconds * 1000;
+        int reclaimed = 0;
+        try (Stream<Path> files = Files.list(root.resolve(LEASES))) {
+            for (Path lease : files.toList()) {
+                String name = lease.getFileName().toString();
+                try {
+                    if (Files.getLastModifiedTime(lease).toMillis() >= expiredBefore) {
+                        continue;
+                    }
+                    if (name.contains(RECLAIM_SUFFIX)) {
+                        // Узел, забиравший аренду, сам упал на полпути
+                        requeue(name.substring(0, name.indexOf(RECLAIM_SUFFIX)));
+                        Files.deleteIfExists(lease);
+                        reclaimed++;
+                        continue;
+                    }
+                    if (leases.containsKey(name)) {
+                        continue;
+                    }
+
+                    Path taken = lease.resolveSibling(name + RECLAIM_SUFFIX + nodeId);
+                    Files.move(lease, taken, StandardCopyOption.ATOMIC_MOVE);
+                    if (Files.getLastModifiedTime(taken).toMillis() >= expiredBefore) {
+                        // Между проверкой и переименованием аренду продлили - возвращаем
+                        Files.move(taken, lease, StandardCopyOption.ATOMIC_MOVE);
+                        continue;
+                    }
+                    requeue(name);
+                    Files.deleteIfExists(taken);
+                    reclaimed++;
+                } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                    // аренду забрал или освободил кто-то другой
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not scan shared leases: {}", e.getMessage());
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Чистит общее хранилище: удаляет завершённые задания старше retentionMillis и
+     * возвращает в очередь незавершённые, у которых нет ни билета, ни аренды
+     * (узел упал между записью задания и постановкой в очередь).
+     */
+    int sweep(long retentionMillis) {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        try (Stream<Path> files = Files.list(root.resolve(JOBS))) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".json") || name.startsWith(".")) {
+                    continue;
+                }
+                String processId = name.substring(0, name.length() - ".json".length());
+                long age;
+                try {
+                    age = now - Files.getLastModifiedTime(file).toMillis();
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (age < leaseTtlSeconds * 1000) {
+                    continue;
+                }
+
+                JobRecord record = readRecord(processId);
+                if (record == null) {
+                    continue;
+                }
+                if (record.status().isFinished()) {
+                    if (age >= retentionMillis) {
+                        remove(processId);
+                        removed++;
+                    }
+                } else if (!Files.exists(ticket(record)) && !hasLease(processId)) {
+                    requeue(processId);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not sweep the shared store: {}", e.getMessage());
+        }
+        return removed;
+    }
+
+    JobRecord readRecord(String processId) {
+        Path file = root.resolve(JOBS).resolve(processId + ".json");
+        try {
+            return objectMapper.readValue(Files.readAllBytes(file), JobRecord.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Could not read job {} from the shared store: {}", processId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void requeue(String processId) throws IOException {
+        JobRecord record = readRecord(processId);
+        if (record == null || record.status().isFinished()) {
+            return;
+        }
+        ProcessStatus status = record.status();
+        status.setStatus("QUEUED");
+        status.setProgress(0);
+        status.setResultFilePath(null);
+        status.setMessage("Узел, выполнявший задание, не отвечает - задание снова в очереди");
+        writeRecord(record.withStatus(status));
+        createTicket(record);
+        log.info("Job {} re-queued in the shared queue", processId);
+    }
+
+    private void remove(String processId) throws IOException {
+        FileSystemUtils.deleteRecursively(root.resolve(RESULTS).resolve(processId));
+        FileSystemUtils.deleteRecursively(root.resolve(INPUTS).resolve(processId));
+        Files.deleteIfExists(root.resolve(CANCELS).resolve(processId));
+        Files.deleteIfExists(root.resolve(JOBS).resolve(processId + ".json"));
+    }
+
+    private boolean hasLease(String processId) throws IOException {
+        Path leases = root.resolve(LEASES);
+        if (Files.exists(leases.resolve(processId))) {
+            return true;
+        }
+        try (Stream<Path> files = Files.list(leases)) {
+            return files.anyMatch(file -> file.getFileName().toString().startsWith(processId + RECLAIM_SUFFIX));
+        }
+    }
+
+    private void createTicket(JobRecord record) throws IOException {
+        try {
+            Files.createFile(ticket(record));
+        } catch (FileAlreadyExistsException e) {
+            // уже в очереди
+        }
+    }
+
+    private Path ticket(JobRecord record) {
+        // Имя сортируется по времени поступления
+        return root.resolve(QUEUE).resolve(String.format("%013d-%s",
+                record.submittedAt(), record.status().getProcessId()));
+    }
+
+    private void writeRecord(JobRecord record) throws IOException {
+        String processId = record.status().getProcessId();
+        Path file = root.resolve(JOBS).resolve(processId + ".json");
+        Path incoming = file.resolveSibling(
+                "." + processId + "." + nodeId + "." + Thread.currentThread().threadId() + ".tmp");
+        Files.write(incoming, objectMapper.writeValueAsBytes(record));
+        Files.move(incoming, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Задание в общем хранилище: последний статус, исходные имена файлов и время
+     * поступления (по нему упорядочена очередь).
+     */
+    record JobRecord(ProcessStatus status, String templateName, String draftName, long submittedAt) {
+
+        JobRecord withStatus(ProcessStatus status) {
+            return new JobRecord(status, templateName, draftName, submittedAt);
+        }
+    }
+
+    private record UnfinishedCounts(Map<String, Integer> byUser, long readAt) {
+    }
+
+    private static final class Lease {
+        private final JobRecord record;
+        private String lastState;
+        private long lastWrite;
+
+        private Lease(JobRecord record) {
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Узел кластера: забирает задания из общей очереди, пока у локального планировщика
+ * есть свободные слоты, продлевает аренды своих заданий, выполняет просьбы об отмене
+ * и возвращает в очередь задания упавших узлов. Без cluster.enabled ничего не делает.
+ * Продление аренд идёт в собственном потоке: общий планировщик Spring могут занять
+ * другие периодические задачи, и задержка продления дольше cluster.lease-ttl-seconds
+ * отдала бы выполняющиеся задания другим узлам.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ClusterWorker {
+
+    private final ClusterJobStore clusterStore;
+    private final DocumentProcessingService processingService;
+    private final JobScheduler jobScheduler;
+    private final JobRegistry jobRegistry;
+    private final JobSweeper jobSweeper;
+    private final UploadSpool uploadSpool;
+
+    @Value("${cluster.retention-minutes:60}")
+    private long retentionMinutes;
+
+    @Value("${cluster.heartbeat-interval-ms:5000}")
+    private long heartbeatIntervalMs;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @PostConstruct
+    public void startHeartbeat() {
+        if (!clusterStore.isEnabled()) {
+            return;
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopHeartbeat() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.poll-interval-ms:500}")
+    public void claimJobs() {
+        if (!clusterStore.isEnabled()) {
+            return;
+        }
+        for (String processId : clusterStore.queuedJobs()) {
+            // Берём не больше, чем можем сразу запустить: остальное достанется другим узлам
+            if (jobScheduler.getQueuedCount() > 0
+                    || jobScheduler.getActiveCount() >= jobScheduler.getConcurrency()) {
+                return;
+            }
+            if (clusterStore.tryLease(processId)) {
+                claim(processId);
+            }
+        }
+    }
+
+    void heartbeat() {
+        try {
+            renewLeases();
+        } catch (RuntimeException e) {
+            // Исключение остановило бы периодический запуск
+            log.error("Cluster heartbeat failed", e);
+        }
+    }
+
+    private void renewLeases() {
+        for (String processId : clusterStore.ownedJobs()) {
+            if (!clusterStore.renewLease(processId)) {
+                // Узел не продлевал аренду слишком долго, задание уже отдано другому
+                log.warn("Lost lease of job {}, stopping local execution", processId);
+                abandon(processId);
+            } else if (clusterStore.takeCancelRequest(processId)) {
+                log.info("Job {} cancelled from another node", processId);
+                processingService.cancelJob(processId);
+            }
+        }
+
+        int reclaimed = clusterStore.reclaimExpiredLeases();
+        if (reclaimed > 0) {
+            log.info("Re-queued {} jobs with expired leases", reclaimed);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${jobs.sweep.interval-ms:60000}")
+    public void sweep() {
+        if (!clusterStore.isEnabled()) {
+            return;
+        }
+        int removed = clusterStore.sweep(TimeUnit.MINUTES.toMillis(retentionMinutes));
+        if (removed > 0) {
+            log.info("Removed {} expired jobs from the shared store", removed);
+        }
+    }
+
+    private void claim(String processId) {
+        ClusterJobStore.JobRecord record = clusterStore.readRecord(processId);
+        if (record == null || record.status().isFinished()) {
+            clusterStore.removeTicket(processId);
+            clusterStore.releaseLease(processId);
+            return;
+        }
+        if (!jobScheduler.hasUserCapacity(record.status().getUserId())) {
+            // У пользователя уже users.max-concurrent-jobs заданий на этом узле:
+            // билет остаётся на месте, задание возьмёт другой узел или этот позже
+            clusterStore.releaseLease(processId);
+            return;
+        }
+        clusterStore.removeTicket(processId);
+
+        ProcessStatus status = record.status();
+        status.setStatus("QUEUED");
+        status.setQueuePosition(null);
+        status.setResultFilePath(null);
+
+        SpooledFile templateFile = null;
+        SpooledFile draftFile = null;
+        try {
+            templateFile = spool(processId, "template", record.templateName());
+            draftFile = spool(processId, "draft", record.draftName());
+        } catch (IOException e) {
+            uploadSpool.release(templateFile);
+            log.error("Could not read inputs of job {} from the shared store", processId, e);
+            status.setStatus("ERROR");
+            status.setMessage("Ошибка: входные файлы задания недоступны");
+            status.setEndTime(java.time.LocalDateTime.now());
+            clusterStore.complete(status);
+            return;
+        }
+
+        try {
+            // Итог задания (любой) уходит в общее хранилище, аренда освобождается
+            processingService.runClaimedJob(status, templateFile, draftFile, clusterStore::complete);
+            log.info("Claimed job {} from the shared queue", processId);
+        } catch (RuntimeException e) {
+            // Локальная очередь отказала (файлы уже освобождены) - пусть возьмёт другой узел
+            log.warn("Could not start claimed job {}: {}", processId, e.getMessage());
+            clusterStore.returnToQueue(processId);
+        }
+    }
+
+    private SpooledFile spool(String processId, String input, String name) throws IOException {
+        try (InputStream in = clusterStore.openInput(processId, input)) {
+            return uploadSpool.spool(in, name);
+        }
+    }
+
+    private void abandon(String processId) {
+        // Только локальное выполнение: отмена через общее хранилище задела бы новый узел
+        if (jobRegistry.get(processId) != null) {
+            processingService.cancelJob(processId);
+        }
+        // Статус задания теперь ведёт другой узел - локальная копия не должна его заслонять
+        jobSweeper.discard(processId);
+    }
+}
@@ -1,31 +1,61 @@
 package com.docstyler.backend.service;
 
 import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
+@RequiredArgsConstructor
 public class DocumentProcessingService {
 
-    // Храним статусы в памяти вместо MongoDB
-    private final Map<String, ProcessStatus> statusCache = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    // Имена фаз агента для метрик (по значению PROGRESS), чтобы не создавать строки на каждую строку вывода
+    private static final String[] PHASE_NAMES = java.util.stream.IntStream.rangeClosed(0, 100)
+            .mapToObj(String::valueOf)
+            .toArray(String[]::new);
+
+    private final JobRegistry jobRegistry;
+    private final JobSweeper jobSweeper;
+    private final JobScheduler jobScheduler;
+    private final PythonAgentPool agentPool;
+    private final UploadSpool uploadSpool;
+    private final TemplateStyleCache templateStyleCache;
+    private final ResultCache resultCache;
+    private final JobStatusPublisher statusPublisher;
+    private final ObjectMapper objectMapper;
+    private final ProcessingMetrics metrics;
+    private final JobJournal jobJournal;
+    private final JobWatchdog jobWatchdog;
+    private final SectionProcessor sectionProcessor;
+    private final ChunkCache chunkCache;
+    private final DocxStyleEngine docxStyleEngine;
+    private final ClusterJobStore clusterStore;
+    private final ResumableUploadService uploadService;
+    private final AgentLocator agentLocator;
 
     @Value("${python.agent.path:../python_agent}")
     private String pythonAgentPath;
@@ -33,110 +63,454 @@ public class DocumentProcessingService {
     @Value("${python.executable:python3}")
     private String pythonExecutable;
 
-    @Value("${temp.directory:/tmp/docstyler}")
-    private String tempDirectory;
+    // pool - тёплые воркеры, spawn - новый процесс на каждое задание
+    @Value("${python.agent.mode:pool}")
+    private String agentMode;
 
     public String startDocumentProcessing(String userId,
                                           MultipartFile template,
-                                          MultipartFile draft) {
+                                          MultipartFile draft,
+                                          Integer deadlineSeconds) {
 
+        // Отклоняем сразу, до сохранения файлов, если очередь или квоты уже заполнены
+        ensureCapacity();
+
+        log.info("Starting document processing for user {}: template {}, draft {}",
+                userId, template.getOriginalFilename(), draft.getOriginalFilename());
+
+        // Сохраняем загрузки в потоке запроса: после его завершения MultipartFile уже недоступен
+        SpooledFile templateFile = null;
+        SpooledFile draftFile = null;
+        try {
+            templateFile = uploadSpool.spool(template, "template.txt");
+            draftFile = uploadSpool.spool(draft, "draft.txt");
+        } catch (Exception e) {
+            uploadSpool.release(templateFile);
+            throw new RuntimeException("Не удалось сохранить загруженные файлы: " + e.getMessage(), e);
+        }
+
+        return startSpooledProcessing(userId, templateFile, draftFile, deadlineSeconds);
+    }
+
+    /**
+     * Задание по завершённым загрузкам по частям (ResumableUploadService): файлы уже
+     * лежат в хранилище, тело запроса ничего не несёт.
+     */
+    public String startUploadedProcessing(String userId,
+                                          String templateUploadId,
+                                          String draftUploadId,
+                                          Integer deadlineSeconds) {
+        ensureCapacity();
+
+        log.info("Starting document processing for user {} from uploads: template {}, draft {}",
+                userId, templateUploadId, draftUploadId);
+
+        SpooledFile templateFile = uploadService.claim(templateUploadId, userId);
+        SpooledFile draftFile;
+        try {
+            draftFile = uploadService.claim(draftUploadId, userId);
+        } catch (RuntimeException e) {
+            uploadSpool.release(templateFile);
+            throw e;
+        }
+        return startSpooledProcessing(userId, templateFile, draftFile, deadlineSeconds);
+    }
+
+    private String startSpooledProcessing(String userId,
+                                          SpooledFile templateFile,
+                                          SpooledFile draftFile,
+                                          Integer deadlineSeconds) {
+        if (clusterStore.isEnabled()) {
+            return enqueueShared(userId, templateFile, draftFile, deadlineSeconds);
+        }
+        return submitSpooled(userId, templateFile, draftFile, deadlineSeconds, null);
+    }
+
+    /**
+     * Режим кластера: задание уходит в общую очередь, выполнит его тот узел,
+     * который первым возьмёт аренду (см. ClusterWorker). Потолок заданий пользователя
+     * считается по всей общей очереди, а не по планировщику этого узла.
+     */
+    private String enqueueShared(String userId,
+                                 SpooledFile templateFile,
+                                 SpooledFile draftFile,
+                                 Integer deadlineSeconds) {
         String processId = UUID.randomUUID().toString();
         ProcessStatus status = new ProcessStatus(processId, userId);
+        status.setDeadlineSeconds(jobWatchdog.effectiveDeadline(deadlineSeconds));
+        try {
+            int userLimit = jobScheduler.getUserJobLimit();
+            if (userLimit > 0 && clusterStore.countUnfinished(userId, userLimit) >= userLimit) {
+                throw new UserLimitExceededException(
+                        "Слишком много заданий в обработке, дождитесь завершения предыдущих", 5);
+            }
+            clusterStore.enqueue(status, templateFile, draftFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось поставить задание в общую очередь: " + e.getMessage(), e);
+        } finally {
+            // Файлы скопированы в общее хранилище, локальные ссылки больше не нужны
+            uploadSpool.release(templateFile);
+            uploadSpool.release(draftFile);
+        }
+        log.info("Job {} placed in the shared queue", processId);
+        return processId;
+    }
+
+    /**
+     * Запускает на этом узле задание, взятое из общей очереди.
+     */
+    public void runClaimedJob(ProcessStatus status,
+                              SpooledFile templateFile,
+                              SpooledFile draftFile,
+                              Consumer<ProcessStatus> onFinished) {
+        startJob(status, templateFile, draftFile, onFinished);
+    }
 
-        // Сохраняем в памяти
-        statusCache.put(processId, status);
+    /**
+     * Запускает задание по уже сохранённым файлам. Задание забирает себе по одной ссылке
+     * на шаблон и черновик и освобождает их по завершении; onFinished (может быть null)
+     * вызывается, когда задание завершилось любым исходом.
+     */
+    public String submitSpooled(String userId,
+                                SpooledFile templateFile,
+                                SpooledFile draftFile,
+                                Consumer<ProcessStatus> onFinished) {
+        return submitSpooled(userId, templateFile, draftFile, null, onFinished);
+    }
 
-        log.info("Starting document processing: {}", processId);
-        log.info("   User: {}, Template: {}, Draft: {}",
-                userId, template.getOriginalFilename(), draft.getOriginalFilename());
+    /**
+     * То же, с предельным временем выполнения задания в секундах (null - по умолчанию).
+     */
+    public String submitSpooled(String userId,
+                                SpooledFile templateFile,
+                                SpooledFile draftFile,
+                                Integer deadlineSeconds,
+                                Consumer<ProcessStatus> onFinished) {
 
-        // Запускаем обработку асинхронно
-        executorService.submit(() -> {
-            try {
-                processDocumentsAsync(processId, template, draft);
-            } catch (Exception e) {
-                log.error("Error processing documents", e);
-                status.setStatus("ERROR");
-                status.setMessage("Ошибка: " + e.getMessage());
-            }
-        });
+        String processId = UUID.randomUUID().toString();
+        ProcessStatus status = new ProcessStatus(processId, userId);
+        status.setDeadlineSeconds(jobWatchdog.effectiveDeadline(deadlineSeconds));
+        log.info("Starting document processing: {}", processId);
 
+        startJob(status, templateFile, draftFile, onFinished);
         return processId;
     }
 
-    private void processDocumentsAsync(String processId,
-                                       MultipartFile template,
-                                       MultipartFile draft) {
+    private void startJob(ProcessStatus status,
+                          SpooledFile templateFile,
+                          SpooledFile draftFile,
+                          Consumer<ProcessStatus> onFinished) {
+
+        String processId = status.getProcessId();
+        status.setDraftName(draftFile.originalName());
+        String resultKey;
+        try {
+            resultKey = ResultCache.key(templateFile.hash(), draftFile.hash(),
+                    agentLocator.version() + "+" + docxStyleEngine.version());
+        } catch (RuntimeException e) {
+            uploadSpool.release(templateFile);
+            uploadSpool.release(draftFile);
+            throw e;
+        }
 
-        ProcessStatus status = statusCache.get(processId);
+        // Сохраняем в памяти и в журнале
+        jobRegistry.put(status);
+        jobJournal.recordSubmitted(status, templateFile, draftFile);
+
+        // Эту пару уже обрабатывали - отдаём сохранённый результат без запуска агента
+        Path cachedResult = resultCache.lookup(resultKey);
+        if (cachedResult != null) {
+            uploadSpool.release(templateFile);
+            uploadSpool.release(draftFile);
+            completeFromCache(status, cachedResult);
+            if (onFinished != null) {
+                onFinished.accept(status);
+            }
+            return;
+        }
 
+        // Ставим обработку в очередь; при переполнении очереди задание отклоняется
+        Runnable releaseJob = () -> {
+            uploadSpool.release(templateFile);
+            uploadSpool.release(draftFile);
+            if (onFinished != null) {
+                onFinished.accept(status);
+            }
+        };
         try {
-            // 1. Создаем временную директорию
-            Path tempDir = Paths.get(tempDirectory, processId);
-            Files.createDirectories(tempDir);
+            jobScheduler.submit(processId, status.getUserId(), () -> {
+                long started = System.nanoTime();
+                AgentRun run = null;
+                try {
+                    synchronized (status) {
+                        // Задание могли отменить, пока воркер забирал его из очереди
+                        if (status.isFinished()) {
+                            return;
+                        }
+                        status.setStatus("PROCESSING");
+                        status.setQueuePosition(null);
+                        run = jobWatchdog.start(processId, status.getDeadlineSeconds());
+                    }
+                    statusPublisher.publish(status);
+                    processDocumentsAsync(processId, templateFile, draftFile, resultKey, run);
+                } catch (Exception e) {
+                    log.error("Error processing documents", e);
+                    status.setStatus("ERROR");
+                    status.setMessage("Ошибка: " + e.getMessage());
+                    status.setEndTime(java.time.LocalDateTime.now());
+                    statusPublisher.publish(status);
+                } finally {
+                    if (run != null) {
+                        jobWatchdog.finish(run);
+                        metrics.recordJob(status.getStatus(), System.nanoTime() - started);
+                    } else {
+                        metrics.recordDiscardedJob(status.getStatus());
+                    }
+                    releaseJob.run();
+                }
+            }, () -> {
+                metrics.recordDiscardedJob(status.getStatus());
+                releaseJob.run();
+            });
+        } catch (JobRejectedException e) {
+            jobRegistry.remove(processId);
+            uploadSpool.release(templateFile);
+            uploadSpool.release(draftFile);
+            throw e;
+        }
+    }
 
-            // 2. Сохраняем файлы
-            String templateName = template.getOriginalFilename();
-            String draftName = draft.getOriginalFilename();
+    /**
+     * Отменяет задание: ожидающее убирается из очереди, у выполняющегося
+     * убивается процесс агента. false, если задание уже завершилось.
+     */
+    public boolean cancelJob(String processId) {
+        ProcessStatus status = jobRegistry.get(processId);
+        if (status == null && clusterStore.isEnabled()) {
+            // Задание другого узла или ещё никем не взятое из общей очереди
+            try {
+                return clusterStore.requestCancel(processId, shared -> markStopped(shared, JobWatchdog.CANCELLED));
+            } catch (IOException e) {
+                throw new RuntimeException("Не удалось отменить задание: " + e.getMessage(), e);
+            }
+        }
+        if (status == null) {
+            throw new RuntimeException("Process not found: " + processId);
+        }
 
-            if (templateName == null || templateName.isEmpty()) templateName = "template.txt";
-            if (draftName == null || draftName.isEmpty()) draftName = "draft.txt";
+        boolean queued;
+        synchronized (status) {
+            if (status.isFinished()) {
+                return false;
+            }
+            queued = "QUEUED".equals(status.getStatus());
+            if (queued) {
+                // Воркер, даже если уже взял задание, увидит завершённый статус и не запустит его
+                markStopped(status, JobWatchdog.CANCELLED);
+            }
+        }
 
-            Path templatePath = tempDir.resolve(templateName);
-            Path draftPath = tempDir.resolve(draftName);
+        if (queued) {
+            jobScheduler.cancel(processId);
+            log.info("Job {} cancelled while queued", processId);
+            statusPublisher.publish(status);
+            return true;
+        }
+        // Статус обновит поток задания, когда процесс агента завершится
+        return jobWatchdog.cancel(processId);
+    }
 
-            template.transferTo(templatePath);
-            draft.transferTo(draftPath);
+    private static void markStopped(ProcessStatus status, String reason) {
+        status.setStatus(reason);
+        status.setMessage(JobWatchdog.CANCELLED.equals(reason)
+                ? "Обработка отменена"
+                : "Обработка прервана: превышено время выполнения");
+        status.setQueuePosition(null);
+        status.setEndTime(java.time.LocalDateTime.now());
+    }
 
-            // 3. Обновляем статус
-            status.setProgress(10);
-            status.setMessage("Файлы сохранены, запускаем Python агент...");
+    /**
+     * Восстановление после перезапуска: завершённые задания возвращаются в память,
+     * незавершённые снова ставятся в очередь. Выполняется до очистки осиротевших директорий.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void recoverJobs() {
+        int requeued = 0;
+        for (JobJournal.JournaledJob job : jobJournal.replay()) {
+            ProcessStatus status = job.status();
+            if (!status.isFinished() && clusterStore.isEnabled()
+                    && clusterStore.readStatus(status.getProcessId()) != null) {
+                // Задание из общей очереди: после истечения аренды его снова возьмёт любой узел
+                jobJournal.recordRemoved(status.getProcessId());
+                continue;
+            }
+            if (status.isFinished()) {
+                jobRegistry.put(status);
+                jobRegistry.updateDiskUsage(status.getProcessId());
+                continue;
+            }
 
-            // 4. Находим Python агента
-            File agentFile = findPythonAgentFile();
-            log.info("Python agent found at: {}", agentFile.getAbsolutePath());
+            SpooledFile templateFile = job.template() != null
+                    ? uploadSpool.adopt(job.template().hash(), job.template().name()) : null;
+            SpooledFile draftFile = job.draft() != null
+                    ? uploadSpool.adopt(job.draft().hash(), job.draft().name()) : null;
+
+            status.setProgress(0);
+            status.setResultFilePath(null);
+            if (templateFile == null || draftFile == null) {
+                uploadSpool.release(templateFile);
+                uploadSpool.release(draftFile);
+                failRecovery(status, "загруженные файлы не сохранились");
+                continue;
+            }
+            status.setStatus("QUEUED");
+            status.setMessage("Задание восстановлено после перезапуска сервера");
+            try {
+                // При отказе startJob сам освобождает файлы и убирает задание из реестра
+                startJob(status, templateFile, draftFile, null);
+                requeued++;
+            } catch (RuntimeException e) {
+                failRecovery(status, e.getMessage());
+            }
+        }
+        if (requeued > 0) {
+            log.info("Re-queued {} unfinished jobs from the journal", requeued);
+        }
+    }
 
-            // 5. Запускаем Python агента
-            ProcessBuilder pb = new ProcessBuilder(
-                    pythonExecutable,
-                    agentFile.getAbsolutePath(),
-                    templatePath.toString(),
-                    draftPath.toString(),
-                    tempDir.toString()
-            );
+    private void failRecovery(ProcessStatus status, String reason) {
+        log.warn("Could not re-queue job {}: {}", status.getProcessId(), reason);
+        status.setStatus("ERROR");
+        status.setMessage("Задание не удалось восстановить после перезапуска: " + reason);
+        status.setEndTime(java.time.LocalDateTime.now());
+        jobRegistry.put(status);
+        statusPublisher.publish(status);
+    }
 
-            Process process = pb.start();
+    /**
+     * Проверка очереди и квот до приёма файлов.
+     */
+    public void ensureCapacity() {
+        if (clusterStore.isEnabled()) {
+            clusterStore.ensureCapacity();
+        } else {
+            jobScheduler.ensureCapacity();
+        }
+        jobSweeper.ensureCapacity();
+    }
 
-            // 6. Читаем вывод Python в реальном времени
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()))) {
+    private void completeFromCache(ProcessStatus status, Path cachedResult) {
+        log.info("Result cache hit for {}: {}", status.getProcessId(), cachedResult);
 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    log.info("Python: {}", line);
-
-                    if (line.startsWith("PROGRESS:")) {
-                        int progress = Integer.parseInt(line.split(":")[1]);
-                        status.setProgress(progress);
-                    } else if (line.startsWith("MESSAGE:")) {
-                        status.setMessage(line.substring(8));
-                    } else if (line.startsWith("RESULT:")) {
-                        String resultPath = line.substring(7);
-                        status.setResultFilePath(resultPath);
-                        status.setStatus("COMPLETED");
-                        status.setProgress(100);
-                        status.setEndTime(java.time.LocalDateTime.now());
-                        status.setMessage("Обработка завершена!");
-                    }
+        // Жёсткая ссылка в директории задания, чтобы вытеснение из кэша не ломало скачивание
+        Path resultPath = cachedResult;
+        try {
+            Path tempDir = jobRegistry.jobDirectory(status.getProcessId());
+            Files.createDirectories(tempDir);
+            resultPath = Files.createLink(tempDir.resolve(cachedResult.getFileName()), cachedResult);
+            jobRegistry.updateDiskUsage(status.getProcessId());
+        } catch (Exception e) {
+            log.debug("Serving cached result directly from {}: {}", cachedResult, e.getMessage());
+        }
+
+        status.setQueuePosition(null);
+        status.setResultFilePath(resultPath.toString());
+        status.setStatus("COMPLETED");
+        status.setProgress(100);
+        status.setEndTime(java.time.LocalDateTime.now());
+        status.setMessage("Обработка завершена! (результат из кэша)");
+        statusPublisher.publish(status);
+    }
+
+    private void processDocumentsAsync(String processId,
+                                       SpooledFile template,
+                                       SpooledFile draft,
+                                       String resultKey,
+                                       AgentRun run) {
+
+        ProcessStatus status = jobRegistry.get(processId);
+
+        try {
+            // 1. Создаем временную директорию
+            Path tempDir = jobRegistry.jobDirectory(processId);
+            Files.createDirectories(tempDir);
+
+            // 2. Связываем файлы задания с уже сохранёнными загрузками. Имена в директории
+            //    задания обезличены: агент пишет их в результат, а результат из кэша
+            //    достаётся и другим пользователям с теми же файлами
+            Path templatePath = uploadSpool.linkInto(template, tempDir, "template" + extension(template.originalName()));
+            Path draftPath = uploadSpool.linkInto(draft, tempDir, "draft" + extension(draft.originalName()));
+
+            // Пару DOCX стилизуем прямо в JVM, Python агент не нужен
+            if (docxStyleEngine.supports(templatePath, draftPath)) {
+                status.setProgress(10);
+                status.setMessage("Применяем стили шаблона к документу...");
+                statusPublisher.publish(status);
+
+                long started = System.nanoTime();
+                Path resultPath = tempDir.resolve("styled" + extension(draft.originalName()));
+                docxStyleEngine.apply(templatePath, draftPath, resultPath);
+                metrics.recordStage("docx.engine", System.nanoTime() - started);
+
+                if (run.isKilled()) {
+                    markStopped(status, run.getKillReason());
+                } else {
+                    status.setStatus("COMPLETED");
+                    status.setProgress(100);
+                    status.setMessage("Обработка завершена успешно!");
+                    status.setResultFilePath(resultPath.toString());
+                    status.setEndTime(java.time.LocalDateTime.now());
+                    resultCache.put(resultKey, resultPath);
                 }
+
+                jobRegistry.updateDiskUsage(processId);
+                statusPublisher.publish(status);
+                log.info("Processing complete for {} in DOCX engine: {}", processId, status.getStatus());
+                return;
             }
 
-            // 7. Проверяем код завершения
-            int exitCode = process.waitFor();
+            // 3. Стили шаблона берём из кэша, разбираем только новые шаблоны
+            List<String> templateStyles = templateStyleCache.getStyles(template);
+            AgentRequest agentRequest = new AgentRequest(templatePath, draftPath, tempDir, templateStyles);
 
-            if (exitCode != 0 && !"COMPLETED".equals(status.getStatus())) {
+            // 4. Обновляем статус
+            status.setProgress(10);
+            status.setMessage("Файлы сохранены, запускаем Python агент...");
+            statusPublisher.publish(status);
+
+            // 5. Python агент (путь найден при запуске)
+            File agentFile = agentLocator.agentFile();
+            log.debug("Python agent at: {}", agentFile.getAbsolutePath());
+
+            // 6. Запускаем Python агента и читаем вывод в реальном времени;
+            //    в режиме pool черновик обрабатывается по частям: неизменённые абзацы
+            //    берутся из кэша, разделы большого черновика размечаются параллельно
+            AgentPhase phase = new AgentPhase();
+            Consumer<AgentProtocolReader> lineHandler = line -> {
+                run.touch();
+                if (!run.isKilled()) {
+                    handleAgentLine(status, phase, line);
+                }
+            };
+            SectionProcessor.DraftPlan plan = "pool".equals(agentMode) && templateStyles != null
+                    ? sectionProcessor.plan(draftPath)
+                    : null;
+            int exitCode = plan == null
+                    ? runPythonAgent(agentFile, agentRequest, run, lineHandler)
+                    : sectionProcessor.run(plan, template.hash() + ":" + agentLocator.version(), agentFile,
+                            agentRequest, run, status, error -> phase.lastError = error, lineHandler);
+            metrics.recordAgentExit(agentMode, exitCode);
+
+            // 7. Проверяем код завершения
+            if (run.isKilled() && !"COMPLETED".equals(status.getStatus())) {
+                markStopped(status, run.getKillReason());
+            } else if (exitCode != 0 && !"COMPLETED".equals(status.getStatus())) {
+                String reason = agentFailureReason(processId, phase, run);
                 status.setStatus("ERROR");
-                status.setMessage("Python агент завершился с ошибкой: " + exitCode);
+                status.setMessage("Python агент завершился с ошибкой: " + exitCode
+                        + (reason != null ? " (" + reason + ")" : ""));
+                status.setEndTime(java.time.LocalDateTime.now());
             } else if ("COMPLETED".equals(status.getStatus())) {
                 // Уже обновлено в цикле чтения
             } else {
@@ -146,62 +520,181 @@ public class DocumentProcessingService {
                 status.setEndTime(java.time.LocalDateTime.now());
             }
 
+            if ("COMPLETED".equals(status.getStatus()) && status.getResultFilePath() != null) {
+                resultCache.put(resultKey, Paths.get(status.getResultFilePath()));
+            }
+
+            jobRegistry.updateDiskUsage(processId);
+            statusPublisher.publish(status);
             log.info("Processing complete for {}: {}", processId, status.getStatus());
 
         } catch (Exception e) {
-            log.error("Processing error for {}", processId, e);
-            status.setStatus("ERROR");
-            status.setMessage("Ошибка: " + e.getMessage());
+            if (run.isKilled()) {
+                // Процесс агента убит отменой или сторожем - это не ошибка обработки
+                markStopped(status, run.getKillReason());
+            } else {
+                log.error("Processing error for {}", processId, e);
+                status.setStatus("ERROR");
+                status.setMessage("Ошибка: " + e.getMessage());
+                status.setEndTime(java.time.LocalDateTime.now());
+            }
+            jobRegistry.updateDiskUsage(processId);
+            statusPublisher.publish(status);
         }
     }
 
-    private File findPythonAgentFile() {
-        // 1. Сначала пробуем путь из конфигурации
-        File agentFile = new File(pythonAgentPath, "main.py");
+    private int runPythonAgent(File agentFile,
+                               AgentRequest agentRequest,
+                               AgentRun run,
+                               Consumer<AgentProtocolReader> lineHandler) throws Exception {
 
-        // 2. Если файл существует - используем его
-        if (agentFile.exists()) {
-            return agentFile;
+        if ("pool".equals(agentMode)) {
+            return agentPool.runJob(agentFile, agentRequest, run, lineHandler);
         }
 
-        // 3. Если это относительный путь, вычисляем абсолютный
-        if (!agentFile.isAbsolute()) {
-            // Получаем текущую директорию Spring Boot
-            File backendDir = new File(".").getAbsoluteFile(); // backend/
+        // Запасной режим: отдельный процесс на каждое задание
+        ProcessBuilder pb = new ProcessBuilder(
+                pythonExecutable,
+                agentFile.getAbsolutePath(),
+                agentRequest.templatePath().toString(),
+                agentRequest.draftPath().toString(),
+                agentRequest.outputDir().toString()
+        );
+        if (agentRequest.styles() != null) {
+            // Через окружение, чтобы не зависеть от правил экранирования аргументов в ОС
+            pb.environment().put("DOCSTYLER_STYLES", objectMapper.writeValueAsString(agentRequest.styles()));
+        }
 
-            // Пробуем разные варианты
-            File[] candidates = {
-                    new File(backendDir, pythonAgentPath + File.separator + "main.py"),
-                    new File(backendDir.getParentFile(), "python_agent/main.py"),
-                    new File("../python_agent/main.py"),
-                    new File("../../python_agent/main.py"),
-                    new File("D:/Programming/UTZAI/python_agent/main.py")
-            };
+        long spawnStarted = System.nanoTime();
+        Process process = pb.start();
+        metrics.recordStage("agent.acquire", System.nanoTime() - spawnStarted);
+        // stderr вычитывается параллельно, иначе многословный агент повиснет на записи
+        StderrTail stderr = StderrTail.drain(process.getErrorStream(), "pid " + process.pid());
+        run.attach(process, stderr);
+
+        try (InputStream stdout = process.getInputStream()) {
+            AgentProtocolReader reader = new AgentProtocolReader(stdout);
+            while (reader.read() != AgentProtocolReader.Kind.EOF) {
+                lineHandler.accept(reader);
+            }
+        }
+
+        int exitCode = process.waitFor();
+        // Хвост stderr нужен целиком для отчёта об ошибке
+        stderr.awaitClosed(1, java.util.concurrent.TimeUnit.SECONDS);
+        return exitCode;
+    }
 
-            for (File candidate : candidates) {
-                log.debug("Checking path: {}", candidate.getAbsolutePath());
-                if (candidate.exists()) {
-                    log.info("Found Python agent at: {}", candidate.getAbsolutePath());
-                    return candidate;
+    private void handleAgentLine(ProcessStatus status, AgentPhase phase, AgentProtocolReader line) {
+        switch (line.kind()) {
+            case PROGRESS -> {
+                int progress = line.number();
+                log.debug("Python: PROGRESS:{}", progress);
+                status.setProgress(progress);
+                phase.next(progress);
+            }
+            case MESSAGE -> {
+                String message = line.text();
+                log.info("Python: {}", message);
+                status.setMessage(message);
+            }
+            case RESULT -> {
+                metrics.recordStage("result.write", phase.elapsed());
+                String resultPath = line.text();
+                log.info("Python: result {}", resultPath);
+                status.setResultFilePath(resultPath);
+                status.setStatus("COMPLETED");
+                status.setProgress(100);
+                status.setEndTime(java.time.LocalDateTime.now());
+                status.setMessage("Обработка завершена!");
+            }
+            case ERROR -> {
+                phase.lastError = line.text();
+                log.warn("Python: ERROR: {}", phase.lastError);
+                return;
+            }
+            default -> {
+                if (log.isDebugEnabled()) {
+                    log.debug("Python: {}", line.line());
                 }
+                return;
             }
         }
+        statusPublisher.publish(status);
+    }
 
-        // 4. Если ничего не нашли, бросаем исключение
-        throw new RuntimeException("Python agent not found. Searched paths:\n" +
-                "1. " + agentFile.getAbsolutePath() + "\n" +
-                "2. From backend dir: " + new File(".").getAbsolutePath());
+    /**
+     * Причина сбоя агента для статуса: его последняя строка ERROR:, иначе последняя
+     * строка stderr. Весь хвост stderr уходит в журнал.
+     */
+    private String agentFailureReason(String processId, AgentPhase phase, AgentRun run) {
+        StderrTail stderr = run.getStderrTail();
+        if (stderr != null && !stderr.isEmpty()) {
+            log.warn("Python agent stderr for {}:\n{}", processId, stderr.contents());
+        }
+        if (phase.lastError != null) {
+            return phase.lastError;
+        }
+        return stderr != null ? stderr.lastLine() : null;
+    }
+
+    /**
+     * Статус задания или null, если такого задания нет (или оно уже удалено).
+     */
+    public ProcessStatus findProcessStatus(String processId) {
+        ProcessStatus status = jobRegistry.get(processId);
+        if (status == null && clusterStore.isEnabled()) {
+            status = clusterStore.readStatus(processId);
+        }
+        return status;
     }
 
     public ProcessStatus getProcessStatus(String processId) {
-        ProcessStatus status = statusCache.get(processId);
+        ProcessStatus status = jobRegistry.get(processId);
+        if (status == null && clusterStore.isEnabled()) {
+            // Задание принято или выполняется другим узлом
+            status = clusterStore.readStatus(processId);
+            if (status != null) {
+                return status;
+            }
+        }
         if (status == null) {
             throw new RuntimeException("Process not found: " + processId);
         }
+        if ("QUEUED".equals(status.getStatus())) {
+            status.setQueuePosition(jobScheduler.getQueuePosition(processId));
+        }
         return status;
     }
 
-    public byte[] getProcessResult(String processId) throws Exception {
+    public SseEmitter subscribeToStatus(String processId) {
+        ProcessStatus status = getProcessStatus(processId);
+        SseEmitter emitter = statusPublisher.subscribe(status);
+        watchIfRemote(status);
+        return emitter;
+    }
+
+    public Runnable awaitStatusChange(ProcessStatus status, Consumer<ProcessStatus> listener) {
+        Runnable unsubscribe = statusPublisher.awaitChange(status.getProcessId(), listener);
+        watchIfRemote(status);
+        return unsubscribe;
+    }
+
+    /**
+     * Задание ведёт другой узел: здесь его изменения не публикуются,
+     * подписчиков обслуживает опрос общего хранилища.
+     */
+    private void watchIfRemote(ProcessStatus status) {
+        if (clusterStore.isEnabled() && !status.isFinished() && jobRegistry.get(status.getProcessId()) == null) {
+            statusPublisher.watchRemote(status);
+        }
+    }
+
+    /**
+     * Файл результата завершённого задания. Содержимое не читается: отдача
+     * идёт потоком прямо с диска.
+     */
+    public Path getResultFile(String processId) {
         ProcessStatus status = getProcessStatus(processId);
 
         if (!"COMPLETED".equals(status.getStatus())) {
@@ -213,11 +706,52 @@ public class DocumentProcessingService {
         }
 
         Path resultPath = Paths.get(status.getResultFilePath());
-        if (!Files.exists(resultPath)) {
+        if (!Files.isRegularFile(resultPath)) {
             throw new RuntimeException("Result file not found: " + resultPath);
         }
 
-        return Files.readAllBytes(resultPath);
+        return resultPath;
+    }
+
+    /**
+     * Имя для скачивания результата: по исходному имени черновика этого задания,
+     * а не по имени файла на диске, общему для всех заданий с тем же содержимым.
+     */
+    public String getResultFileName(String processId) {
+        ProcessStatus status = getProcessStatus(processId);
+        String fileName = Paths.get(status.getResultFilePath()).getFileName().toString();
+        String draftName = status.getDraftName();
+        if (draftName == null) {
+            return fileName;
+        }
+        int dot = draftName.lastIndexOf('.');
+        String baseName = dot > 0 ? draftName.substring(0, dot) : draftName;
+        return "styled_" + baseName + extension(fileName);
+    }
+
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("jobsLive", jobRegistry.size());
+        stats.put("jobsDiskBytes", jobRegistry.getDiskBytes());
+        stats.put("jobDirectoriesPendingDeletion", jobSweeper.getPendingDeletionCount());
+        stats.put("journalPendingRecords", jobJournal.getPendingCount());
+        stats.put("jobsRunning", jobWatchdog.getRunningCount());
+        stats.put("jobsQueued", jobScheduler.getQueuedCount());
+        stats.put("jobsActive", jobScheduler.getActiveCount());
+        stats.put("agentWorkers", agentPool.getLiveWorkers());
+        stats.put("chunkCacheHits", chunkCache.getHits());
+        stats.put("chunkCacheMisses", chunkCache.getMisses());
+        stats.put("spoolObjects", uploadSpool.getStoredObjectCount());
+        stats.put("templateCacheSize", templateStyleCache.getSize());
+        stats.put("templateCacheHits", templateStyleCache.getHits());
+        stats.put("templateCacheMisses", templateStyleCache.getMisses());
+        stats.put("templateCacheEvictions", templateStyleCache.getEvictions());
+        stats.put("resultCacheSize", resultCache.getSize());
+        stats.put("resultCacheBytes", resultCache.getTotalBytes());
+        stats.put("resultCacheHits", resultCache.getHits());
+        stats.put("resultCacheMisses", resultCache.getMisses());
+        stats.put("statusSubscribers", statusPublisher.getSubscriberCount());
+        return stats;
     }
 
     public String testPythonAgent() {
@@ -233,61 +767,20 @@ public class DocumentProcessingService {
             System.out.println("   pythonAgentPath: " + pythonAgentPath);
             System.out.println("   pythonExecutable: " + pythonExecutable);
 
-            // 3. Пробуем разные пути к агенту
-            System.out.println("3. Trying different paths:");
-
-            File[] possibleAgentFiles = {
-                    // Относительный путь из конфигурации
-                    new File(pythonAgentPath, "main.py"),
-                    // Относительно backend папки
-                    new File("../python_agent/main.py"),
-                    // Абсолютный путь (для отладки)
-                    new File("D:/Programming/UTZAI/python_agent/main.py"),
-                    // Через parent directory
-                    new File(currentDir.getParentFile(), "python_agent/main.py")
-            };
-
-            File agentFile = null;
-            for (File file : possibleAgentFiles) {
-                System.out.println("   - " + file.getAbsolutePath() + ": " +
-                        (file.exists() ? "FOUND" : "NOT FOUND"));
-                if (file.exists() && agentFile == null) {
-                    agentFile = file;
-                }
-            }
-
-            if (agentFile == null) {
-                return "Python agent not found in any location!";
-            }
-
-            System.out.println("4. Using agent file: " + agentFile.getAbsolutePath());
-
-            // 4. Пробуем разные python команды
-            System.out.println("5. Testing Python commands:");
-            String[] pythonCommands = {"python", "python3", "py"};
-            String pythonCmd = null;
-
-            for (String cmd : pythonCommands) {
-                try {
-                    Process p = new ProcessBuilder(cmd, "--version").start();
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(p.getInputStream()));
-                    String version = reader.readLine();
-                    p.waitFor();
-                    System.out.println("   - " + cmd + ": " + (version != null ? version : "found"));
-                    if (pythonCmd == null) {
-                        pythonCmd = cmd;
-                    }
-                } catch (Exception e) {
-                    System.out.println("   - " + cmd + ": ❌ " + e.getMessage());
-                }
-            }
-
-            if (pythonCmd == null) {
-                return "No Python command found! Tried: python, python3, py";
+            // 3. Агент - там же, где его берут задания (AgentLocator)
+            File agentFile;
+            try {
+                agentFile = agentLocator.agentFile();
+            } catch (RuntimeException e) {
+                return e.getMessage();
             }
+            System.out.println("3. Using agent file: " + agentFile.getAbsolutePath());
 
-            System.out.println("6. Using Python command: " + pythonCmd);
+            // 4. Интерпретатор из конфигурации, проверенный при запуске
+            String pythonCmd = pythonExecutable;
+            System.out.println("4. Using Python command: " + pythonCmd + " ("
+                    + (agentLocator.getInterpreterVersion() != null
+                    ? agentLocator.getInterpreterVersion() : "not validated at startup") + ")");
 
             // 5. Запускаем Python агента
             ProcessBuilder pb = new ProcessBuilder(
@@ -296,7 +789,7 @@ public class DocumentProcessingService {
                     "--test"
             );
 
-            System.out.println("7. Command: " + String.join(" ", pb.command()));
+            System.out.println("5. Command: " + String.join(" ", pb.command()));
 
             Process process = pb.start();
 
@@ -323,7 +816,7 @@ public class DocumentProcessingService {
             }
 
             int exitCode = process.waitFor();
-            System.out.println("8. Exit code: " + exitCode);
+            System.out.println("6. Exit code: " + exitCode);
 
             return "Exit code: " + exitCode + "\n\n" + output.toString();
 
@@ -333,4 +826,30 @@ public class DocumentProcessingService {
             return "Error: " + e.getMessage();
         }
     }
-}
\ No newline at end of file
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(dot) : "";
+    }
+
+    /**
+     * Текущая фаза агента: время между строками PROGRESS пишется в метрики
+     * с меткой предыдущего значения прогресса.
+     */
+    private final class AgentPhase {
+        private String name = "start";
+        private long since = System.nanoTime();
+        private volatile String lastError;
+
+        void next(int progress) {
+            long now = System.nanoTime();
+            metrics.recordAgentPhase(name, now - since);
+            name = progress >= 0 && progress < PHASE_NAMES.length ? PHASE_NAMES[progress] : String.valueOf(progress);
+            since = now;
+        }
+
+        long elapsed() {
+            return System.nanoTime() - since;
+        }
+    }
+}
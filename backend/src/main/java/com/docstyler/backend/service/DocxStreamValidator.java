@@ -0,0 +1,324 @@
+package com.docstyler.backend.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Проверка структуры .docx (zip) по мере поступления байтов, без буферизации файла.
+ * Читает локальные заголовки записей подряд: сигнатуры, метод сжатия и имена.
+ * Размерам из заголовков не доверяет: каждая сжатая запись распаковывается Inflater'ом,
+ * предел uncompressed считается по реальному выходу, а объявленные размеры и CRC
+ * (из заголовка или дескриптора данных) сверяются с фактическими. Когда начинается
+ * центральный каталог, проверяется наличие обязательных частей документа.
+ * Не потокобезопасен: вызывается под блокировкой загрузки.
+ */
+final class DocxStreamValidator {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+
+    private static final int HEADER_REST_SIZE = 26;
+    private static final int MAX_NAME_LENGTH = 1024;
+    private static final int MAX_ENTRIES = 10_000;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    private static final String CONTENT_TYPES = "[Content_Types].xml";
+    private static final String DOCUMENT_PART = "word/document.xml";
+
+    private enum State { SIGNATURE, HEADER, NAME, SKIP, STORED, INFLATE, DESCRIPTOR, DESCRIPTOR_SIZES, CENTRAL }
+
+    private final long maxUncompressedBytes;
+    private final byte[] buffer = new byte[MAX_NAME_LENGTH];
+    private final byte[] scratch = new byte[16 * 1024];
+    private final Set<String> entries = new HashSet<>();
+    private final CRC32 crc = new CRC32();
+
+    private State state = State.SIGNATURE;
+    private int needed = 4;
+    private int filled;
+    private long skipRemaining;
+    private State afterSkip;
+
+    private int flags;
+    private int method;
+    private long compressedSize;
+    private long uncompressedSize;
+    private long expectedCrc;
+    private int extraLength;
+    private String entryName;
+    private long storedRemaining;
+    private long actualCompressed;
+    private long actualUncompressed;
+    private long uncompressedTotal;
+    private Inflater inflater;
+
+    DocxStreamValidator(long maxUncompressedBytes) {
+        this.maxUncompressedBytes = maxUncompressedBytes;
+    }
+
+    /**
+     * Очередная порция файла; при нарушении структуры - UploadRejectedException.
+     */
+    void update(byte[] data, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            switch (state) {
+                case CENTRAL -> {
+                    // Записи уже проверены, центральный каталог и хвост архива не разбираем
+                    return;
+                }
+                case SKIP -> {
+                    int n = (int) Math.min(skipRemaining, end - pos);
+                    pos += n;
+                    skipRemaining -= n;
+                    if (skipRemaining == 0) {
+                        enter(afterSkip);
+                    }
+                }
+                case STORED -> {
+                    int n = (int) Math.min(storedRemaining, end - pos);
+                    crc.update(data, pos, n);
+                    addUncompressed(n);
+                    pos += n;
+                    storedRemaining -= n;
+                    if (storedRemaining == 0) {
+                        entryEnded(compressedSize, compressedSize);
+                    }
+                }
+                case INFLATE -> pos = inflate(data, pos, end);
+                default -> {
+                    int n = Math.min(needed - filled, end - pos);
+                    System.arraycopy(data, pos, buffer, filled, n);
+                    filled += n;
+                    pos += n;
+                    if (filled == needed) {
+                        collected();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Файл получен целиком: архив должен был дойти до центрального каталога.
+     */
+    void finish() {
+        if (state != State.CENTRAL) {
+            throw new UploadRejectedException("Архив .docx обрывается: файл получен не полностью или повреждён");
+        }
+    }
+
+    void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private void collected() {
+        switch (state) {
+            case SIGNATURE -> {
+                int signature = readInt(0);
+                if (signature == LOCAL_HEADER) {
+                    expect(State.HEADER, HEADER_REST_SIZE);
+                } else if (signature == CENTRAL_HEADER && !entries.isEmpty()) {
+                    checkRequiredParts();
+                    state = State.CENTRAL;
+                } else if (entries.isEmpty()) {
+                    throw new UploadRejectedException("Файл не является документом .docx (не zip архив)");
+                } else {
+                    throw new UploadRejectedException("Повреждённый архив .docx: неожиданная сигнатура после записи "
+                            + entries.size());
+                }
+            }
+            case HEADER -> readHeader();
+            case NAME -> readName();
+            case DESCRIPTOR -> {
+                // Сигнатура дескриптора необязательна: без неё первые 4 байта - уже CRC
+                int first = readInt(0);
+                if (first == DATA_DESCRIPTOR) {
+                    expect(State.DESCRIPTOR_SIZES, 12);
+                } else {
+                    expectedCrc = first & 0xFFFFFFFFL;
+                    expect(State.DESCRIPTOR_SIZES, 8);
+                }
+            }
+            case DESCRIPTOR_SIZES -> {
+                int at = needed == 12 ? 4 : 0;
+                if (needed == 12) {
+                    expectedCrc = readInt(0) & 0xFFFFFFFFL;
+                }
+                compressedSize = readInt(at) & 0xFFFFFFFFL;
+                uncompressedSize = readInt(at + 4) & 0xFFFFFFFFL;
+                checkEntry();
+                expect(State.SIGNATURE, 4);
+            }
+            default -> throw new IllegalStateException("Unexpected state " + state);
+        }
+    }
+
+    private void readHeader() {
+        flags = readShort(2);
+        method = readShort(4);
+        expectedCrc = readInt(10) & 0xFFFFFFFFL;
+        compressedSize = readInt(14) & 0xFFFFFFFFL;
+        uncompressedSize = readInt(18) & 0xFFFFFFFFL;
+        int nameLength = readShort(22);
+        extraLength = readShort(24);
+
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            throw new UploadRejectedException("Зашифрованные документы не поддерживаются");
+        }
+        if (method != 0 && method != 8) {
+            throw new UploadRejectedException("Неподдерживаемый метод сжатия в архиве .docx: " + method);
+        }
+        if (compressedSize == ZIP64_MARKER || uncompressedSize == ZIP64_MARKER) {
+            throw new UploadRejectedException("Архивы ZIP64 не поддерживаются");
+        }
+        if (nameLength == 0 || nameLength > MAX_NAME_LENGTH) {
+            throw new UploadRejectedException("Повреждённый архив .docx: недопустимая длина имени записи");
+        }
+        expect(State.NAME, nameLength);
+    }
+
+    private void readName() {
+        String name = new String(buffer, 0, needed, StandardCharsets.UTF_8);
+        if (name.startsWith("/") || name.contains("..") || name.indexOf('\\') >= 0) {
+            throw new UploadRejectedException("Недопустимое имя записи в архиве .docx: " + name);
+        }
+        if (!entries.add(name)) {
+            throw new UploadRejectedException("Повторяющаяся запись в архиве .docx: " + name);
+        }
+        if (entries.size() > MAX_ENTRIES) {
+            throw new UploadRejectedException("Слишком много записей в архиве .docx");
+        }
+
+        entryName = name;
+        crc.reset();
+        if (method == 8) {
+            skip(extraLength, State.INFLATE);
+        } else if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            // Без сжатия и без размера в заголовке конец записи найти нельзя
+            throw new UploadRejectedException("Повреждённый архив .docx: запись " + name + " без размера");
+        } else if (compressedSize != uncompressedSize) {
+            throw new UploadRejectedException("Повреждённый архив .docx: размеры записи " + name + " не совпадают");
+        } else {
+            storedRemaining = compressedSize;
+            skip(extraLength, State.STORED);
+        }
+    }
+
+    private int inflate(byte[] data, int pos, int end) {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setInput(data, pos, end - pos);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(scratch);
+                if (n > 0) {
+                    crc.update(scratch, 0, n);
+                    addUncompressed(n);
+                    if ((flags & FLAG_DATA_DESCRIPTOR) == 0 && inflater.getBytesWritten() > uncompressedSize) {
+                        throw new UploadRejectedException("Повреждённый архив .docx: запись " + entryName
+                                + " больше объявленного размера");
+                    }
+                } else if (inflater.needsInput()) {
+                    return end;
+                } else if (inflater.needsDictionary()) {
+                    throw new UploadRejectedException("Повреждённые сжатые данные в архиве .docx");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new UploadRejectedException("Повреждённые сжатые данные в архиве .docx: " + e.getMessage());
+        }
+
+        int consumed = end - pos - inflater.getRemaining();
+        long inflatedCompressed = inflater.getBytesRead();
+        long inflatedSize = inflater.getBytesWritten();
+        inflater.reset();
+        entryEnded(inflatedCompressed, inflatedSize);
+        return pos + consumed;
+    }
+
+    /**
+     * Данные записи закончились. Без дескриптора сверяем с заголовком сразу,
+     * иначе - после чтения дескриптора.
+     */
+    private void entryEnded(long compressed, long uncompressed) {
+        actualCompressed = compressed;
+        actualUncompressed = uncompressed;
+        if ((flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            expect(State.DESCRIPTOR, 4);
+        } else {
+            checkEntry();
+            expect(State.SIGNATURE, 4);
+        }
+    }
+
+    private void checkEntry() {
+        if (actualCompressed != compressedSize || actualUncompressed != uncompressedSize) {
+            throw new UploadRejectedException("Повреждённый архив .docx: размеры записи " + entryName
+                    + " не совпадают с заголовком");
+        }
+        if (crc.getValue() != expectedCrc) {
+            throw new UploadRejectedException("Повреждённый архив .docx: не совпадает CRC записи " + entryName);
+        }
+    }
+
+    private void addUncompressed(long bytes) {
+        uncompressedTotal += bytes;
+        if (uncompressedTotal > maxUncompressedBytes) {
+            throw new UploadRejectedException("Распакованное содержимое .docx превышает "
+                    + maxUncompressedBytes / (1024 * 1024) + " МБ");
+        }
+    }
+
+    private void checkRequiredParts() {
+        if (!entries.contains(CONTENT_TYPES) || !entries.contains(DOCUMENT_PART)) {
+            throw new UploadRejectedException("Архив не является документом Word: нет "
+                    + (entries.contains(CONTENT_TYPES) ? DOCUMENT_PART : CONTENT_TYPES));
+        }
+    }
+
+    private void expect(State next, int bytes) {
+        state = next;
+        needed = bytes;
+        filled = 0;
+    }
+
+    private void enter(State next) {
+        if (next == State.SIGNATURE) {
+            expect(State.SIGNATURE, 4);
+        } else {
+            state = next;
+        }
+    }
+
+    private void skip(long bytes, State next) {
+        if (bytes == 0) {
+            enter(next);
+            return;
+        }
+        state = State.SKIP;
+        skipRemaining = bytes;
+        afterSkip = next;
+    }
+
+    private int readShort(int at) {
+        return (buffer[at] & 0xFF) | (buffer[at + 1] & 0xFF) << 8;
+    }
+
+    private int readInt(int at) {
+        return readShort(at) | readShort(at + 2) << 16;
+    }
+}
@@ -0,0 +1,540 @@
+package com.docstyler.backend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Детерминированная стилизация DOCX прямо в JVM, без Python агента.
+ * Стили шаблона (word/styles.xml) переносятся в документ черновика - стили черновика,
+ * которых в шаблоне нет, дописываются к ним, чтобы ссылки на них не потеряли оформления, - а абзацам
+ * назначаются стили по тем же правилам, что и в main.py: первая короткая строка -
+ * заголовок документа, названия разделов - заголовки второго уровня.
+ * word/document.xml читается и пишется потоком StAX, в памяти держится только
+ * текущий абзац, остальные части архива копируются как есть. Распакованный объём
+ * каждого архива ограничен uploads.docx.max-uncompressed-mb - защита от zip-бомб.
+ */
+@Component
+@Slf4j
+public class DocxStyleEngine {
+
+    /**
+     * Версия правил стилизации - входит в ключ кэша результатов.
+     */
+    public static final String VERSION = "docx-2";
+
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String DOCUMENT_PART = "word/document.xml";
+    private static final String STYLES_PART = "word/styles.xml";
+    private static final int TITLE_MAX_LENGTH = 50;
+
+    private static final QName STYLE = new QName(W_NS, "style");
+    private static final QName STYLE_ID = new QName(W_NS, "styleId");
+    private static final QName P = new QName(W_NS, "p");
+    private static final QName P_PR = new QName(W_NS, "pPr");
+    private static final QName P_STYLE = new QName(W_NS, "pStyle");
+    private static final QName R_PR = new QName(W_NS, "rPr");
+    private static final QName T = new QName(W_NS, "t");
+    private static final QName VAL = new QName(W_NS, "val");
+    // Прямое оформление шрифта, которое перекрыло бы стили шаблона
+    private static final Set<QName> DIRECT_FONT_FORMATTING = Set.of(
+            new QName(W_NS, "rFonts"), new QName(W_NS, "sz"), new QName(W_NS, "szCs"));
+
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+    // Стили черновика приходят со своими префиксами пространств имён - недостающие объявит писатель
+    private final XMLOutputFactory stylesOutputFactory = XMLOutputFactory.newInstance();
+
+    @Value("${processing.docx.enabled:true}")
+    private boolean enabled;
+
+    @Value("${processing.docx.strip-direct-formatting:true}")
+    private boolean stripDirectFormatting;
+
+    @Value("${uploads.docx.max-uncompressed-mb:256}")
+    private long maxUncompressedMb;
+
+    public DocxStyleEngine() {
+        inputFactory = XMLInputFactory.newInstance();
+        // Документы приходят от пользователей: никаких DTD и внешних сущностей
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        stylesOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    /**
+     * Версия правил вместе с настройками, от которых зависит результат, - для ключа
+     * кэша результатов: смена настройки не должна отдавать результаты, сделанные по-старому.
+     */
+    public String version() {
+        if (!enabled) {
+            return "docx-off";
+        }
+        return VERSION + (stripDirectFormatting ? "+strip-direct" : "+keep-direct");
+    }
+
+    /**
+     * Шаблон и черновик - оба DOCX, и движок включён.
+     */
+    public boolean supports(Path template, Path draft) {
+        return enabled && isDocx(template) && isDocx(draft);
+    }
+
+    /**
+     * Пишет стилизованный черновик в output.
+     */
+    public void apply(Path template, Path draft, Path output) throws IOException {
+        try (ZipFile templateZip = new ZipFile(template.toFile());
+             ZipFile draftZip = new ZipFile(draft.toFile());
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+
+            long maxBytes = maxUncompressedMb * 1024 * 1024;
+            long[] templateRemaining = {maxBytes};
+            long[] draftRemaining = {maxBytes};
+
+            ZipEntry templateStyles = templateZip.getEntry(STYLES_PART);
+            if (templateStyles == null) {
+                throw new IOException("В шаблоне нет описания стилей (" + STYLES_PART + ")");
+            }
+            StyleIds styles;
+            try (InputStream in = limited(templateZip.getInputStream(templateStyles), templateRemaining)) {
+                styles = readStyleIds(in);
+            }
+
+            boolean stylesWritten = false;
+            Enumeration<? extends ZipEntry> entries = draftZip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                switch (entry.getName()) {
+                    case STYLES_PART -> {
+                        List<List<XMLEvent>> draftOnly;
+                        try (InputStream in = limited(draftZip.getInputStream(entry), draftRemaining)) {
+                            draftOnly = readMissingStyles(in, styles.ids());
+                        }
+                        try (InputStream in = limited(templateZip.getInputStream(templateStyles), templateRemaining)) {
+                            writeMergedStyles(in, out, draftOnly);
+                        }
+                        stylesWritten = true;
+                    }
+                    case DOCUMENT_PART -> {
+                        try (InputStream in = limited(draftZip.getInputStream(entry), draftRemaining)) {
+                            transformDocument(in, out, styles);
+                        }
+                    }
+                    default -> {
+                        try (InputStream in = limited(draftZip.getInputStream(entry), draftRemaining)) {
+                            in.transferTo(out);
+                        }
+                    }
+                }
+                out.closeEntry();
+            }
+
+            if (!stylesWritten) {
+                // Без своей части стилей черновик потребовал бы правки связей пакета
+                throw new IOException("В черновике нет описания стилей (" + STYLES_PART + ")");
+            }
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof SizeLimitException limit) {
+                throw limit;
+            }
+            throw new IOException("Некорректный XML в документе: " + e.getMessage(), e);
+        }
+    }
+
+    private InputStream limited(InputStream in, long[] remaining) {
+        return new LimitedInputStream(in, remaining, maxUncompressedMb);
+    }
+
+    /**
+     * Идентификаторы нужных стилей шаблона по их именам (имена встроенных стилей
+     * в styles.xml не зависят от языка Word, идентификаторы - зависят).
+     */
+    private StyleIds readStyleIds(InputStream stylesXml) throws XMLStreamException {
+        Map<String, String> idsByName = new HashMap<>();
+        Set<String> ids = new HashSet<>();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(stylesXml);
+        try {
+            String styleId = null;
+            boolean paragraphStyle = false;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT || !W_NS.equals(reader.getNamespaceURI())) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "style" -> {
+                        styleId = reader.getAttributeValue(W_NS, "styleId");
+                        if (styleId != null) {
+                            ids.add(styleId);
+                        }
+                        paragraphStyle = "paragraph".equals(reader.getAttributeValue(W_NS, "type"));
+                    }
+                    case "name" -> {
+                        String name = reader.getAttributeValue(W_NS, "val");
+                        if (paragraphStyle && styleId != null && name != null) {
+                            idsByName.putIfAbsent(name.toLowerCase(), styleId);
+                        }
+                    }
+                    default -> { }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        String heading1 = idsByName.get("heading 1");
+        String title = idsByName.getOrDefault("title", heading1);
+        String heading2 = idsByName.getOrDefault("heading 2", heading1);
+        return new StyleIds(title, heading2, ids);
+    }
+
+    /**
+     * Стили черновика (любого типа: абзацев, знаков, таблиц, списков), идентификаторов
+     * которых нет в шаблоне, - каждый как последовательность событий w:style целиком.
+     */
+    private List<List<XMLEvent>> readMissingStyles(InputStream stylesXml, Set<String> templateIds)
+            throws XMLStreamException {
+        List<List<XMLEvent>> missing = new ArrayList<>();
+        XMLEventReader reader = inputFactory.createXMLEventReader(stylesXml);
+        try {
+            List<XMLEvent> style = null;
+            int depth = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    StartElement start = event.asStartElement();
+                    if (depth == 2 && STYLE.equals(start.getName())) {
+                        Attribute id = start.getAttributeByName(STYLE_ID);
+                        if (id != null && !templateIds.contains(id.getValue())) {
+                            style = new ArrayList<>();
+                        }
+                    }
+                }
+                if (style != null) {
+                    style.add(event);
+                }
+                if (event.isEndElement()) {
+                    if (depth == 2 && style != null) {
+                        missing.add(style);
+                        style = null;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return missing;
+    }
+
+    /**
+     * styles.xml шаблона целиком, а перед закрытием w:styles - стили только из черновика.
+     */
+    private void writeMergedStyles(InputStream templateStyles, OutputStream out, List<List<XMLEvent>> draftOnly)
+            throws XMLStreamException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(templateStyles);
+        XMLEventWriter writer = stylesOutputFactory.createXMLEventWriter(out, "UTF-8");
+        int depth = 0;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement() && --depth == 0) {
+                for (List<XMLEvent> style : draftOnly) {
+                    for (XMLEvent styleEvent : style) {
+                        writer.add(styleEvent);
+                    }
+                }
+            }
+            writer.add(event);
+        }
+        writer.flush();
+        writer.close();
+        reader.close();
+        if (!draftOnly.isEmpty()) {
+            log.debug("DOCX styles merged: {} styles kept from the draft", draftOnly.size());
+        }
+    }
+
+    private void transformDocument(InputStream in, OutputStream out, StyleIds styles) throws XMLStreamException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+
+        List<XMLEvent> paragraph = new ArrayList<>();
+        int paragraphDepth = 0;
+        boolean titleSeen = false;
+        int paragraphs = 0;
+        int restyled = 0;
+
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+
+            if (event.isStartElement() && P.equals(event.asStartElement().getName())) {
+                paragraphDepth++;
+            }
+            if (paragraphDepth == 0) {
+                writer.add(event);
+                continue;
+            }
+
+            paragraph.add(event);
+            if (event.isEndElement() && P.equals(event.asEndElement().getName()) && --paragraphDepth == 0) {
+                // Абзац целиком: решаем, какой у него стиль, и выпускаем его
+                String text = paragraphText(paragraph).strip();
+                String style = null;
+                if (!titleSeen && !text.isEmpty()) {
+                    titleSeen = true;
+                    if (text.length() < TITLE_MAX_LENGTH) {
+                        style = styles.title();
+                    }
+                }
+                if (style == null && SectionProcessor.SECTION_HEADINGS.contains(text)) {
+                    style = styles.heading2();
+                }
+                if (style != null) {
+                    restyled++;
+                }
+                writeParagraph(writer, paragraph, style);
+                paragraph.clear();
+                paragraphs++;
+            }
+        }
+
+        writer.flush();
+        writer.close();
+        reader.close();
+        log.debug("DOCX document transformed: {} paragraphs, {} restyled", paragraphs, restyled);
+    }
+
+    private static String paragraphText(List<XMLEvent> paragraph) {
+        StringBuilder text = new StringBuilder();
+        boolean inText = false;
+        for (XMLEvent event : paragraph) {
+            if (event.isStartElement() && T.equals(event.asStartElement().getName())) {
+                inText = true;
+            } else if (event.isEndElement() && T.equals(event.asEndElement().getName())) {
+                inText = false;
+            } else if (inText && event.isCharacters()) {
+                text.append(event.asCharacters().getData());
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Выпускает абзац, при необходимости назначив ему стиль и убрав прямое
+     * оформление шрифта. w:pStyle по схеме - первый элемент w:pPr.
+     */
+    private void writeParagraph(XMLEventWriter writer, List<XMLEvent> paragraph, String style)
+            throws XMLStreamException {
+        int depth = 0;
+        int pPrDepth = -1;
+        int skipDepth = -1;
+        boolean styleWritten = style == null;
+
+        for (int i = 0; i < paragraph.size(); i++) {
+            XMLEvent event = paragraph.get(i);
+
+            if (event.isStartElement()) {
+                depth++;
+                StartElement start = event.asStartElement();
+                QName name = start.getName();
+
+                if (skipDepth >= 0) {
+                    continue;
+                }
+                if (stripDirectFormatting && DIRECT_FONT_FORMATTING.contains(name) && isInsideRunProperties(paragraph, i)) {
+                    skipDepth = depth;
+                    continue;
+                }
+                if (!styleWritten && P_STYLE.equals(name) && depth == pPrDepth + 1) {
+                    writer.add(withVal(start, style));
+                    styleWritten = true;
+                    continue;
+                }
+                if (!styleWritten && depth == pPrDepth + 1 && pPrDepth > 0) {
+                    // В w:pPr нет своего w:pStyle - вставляем его первым
+                    writeStyleElement(writer, start.getName().getPrefix(), style);
+                    styleWritten = true;
+                }
+
+                writer.add(event);
+                if (depth == 1 && !styleWritten) {
+                    XMLEvent next = nextElement(paragraph, i + 1);
+                    if (next == null || !next.isStartElement() || !P_PR.equals(next.asStartElement().getName())) {
+                        // У абзаца нет w:pPr - добавляем его целиком
+                        String prefix = name.getPrefix();
+                        writer.add(eventFactory.createStartElement(prefix, W_NS, "pPr"));
+                        writeStyleElement(writer, prefix, style);
+                        writer.add(eventFactory.createEndElement(prefix, W_NS, "pPr"));
+                        styleWritten = true;
+                    }
+                } else if (depth == 2 && P_PR.equals(name)) {
+                    pPrDepth = depth;
+                }
+            } else if (event.isEndElement()) {
+                if (skipDepth >= 0) {
+                    if (depth-- == skipDepth) {
+                        skipDepth = -1;
+                    }
+                    continue;
+                }
+                if (!styleWritten && depth == pPrDepth) {
+                    // Пустой w:pPr
+                    writeStyleElement(writer, event.asEndElement().getName().getPrefix(), style);
+                    styleWritten = true;
+                }
+                if (depth == pPrDepth) {
+                    pPrDepth = -1;
+                }
+                depth--;
+                writer.add(event);
+            } else if (skipDepth < 0) {
+                writer.add(event);
+            }
+        }
+    }
+
+    private void writeStyleElement(XMLEventWriter writer, String prefix, String style) throws XMLStreamException {
+        writer.add(eventFactory.createStartElement(prefix, W_NS, "pStyle",
+                List.of(eventFactory.createAttribute(prefix, W_NS, "val", style)).iterator(), null));
+        writer.add(eventFactory.createEndElement(prefix, W_NS, "pStyle"));
+    }
+
+    private StartElement withVal(StartElement start, String value) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<Attribute> it = start.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = it.next();
+            if (VAL.equals(attribute.getName())) {
+                attributes.add(eventFactory.createAttribute(attribute.getName(), value));
+            } else {
+                attributes.add(attribute);
+            }
+        }
+        return eventFactory.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+    }
+
+    /**
+     * Элемент i лежит непосредственно в w:rPr (свойствах прогона или знака абзаца).
+     */
+    private static boolean isInsideRunProperties(List<XMLEvent> paragraph, int i) {
+        int depth = 0;
+        for (int j = i - 1; j >= 0; j--) {
+            XMLEvent event = paragraph.get(j);
+            if (event.isEndElement()) {
+                depth++;
+            } else if (event.isStartElement()) {
+                if (depth == 0) {
+                    return R_PR.equals(event.asStartElement().getName());
+                }
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    private static XMLEvent nextElement(List<XMLEvent> paragraph, int from) {
+        for (int i = from; i < paragraph.size(); i++) {
+            XMLEvent event = paragraph.get(i);
+            if (event.isStartElement() || event.isEndElement()) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDocx(Path file) {
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            return zip.getEntry(DOCUMENT_PART) != null;
+        } catch (ZipException e) {
+            return false;
+        } catch (IOException e) {
+            log.debug("Could not inspect {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Считает распакованные байты всех частей одного архива; сверх предела - SizeLimitException.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long[] remaining;
+        private final long maxMb;
+
+        private LimitedInputStream(InputStream in, long[] remaining, long maxMb) {
+            super(in);
+            this.remaining = remaining;
+            this.maxMb = maxMb;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws SizeLimitException {
+            remaining[0] -= n;
+            if (remaining[0] < 0) {
+                throw new SizeLimitException("Распакованный документ больше " + maxMb + " МБ");
+            }
+        }
+    }
+
+    private static final class SizeLimitException extends IOException {
+        private SizeLimitException(String message) {
+            super(message);
+        }
+    }
+
+    private record StyleIds(String title, String heading2, Set<String> ids) {
+    }
+}
@@ -0,0 +1,210 @@
+package com.docstyler.backend.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Очередь заданий с отдельной очередью на каждого пользователя и выборкой
+ * по алгоритму deficit round-robin: пользователи обходятся по кругу, за один
+ * подход пользователь получает столько заданий, сколько набрал веса.
+ * Пользователь с весом 4 получает вчетверо больше слотов, чем с весом 1,
+ * но никто не ждёт дольше одного круга.
+ */
+final class FairJobQueue<T> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Map<String, Flow<T>> flows = new HashMap<>();
+    // Пользователи с непустой очередью в порядке обхода; первый сейчас обслуживается
+    private final ArrayDeque<Flow<T>> active = new ArrayDeque<>();
+    private int size;
+
+    /**
+     * Добавляет задание в очередь пользователя; false, если общая очередь заполнена.
+     */
+    boolean offer(String userId, double weight, T item, int capacity) {
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                return false;
+            }
+            Flow<T> flow = flows.get(userId);
+            if (flow == null) {
+                flow = new Flow<>(userId);
+                flows.put(userId, flow);
+                active.addLast(flow);
+            }
+            flow.weight = weight;
+            flow.items.addLast(item);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Следующее задание по очереди или null, если за timeout ничего не появилось.
+     */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+
+            while (true) {
+                Flow<T> flow = active.peekFirst();
+                if (flow.deficit < 1) {
+                    // Пользователь дошёл до начала круга - начисляем ему квант
+                    flow.deficit += flow.weight;
+                    if (flow.deficit < 1) {
+                        active.addLast(active.pollFirst());
+                        continue;
+                    }
+                }
+
+                T item = flow.items.pollFirst();
+                flow.deficit -= 1;
+                size--;
+                if (flow.items.isEmpty()) {
+                    // Опустевшая очередь не копит кредит на будущее
+                    active.pollFirst();
+                    flows.remove(flow.userId);
+                } else if (flow.deficit < 1) {
+                    active.addLast(active.pollFirst());
+                }
+                return item;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Убирает из очереди первое подходящее задание и возвращает его; null, если такого нет.
+     */
+    T remove(Predicate<T> matcher) {
+        lock.lock();
+        try {
+            for (Iterator<Flow<T>> flowIterator = active.iterator(); flowIterator.hasNext(); ) {
+                Flow<T> flow = flowIterator.next();
+                for (Iterator<T> items = flow.items.iterator(); items.hasNext(); ) {
+                    T item = items.next();
+                    if (matcher.test(item)) {
+                        items.remove();
+                        size--;
+                        if (flow.items.isEmpty()) {
+                            flowIterator.remove();
+                            flows.remove(flow.userId);
+                        }
+                        return item;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Позиция задания в порядке выдачи, начиная с 1; 0 - если его нет в очереди.
+     * Считается проигрыванием того же обхода на копии состояния.
+     */
+    int positionOf(Predicate<T> matcher) {
+        lock.lock();
+        try {
+            List<SimulatedFlow<T>> round = new ArrayList<>(active.size());
+            for (Flow<T> flow : active) {
+                round.add(new SimulatedFlow<>(flow.weight, flow.deficit, flow.items.iterator()));
+            }
+            ArrayDeque<SimulatedFlow<T>> order = new ArrayDeque<>(round);
+
+            int position = 0;
+            while (!order.isEmpty()) {
+                SimulatedFlow<T> flow = order.peekFirst();
+                if (flow.deficit < 1) {
+                    flow.deficit += flow.weight;
+                    if (flow.deficit < 1) {
+                        order.addLast(order.pollFirst());
+                        continue;
+                    }
+                }
+
+                T item = flow.items.next();
+                flow.deficit -= 1;
+                position++;
+                if (matcher.test(item)) {
+                    return position;
+                }
+                if (!flow.items.hasNext()) {
+                    order.pollFirst();
+                } else if (flow.deficit < 1) {
+                    order.addLast(order.pollFirst());
+                }
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Число пользователей, у которых есть задания в очереди.
+     */
+    int activeUsers() {
+        lock.lock();
+        try {
+            return active.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Flow<T> {
+        private final String userId;
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        private double weight = 1;
+        private double deficit;
+
+        private Flow(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static final class SimulatedFlow<T> {
+        private final double weight;
+        private final Iterator<T> items;
+        private double deficit;
+
+        private SimulatedFlow(double weight, double deficit, Iterator<T> items) {
+            this.weight = weight;
+            this.deficit = deficit;
+            this.items = items;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Журнал заданий на диске, чтобы очередь и готовые результаты переживали перезапуск.
+ * Записи - JSON строки, добавляются только в конец. Поток обработки лишь кладёт запись
+ * в очередь, на диск их пакетами пишет отдельный поток (write-behind). Когда в журнале
+ * накапливается много устаревших записей, он переписывается по последним состояниям.
+ * Статусы по-прежнему читаются только из памяти.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class JobJournal {
+
+    private static final String JOURNAL_FILE = "jobs.log";
+
+    private final ObjectMapper objectMapper;
+
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    // Последняя запись по каждому заданию - из них собирается сжатый журнал
+    private final Map<String, String> latest = new ConcurrentHashMap<>();
+    private final Map<String, String> lastJournaledState = new ConcurrentHashMap<>();
+
+    @Value("${jobs.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${jobs.journal.directory:./journal}")
+    private String journalDirectory;
+
+    @Value("${jobs.journal.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${jobs.journal.fsync:true}")
+    private boolean fsync;
+
+    @Value("${jobs.journal.compact-threshold:10000}")
+    private int compactThreshold;
+
+    private Path journalFile;
+    private FileChannel channel;
+    private Writer writer;
+    private ScheduledExecutorService flusher;
+    private int recordsSinceCompaction;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path dir = Paths.get(journalDirectory);
+        Files.createDirectories(dir);
+        journalFile = dir.resolve(JOURNAL_FILE);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Читает журнал и возвращает последнее состояние каждого задания, затем
+     * переписывает журнал в сжатом виде и начинает приём новых записей.
+     */
+    public synchronized List<JournaledJob> replay() {
+        if (!enabled || channel != null) {
+            return List.of();
+        }
+
+        Map<String, JournaledJob> jobs = new LinkedHashMap<>();
+        int lines = 0;
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    try {
+                        applyRecord(objectMapper.readTree(line), jobs);
+                    } catch (IOException e) {
+                        // Оборванная последняя строка после аварийного завершения
+                        log.warn("Skipping damaged journal record at line {}", lines);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Could not read job journal {}", journalFile, e);
+            }
+        }
+
+        for (JournaledJob job : jobs.values()) {
+            String processId = job.status().getProcessId();
+            latest.put(processId, toJson(job.status(), job.template(), job.draft()));
+            lastJournaledState.put(processId, job.status().getStatus());
+        }
+
+        try {
+            // Всё, что успели записать в очередь до восстановления, уже есть в latest
+            pending.clear();
+            compact();
+            openForAppend();
+        } catch (IOException e) {
+            log.error("Could not open job journal {}, jobs will not survive restart", journalFile, e);
+            return new ArrayList<>(jobs.values());
+        }
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+
+        log.info("Job journal replayed: {} records, {} jobs", lines, jobs.size());
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Новое задание вместе со ссылками на его файлы в хранилище загрузок.
+     */
+    public void recordSubmitted(ProcessStatus status, SpooledFile template, SpooledFile draft) {
+        if (!enabled) {
+            return;
+        }
+        lastJournaledState.put(status.getProcessId(), status.getStatus());
+        append(status.getProcessId(), toJson(status.snapshot(), ref(template), ref(draft)));
+    }
+
+    /**
+     * Пишет статус, только если сменилось состояние: прогресс после перезапуска
+     * всё равно начинается заново, поэтому каждую строку PROGRESS не журналируем.
+     */
+    public void recordStatus(ProcessStatus status) {
+        if (!enabled) {
+            return;
+        }
+        String processId = status.getProcessId();
+        String state = status.getStatus();
+        if (state.equals(lastJournaledState.put(processId, state))) {
+            return;
+        }
+
+        // Входные файлы нужны только незавершённым заданиям
+        FileRef template = null;
+        FileRef draft = null;
+        if (!status.isFinished()) {
+            JsonNode previous = readLatest(processId);
+            template = previous != null ? readRef(previous.get("template")) : null;
+            draft = previous != null ? readRef(previous.get("draft")) : null;
+        }
+        append(processId, toJson(status.snapshot(), template, draft));
+    }
+
+    public void recordRemoved(String processId) {
+        if (!enabled) {
+            return;
+        }
+        lastJournaledState.remove(processId);
+        latest.remove(processId);
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("op", "remove");
+        node.put("processId", processId);
+        pending.add(new Record(processId, node.toString()));
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+        synchronized (this) {
+            closeQuietly();
+        }
+    }
+
+    private void append(String processId, String json) {
+        latest.put(processId, json);
+        pending.add(new Record(processId, json));
+    }
+
+    /**
+     * Пишет накопившиеся записи одним пакетом и при необходимости сжимает журнал.
+     */
+    synchronized void flush() {
+        if (writer == null || pending.isEmpty()) {
+            return;
+        }
+        try {
+            Record record;
+            int written = 0;
+            while ((record = pending.poll()) != null) {
+                writer.write(record.json());
+                writer.write('\n');
+                written++;
+            }
+            writer.flush();
+            if (fsync) {
+                channel.force(false);
+            }
+            recordsSinceCompaction += written;
+
+            if (recordsSinceCompaction >= compactThreshold && recordsSinceCompaction > 2 * latest.size()) {
+                closeQuietly();
+                compact();
+                openForAppend();
+            }
+        } catch (IOException e) {
+            log.error("Could not write job journal", e);
+        }
+    }
+
+    private void compact() throws IOException {
+        Path incoming = journalFile.resolveSibling(JOURNAL_FILE + ".compact");
+        try (Writer out = Files.newBufferedWriter(incoming, StandardCharsets.UTF_8)) {
+            for (String json : latest.values()) {
+                out.write(json);
+                out.write('\n');
+            }
+        }
+        Files.move(incoming, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordsSinceCompaction = 0;
+        log.debug("Job journal compacted to {} records", latest.size());
+    }
+
+    private void openForAppend() throws IOException {
+        channel = FileChannel.open(journalFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+    }
+
+    private void closeQuietly() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not close job journal: {}", e.getMessage());
+        }
+        writer = null;
+        channel = null;
+    }
+
+    private void applyRecord(JsonNode node, Map<String, JournaledJob> jobs) throws IOException {
+        if ("remove".equals(node.path("op").asText())) {
+            jobs.remove(node.path("processId").asText());
+            return;
+        }
+        ProcessStatus status = objectMapper.treeToValue(node.get("status"), ProcessStatus.class);
+        FileRef template = readRef(node.get("template"));
+        FileRef draft = readRef(node.get("draft"));
+
+        JournaledJob previous = jobs.get(status.getProcessId());
+        if (previous != null && template == null) {
+            template = previous.template();
+            draft = previous.draft();
+        }
+        jobs.put(status.getProcessId(), new JournaledJob(status, template, draft));
+    }
+
+    private JsonNode readLatest(String processId) {
+        String json = latest.get(processId);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(json);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private String toJson(ProcessStatus status, FileRef template, FileRef draft) {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("op", "status");
+        node.set("status", objectMapper.valueToTree(status));
+        if (template != null && draft != null) {
+            node.set("template", objectMapper.valueToTree(template));
+            node.set("draft", objectMapper.valueToTree(draft));
+        }
+        return node.toString();
+    }
+
+    private FileRef readRef(JsonNode node) {
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        return new FileRef(node.path("hash").asText(), node.path("name").asText());
+    }
+
+    private static FileRef ref(SpooledFile file) {
+        return new FileRef(file.hash(), file.originalName());
+    }
+
+    /**
+     * Ссылка на загрузку в хранилище: хэш содержимого и исходное имя.
+     */
+    public record FileRef(String hash, String name) {
+    }
+
+    /**
+     * Последнее известное состояние задания; для незавершённых - и его входные файлы.
+     */
+    public record JournaledJob(ProcessStatus status, FileRef template, FileRef draft) {
+    }
+
+    private record Record(String processId, String json) {
+    }
+}
@@ -0,0 +1,104 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Статусы заданий в памяти и учёт места, занятого их рабочими директориями.
+ */
+@Component
+@Slf4j
+public class JobRegistry {
+
+    // Храним статусы в памяти вместо MongoDB
+    private final Map<String, ProcessStatus> jobs = new ConcurrentHashMap<>();
+    private final Map<String, Long> diskUsage = new ConcurrentHashMap<>();
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    @Value("${temp.directory:/tmp/docstyler}")
+    private String tempDirectory;
+
+    private final JobJournal jobJournal;
+
+    public JobRegistry(ProcessingMetrics metrics, JobJournal jobJournal) {
+        this.jobJournal = jobJournal;
+        metrics.gauge("docstyler.jobs.live", "Заданий в памяти", jobs, Map::size);
+        metrics.gauge("docstyler.jobs.disk.bytes", "Байт в директориях заданий", diskBytes, AtomicLong::get);
+    }
+
+    public void put(ProcessStatus status) {
+        jobs.put(status.getProcessId(), status);
+    }
+
+    public ProcessStatus get(String processId) {
+        return jobs.get(processId);
+    }
+
+    /**
+     * Убирает задание из памяти; директорию удаляет вызывающий.
+     */
+    public ProcessStatus remove(String processId) {
+        jobJournal.recordRemoved(processId);
+        Long bytes = diskUsage.remove(processId);
+        if (bytes != null) {
+            diskBytes.addAndGet(-bytes);
+        }
+        return jobs.remove(processId);
+    }
+
+    public Collection<ProcessStatus> getAll() {
+        return jobs.values();
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    public Path jobDirectory(String processId) {
+        return Paths.get(tempDirectory, processId);
+    }
+
+    public Path getTempRoot() {
+        return Paths.get(tempDirectory);
+    }
+
+    /**
+     * Пересчитывает размер директории задания (после того как агент записал результат).
+     */
+    public void updateDiskUsage(String processId) {
+        if (!jobs.containsKey(processId)) {
+            return;
+        }
+        long bytes = 0;
+        try (Stream<Path> files = Files.walk(jobDirectory(processId))) {
+            bytes = files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            log.debug("Could not measure job directory {}: {}", processId, e.getMessage());
+        }
+
+        Long previous = diskUsage.put(processId, bytes);
+        diskBytes.addAndGet(bytes - (previous != null ? previous : 0));
+    }
+
+    public long getDiskBytes() {
+        return diskBytes.get();
+    }
+}
@@ -0,0 +1,17 @@
+package com.docstyler.backend.service;
+
+import lombok.Getter;
+
+/**
+ * Задание не принято: очередь переполнена, клиенту стоит повторить запрос позже.
+ */
+@Getter
+public class JobRejectedException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public JobRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
@@ -0,0 +1,293 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Планировщик заданий с ограниченным числом одновременно выполняемых заданий
+ * и ограниченной очередью ожидания. Если очередь заполнена, задание сразу отклоняется.
+ * Очередь справедливая: у каждого пользователя своя, свободный слот получает
+ * следующий по кругу пользователь с учётом веса его тарифа (см. FairJobQueue).
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class JobScheduler {
+
+    private final ProcessingMetrics metrics;
+    private final UserTierService userTierService;
+
+    private final FairJobQueue<QueuedJob> queue = new FairJobQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    // Задания пользователя в очереди и в работе, вместе со слотами, занятыми при допуске запроса
+    private final Map<String, Integer> userJobs = new ConcurrentHashMap<>();
+    // Слот, занятый при допуске запроса в этом потоке и ещё не отданный заданию
+    private final ThreadLocal<String> reservedSlot = new ThreadLocal<>();
+    // Задание, которое выполняет этот воркер
+    private final ThreadLocal<QueuedJob> runningJob = new ThreadLocal<>();
+
+    @Value("${jobs.scheduler.concurrency:2}")
+    private int concurrency;
+
+    @Value("${jobs.scheduler.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${jobs.scheduler.retry-after-seconds:30}")
+    private int retryAfterSeconds;
+
+    @Value("${users.concurrency-limit.enabled:true}")
+    private boolean userLimitEnabled;
+
+    @Value("${users.max-concurrent-jobs:4}")
+    private int maxUserJobs;
+
+    private volatile boolean shutdown;
+
+    @PostConstruct
+    public void init() {
+        for (int i = 1; i <= concurrency; i++) {
+            Thread thread = new Thread(this::workerLoop, "job-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        log.info("Job scheduler started: concurrency={}, queue capacity={}", concurrency, queueCapacity);
+
+        metrics.gauge("docstyler.jobs.active", "Выполняющихся заданий", this, JobScheduler::getActiveCount);
+        metrics.gauge("docstyler.jobs.queued", "Заданий в очереди", this, JobScheduler::getQueuedCount);
+        metrics.gauge("docstyler.jobs.queued.users", "Пользователей с заданиями в очереди", queue,
+                FairJobQueue::activeUsers);
+        metrics.gauge("docstyler.executor.saturation", "Доля занятых слотов выполнения (0-1)", this,
+                scheduler -> (double) scheduler.getActiveCount() / scheduler.concurrency);
+    }
+
+    /**
+     * Занимает слот пользователя при допуске запроса: проверка потолка
+     * users.max-concurrent-jobs и учёт - один атомарный шаг, поэтому параллельные запросы
+     * не проходят проверку вместе. Первое задание, поставленное в этом же потоке,
+     * забирает слот себе; неиспользованный освобождает releaseReservation.
+     */
+    public void reserveUserSlot(String userId) {
+        if (!userLimitEnabled) {
+            return;
+        }
+        releaseReservation();
+        takeUserSlot(userId);
+        reservedSlot.set(userId);
+    }
+
+    /**
+     * Освобождает слот, занятый reserveUserSlot, если его не забрало задание.
+     * Вызывается по завершении запроса.
+     */
+    public void releaseReservation() {
+        String userId = reservedSlot.get();
+        if (userId != null) {
+            reservedSlot.remove();
+            releaseUserSlot(userId);
+        }
+    }
+
+    /**
+     * Ставит задание в очередь. onDiscard (может быть null) вызывается вместо task,
+     * если задание убрали из очереди отменой, так и не запустив. Задание без слота,
+     * занятого при допуске (пакеты, задания из общей очереди кластера), проверяется
+     * по тому же потолку и при превышении отклоняется UserLimitExceededException.
+     */
+    public void submit(String jobId, String userId, Runnable task, Runnable onDiscard) {
+        String owner = userId != null ? userId : "anonymous";
+        double weight = userTierService.getWeight(owner);
+        QueuedJob job = new QueuedJob(jobId, owner, task, onDiscard, System.nanoTime());
+
+        if (owner.equals(reservedSlot.get())) {
+            // Слот уже занят при допуске запроса
+            reservedSlot.remove();
+        } else {
+            takeUserSlot(owner);
+        }
+        if (shutdown || !queue.offer(owner, weight, job, queueCapacity)) {
+            releaseUserSlot(owner);
+            log.warn("Job {} rejected: queue is full ({} waiting)", jobId, queue.size());
+            throw new JobRejectedException("Очередь обработки заполнена, попробуйте позже", retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Убирает ожидающее задание из очереди; false, если его там уже нет
+     * (например, оно только что взято в работу).
+     */
+    public boolean cancel(String jobId) {
+        QueuedJob job = queue.remove(queued -> queued.jobId.equals(jobId));
+        if (job == null) {
+            return false;
+        }
+        releaseSlot(job);
+        if (job.onDiscard != null) {
+            job.onDiscard.run();
+        }
+        return true;
+    }
+
+    /**
+     * Освобождает слот пользователя задания, которое выполняется в этом потоке.
+     * Вызывается перед публикацией итогового статуса: клиент, увидевший завершение,
+     * может сразу отправить следующее задание и не получить отказ по потолку.
+     * Повторный вызов и вызов из другого потока ничего не делают.
+     */
+    public void releaseRunningSlot(String jobId) {
+        QueuedJob job = runningJob.get();
+        if (job != null && job.jobId.equals(jobId)) {
+            releaseSlot(job);
+        }
+    }
+
+    /**
+     * Быстрая проверка до приёма файлов: есть ли место в очереди.
+     */
+    public void ensureCapacity() {
+        if (queue.size() >= queueCapacity) {
+            throw new JobRejectedException("Очередь обработки заполнена, попробуйте позже", retryAfterSeconds);
+        }
+    }
+
+    /**
+     * Позиция задания в очереди, начиная с 1; 0 - если задание уже не ждёт в очереди.
+     */
+    public int getQueuePosition(String jobId) {
+        return queue.positionOf(job -> job.jobId.equals(jobId));
+    }
+
+    /**
+     * Сколько заданий пользователя сейчас ждут в очереди или выполняются.
+     */
+    public int getUserJobCount(String userId) {
+        return userJobs.getOrDefault(userId, 0);
+    }
+
+    /**
+     * Потолок заданий пользователя или 0, если он выключен (users.concurrency-limit.enabled).
+     */
+    public int getUserJobLimit() {
+        return userLimitEnabled ? maxUserJobs : 0;
+    }
+
+    /**
+     * Примет ли submit ещё одно задание пользователя без слота, занятого при допуске.
+     * Только подсказка: окончательно потолок проверяет submit.
+     */
+    public boolean hasUserCapacity(String userId) {
+        return !userLimitEnabled || getUserJobCount(userId != null ? userId : "anonymous") < maxUserJobs;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void workerLoop() {
+        while (!shutdown) {
+            QueuedJob job;
+            try {
+                job = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) {
+                continue;
+            }
+
+            activeCount.incrementAndGet();
+            runningJob.set(job);
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                log.error("Job {} failed", job.jobId, e);
+            } finally {
+                runningJob.remove();
+                activeCount.decrementAndGet();
+                releaseSlot(job);
+            }
+        }
+    }
+
+    private void takeUserSlot(String userId) {
+        if (!userLimitEnabled) {
+            userJobs.merge(userId, 1, Integer::sum);
+            return;
+        }
+        boolean[] taken = {false};
+        userJobs.compute(userId, (key, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= maxUserJobs) {
+                return count;
+            }
+            taken[0] = true;
+            return current + 1;
+        });
+        if (!taken[0]) {
+            log.debug("User {} rejected: {} jobs already in progress", userId, maxUserJobs);
+            throw new UserLimitExceededException(
+                    "Слишком много заданий в обработке, дождитесь завершения предыдущих", 5);
+        }
+    }
+
+    private void releaseSlot(QueuedJob job) {
+        if (job.slotReleased.compareAndSet(false, true)) {
+            releaseUserSlot(job.userId);
+        }
+    }
+
+    private void releaseUserSlot(String userId) {
+        userJobs.computeIfPresent(userId, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private final class QueuedJob implements Runnable {
+        private final String jobId;
+        private final String userId;
+        private final Runnable task;
+        private final Runnable onDiscard;
+        private final long enqueuedAt;
+        private final AtomicBoolean slotReleased = new AtomicBoolean();
+
+        private QueuedJob(String jobId, String userId, Runnable task, Runnable onDiscard, long enqueuedAt) {
+            this.jobId = jobId;
+            this.userId = userId;
+            this.task = task;
+            this.onDiscard = onDiscard;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        @Override
+        public void run() {
+            metrics.recordQueueWait(System.nanoTime() - enqueuedAt);
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Рассылка изменений статуса: SSE подписчикам и клиентам, ждущим изменения
+ * в режиме long-poll. Каждое изменение увеличивает версию статуса.
+ * Задания, которые выполняет другой узел кластера, здесь не публикуются: для их
+ * подписчиков статус опрашивается в общем хранилище (pollRemoteStatuses).
+ * SSE события отправляются не в потоке задания: у каждого подписчика своя очередь
+ * из одного - последнего - статуса, которую разбирает виртуальный поток, так что
+ * медленный клиент не задерживает задание и получает сразу самое свежее состояние.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class JobStatusPublisher {
+
+    private final JobJournal jobJournal;
+    private final ClusterJobStore clusterStore;
+    private final JobScheduler jobScheduler;
+
+    private final Map<String, List<Subscriber>> emitters = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, List<Consumer<ProcessStatus>>> waiters = new ConcurrentHashMap<>();
+    // Задания других узлов с подписчиками здесь: id -> последнее разосланное состояние
+    private final Map<String, String> remoteWatches = new ConcurrentHashMap<>();
+
+    @Value("${status.sse.timeout-ms:600000}")
+    private long sseTimeoutMs;
+
+    public void publish(ProcessStatus status) {
+        status.nextVersion();
+        ProcessStatus snapshot = status.snapshot();
+        String processId = status.getProcessId();
+        if (snapshot.isFinished()) {
+            // Слот пользователя свободен раньше, чем клиент узнает о завершении
+            jobScheduler.releaseRunningSlot(processId);
+        }
+        jobJournal.recordStatus(snapshot);
+        clusterStore.recordStatus(snapshot);
+        deliver(processId, snapshot);
+    }
+
+    private void deliver(String processId, ProcessStatus snapshot) {
+        List<Consumer<ProcessStatus>> pending = waiters.remove(processId);
+        if (pending != null) {
+            pending.forEach(waiter -> waiter.accept(snapshot));
+        }
+
+        List<Subscriber> subscribers = emitters.get(processId);
+        if (subscribers != null) {
+            if (snapshot.isFinished()) {
+                emitters.remove(processId);
+            }
+            subscribers.forEach(subscriber -> subscriber.offer(snapshot));
+        }
+    }
+
+    public SseEmitter subscribe(ProcessStatus status) {
+        String processId = status.getProcessId();
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        Subscriber subscriber = new Subscriber(processId, emitter);
+
+        emitters.computeIfAbsent(processId, id -> new CopyOnWriteArrayList<>()).add(subscriber);
+        Runnable unsubscribe = () -> removeSubscriber(subscriber);
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(error -> unsubscribe.run());
+
+        // Снимок - после регистрации: всё, что опубликовано раньше, в нём уже есть,
+        // а если задание успело завершиться, подписчик закроется после этого события
+        subscriber.offer(status.snapshot());
+        return emitter;
+    }
+
+    /**
+     * Однократное ожидание следующего изменения статуса (long-poll).
+     * Возвращает действие для отмены ожидания.
+     */
+    public Runnable awaitChange(String processId, Consumer<ProcessStatus> waiter) {
+        List<Consumer<ProcessStatus>> list =
+                waiters.computeIfAbsent(processId, id -> new CopyOnWriteArrayList<>());
+        list.add(waiter);
+        return () -> list.remove(waiter);
+    }
+
+    /**
+     * Подписчики этого узла ждут задание, которое ведёт другой узел: его изменения
+     * будут браться из общего хранилища. Вызывается после регистрации подписчика,
+     * status - состояние, которое подписчик уже получил.
+     */
+    public void watchRemote(ProcessStatus status) {
+        remoteWatches.putIfAbsent(status.getProcessId(), remoteState(status));
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.remote-status-poll-ms:1000}")
+    public void pollRemoteStatuses() {
+        for (Map.Entry<String, String> watch : remoteWatches.entrySet()) {
+            String processId = watch.getKey();
+            if (!hasSubscribers(processId)) {
+                remoteWatches.remove(processId);
+                continue;
+            }
+            ProcessStatus status = clusterStore.readStatus(processId);
+            if (status == null) {
+                // Запись удалена из общего хранилища - ждать больше нечего
+                remoteWatches.remove(processId);
+                forget(processId);
+                continue;
+            }
+            String state = remoteState(status);
+            if (!state.equals(watch.getValue())) {
+                remoteWatches.put(processId, state);
+                deliver(processId, status);
+            }
+            if (status.isFinished()) {
+                remoteWatches.remove(processId);
+            }
+        }
+    }
+
+    /**
+     * Закрывает подписки задания, которое удалено из памяти.
+     */
+    public void forget(String processId) {
+        waiters.remove(processId);
+        List<Subscriber> subscribers = emitters.remove(processId);
+        if (subscribers != null) {
+            subscribers.forEach(Subscriber::close);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    private boolean hasSubscribers(String processId) {
+        List<Subscriber> subscribers = emitters.get(processId);
+        List<Consumer<ProcessStatus>> pending = waiters.get(processId);
+        return (subscribers != null && !subscribers.isEmpty()) || (pending != null && !pending.isEmpty());
+    }
+
+    /**
+     * Версия не меняется при сдвиге позиции в очереди, поэтому позиция - часть состояния.
+     */
+    private static String remoteState(ProcessStatus status) {
+        return status.getVersion() + "-" + status.getQueuePosition();
+    }
+
+    public int getSubscriberCount() {
+        return emitters.values().stream().mapToInt(List::size).sum();
+    }
+
+    private void removeSubscriber(Subscriber subscriber) {
+        List<Subscriber> subscribers = emitters.get(subscriber.processId);
+        if (subscribers != null) {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    /**
+     * SSE подписчик. Хранит только последний неотправленный статус: статус - полный
+     * снимок, промежуточные можно пропустить. Отправкой занят не больше чем один поток.
+     */
+    private final class Subscriber {
+
+        private final String processId;
+        private final SseEmitter emitter;
+
+        private ProcessStatus next;
+        private long sentVersion = -1;
+        private boolean draining;
+        private boolean closed;
+
+        private Subscriber(String processId, SseEmitter emitter) {
+            this.processId = processId;
+            this.emitter = emitter;
+        }
+
+        void offer(ProcessStatus snapshot) {
+            synchronized (this) {
+                if (closed || (next != null && next.getVersion() > snapshot.getVersion())) {
+                    return;
+                }
+                next = snapshot;
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                sender.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Приложение останавливается
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            emitter.complete();
+        }
+
+        private void drain() {
+            while (true) {
+                ProcessStatus snapshot;
+                synchronized (this) {
+                    snapshot = next;
+                    next = null;
+                    if (snapshot == null || closed) {
+                        draining = false;
+                        return;
+                    }
+                    if (snapshot.getVersion() < sentVersion) {
+                        // Устаревший снимок (например, из общего хранилища кластера)
+                        continue;
+                    }
+                    sentVersion = snapshot.getVersion();
+                }
+                if (!send(snapshot)) {
+                    return;
+                }
+                if (snapshot.isFinished()) {
+                    removeSubscriber(this);
+                    close();
+                }
+            }
+        }
+
+        private boolean send(ProcessStatus snapshot) {
+            try {
+                emitter.send(SseEmitter.event()
+                        .name("status")
+                        .id(String.valueOf(snapshot.getVersion()))
+                        .data(snapshot));
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                log.debug("SSE subscriber of {} is gone: {}", processId, e.getMessage());
+                synchronized (this) {
+                    closed = true;
+                    draining = false;
+                }
+                removeSubscriber(this);
+                emitter.completeWithError(e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+/**
+ * Жизненный цикл заданий: удаляет из памяти завершённые задания по истечении срока
+ * хранения, удаляет их директории пачками и следит за квотами на число заданий и диск.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class JobSweeper {
+
+    private final JobRegistry jobRegistry;
+    private final JobStatusPublisher statusPublisher;
+
+    private final Queue<Path> pendingDeletion = new ConcurrentLinkedQueue<>();
+
+    @Value("${jobs.retention.completed-minutes:60}")
+    private long completedRetentionMinutes;
+
+    @Value("${jobs.retention.error-minutes:30}")
+    private long errorRetentionMinutes;
+
+    @Value("${jobs.retention.default-minutes:30}")
+    private long defaultRetentionMinutes;
+
+    @Value("${jobs.quota.max-live-jobs:10000}")
+    private int maxLiveJobs;
+
+    @Value("${jobs.quota.disk-mb:5120}")
+    private long diskQuotaMb;
+
+    @Value("${jobs.sweep.batch-size:100}")
+    private int deleteBatchSize;
+
+    @Value("${jobs.scheduler.retry-after-seconds:30}")
+    private int retryAfterSeconds;
+
+    /**
+     * После восстановления заданий из журнала: директории прошлых запусков,
+     * которые не принадлежат ни одному заданию, удаляем.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void scheduleOrphanCleanup() {
+        Path root = jobRegistry.getTempRoot();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> dirs = Files.list(root)) {
+            dirs.filter(Files::isDirectory)
+                    .filter(dir -> jobRegistry.get(dir.getFileName().toString()) == null)
+                    .forEach(pendingDeletion::add);
+        } catch (IOException e) {
+            log.warn("Could not scan {}: {}", root, e.getMessage());
+        }
+        if (!pendingDeletion.isEmpty()) {
+            log.info("Found {} orphaned job directories, scheduling deletion", pendingDeletion.size());
+        }
+    }
+
+    /**
+     * Проверка квот перед приёмом нового задания. Сначала пытаемся освободить место
+     * за счёт самых старых завершённых заданий, затем отклоняем.
+     */
+    public void ensureCapacity() {
+        if (!overQuota()) {
+            return;
+        }
+        evictOverQuota();
+        if (jobRegistry.size() >= maxLiveJobs) {
+            throw new JobRejectedException("Слишком много заданий в памяти, попробуйте позже", retryAfterSeconds);
+        }
+        if (jobRegistry.getDiskBytes() >= diskQuotaMb * 1024 * 1024) {
+            throw new JobRejectedException("Закончилось место для файлов заданий, попробуйте позже", retryAfterSeconds);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${jobs.sweep.interval-ms:60000}")
+    public void sweep() {
+        LocalDateTime now = LocalDateTime.now();
+        int expired = 0;
+        for (ProcessStatus status : jobRegistry.getAll()) {
+            if (status.isFinished() && status.getEndTime() != null
+                    && status.getEndTime().plusMinutes(retentionMinutes(status)).isBefore(now)) {
+                evict(status.getProcessId());
+                expired++;
+            }
+        }
+
+        int overQuota = overQuota() ? evictOverQuota() : 0;
+        int deleted = deletePendingDirectories();
+
+        if (expired + overQuota + deleted > 0) {
+            log.info("Job sweep: {} expired, {} evicted over quota, {} directories deleted, {} live jobs, {} bytes",
+                    expired, overQuota, deleted, jobRegistry.size(), jobRegistry.getDiskBytes());
+        }
+    }
+
+    /**
+     * Убирает задание из памяти и удаляет его директорию, не дожидаясь срока хранения.
+     */
+    public void discard(String processId) {
+        evict(processId);
+    }
+
+    public int getPendingDeletionCount() {
+        return pendingDeletion.size();
+    }
+
+    private long retentionMinutes(ProcessStatus status) {
+        return switch (status.getStatus()) {
+            case "COMPLETED" -> completedRetentionMinutes;
+            case "ERROR" -> errorRetentionMinutes;
+            default -> defaultRetentionMinutes;
+        };
+    }
+
+    private boolean overQuota() {
+        return jobRegistry.size() >= maxLiveJobs
+                || jobRegistry.getDiskBytes() >= diskQuotaMb * 1024 * 1024;
+    }
+
+    private synchronized int evictOverQuota() {
+        List<ProcessStatus> finished = new ArrayList<>();
+        for (ProcessStatus status : jobRegistry.getAll()) {
+            if (status.isFinished()) {
+                finished.add(status);
+            }
+        }
+        finished.sort(Comparator.comparing(
+                status -> status.getEndTime() != null ? status.getEndTime() : status.getStartTime()));
+
+        int evicted = 0;
+        for (ProcessStatus status : finished) {
+            if (!overQuota()) {
+                break;
+            }
+            evict(status.getProcessId());
+            evicted++;
+        }
+        // Место на диске освобождается только после удаления директорий
+        if (evicted > 0) {
+            deletePendingDirectories();
+        }
+        return evicted;
+    }
+
+    private void evict(String processId) {
+        if (jobRegistry.remove(processId) != null) {
+            statusPublisher.forget(processId);
+            pendingDeletion.add(jobRegistry.jobDirectory(processId));
+        }
+    }
+
+    private int deletePendingDirectories() {
+        int deleted = 0;
+        Path dir;
+        while (deleted < deleteBatchSize && (dir = pendingDeletion.poll()) != null) {
+            deleteRecursively(dir);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Could not delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Could not delete job directory {}: {}", dir, e.getMessage());
+        }
+    }
+}
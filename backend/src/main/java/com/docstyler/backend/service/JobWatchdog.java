@@ -0,0 +1,85 @@
+package com.docstyler.backend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сторож выполняющихся заданий: снимает задания по сроку (jobs.deadline.*)
+ * и зависшие агенты, которые давно ничего не выводили, а также отменяет
+ * задания по запросу пользователя.
+ */
+@Component
+@Slf4j
+public class JobWatchdog {
+
+    public static final String CANCELLED = "CANCELLED";
+    public static final String TIMEOUT = "TIMEOUT";
+
+    private final Map<String, AgentRun> running = new ConcurrentHashMap<>();
+
+    @Value("${jobs.deadline.default-seconds:300}")
+    private int defaultDeadlineSeconds;
+
+    @Value("${jobs.deadline.max-seconds:1800}")
+    private int maxDeadlineSeconds;
+
+    @Value("${jobs.watchdog.stall-seconds:120}")
+    private long stallSeconds;
+
+    /**
+     * Регистрирует начало выполнения задания. deadlineSeconds - срок, запрошенный
+     * для задания (null - по умолчанию), он не может превышать jobs.deadline.max-seconds.
+     */
+    public AgentRun start(String processId, Integer deadlineSeconds) {
+        AgentRun run = new AgentRun(processId, TimeUnit.SECONDS.toNanos(effectiveDeadline(deadlineSeconds)));
+        running.put(processId, run);
+        return run;
+    }
+
+    public void finish(AgentRun run) {
+        running.remove(run.getProcessId(), run);
+    }
+
+    /**
+     * Отменяет выполняющееся задание; false, если оно не выполняется.
+     */
+    public boolean cancel(String processId) {
+        AgentRun run = running.get(processId);
+        return run != null && run.kill(CANCELLED);
+    }
+
+    public int effectiveDeadline(Integer deadlineSeconds) {
+        if (deadlineSeconds == null || deadlineSeconds <= 0) {
+            return Math.min(defaultDeadlineSeconds, maxDeadlineSeconds);
+        }
+        return Math.min(deadlineSeconds, maxDeadlineSeconds);
+    }
+
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    @Scheduled(fixedDelayString = "${jobs.watchdog.interval-ms:5000}")
+    public void reclaim() {
+        long now = System.nanoTime();
+        long stallNanos = TimeUnit.SECONDS.toNanos(stallSeconds);
+        for (AgentRun run : running.values()) {
+            if (run.isKilled()) {
+                continue;
+            }
+            if (run.isPastDeadline(now)) {
+                log.warn("Job {} exceeded its deadline", run.getProcessId());
+                run.kill(TIMEOUT);
+            } else if (run.isStalled(now, stallNanos)) {
+                log.warn("Job {}: agent produced no output for {}s", run.getProcessId(), stallSeconds);
+                run.kill(TIMEOUT);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.docstyler.backend.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Метрики конвейера обработки (Micrometer, отдаются через Actuator).
+ * Таймеры публикуют гистограммы, чтобы по ним считались перцентили.
+ */
+@Component
+@RequiredArgsConstructor
+public class ProcessingMetrics {
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final AtomicLong firstJobUptimeMs = new AtomicLong(-1);
+    private volatile long firstJobNanos;
+    private volatile long readyUptimeMs = -1;
+    private volatile long warmupMs = -1;
+
+    /**
+     * Этап обработки: spool, agent.acquire, result.write, result.cache и т.д.
+     */
+    public void recordStage(String stage, long nanos) {
+        timer("docstyler.job.stage", "stage", stage, "Время этапа обработки задания")
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Фаза работы агента между двумя строками PROGRESS; phase - предыдущее значение прогресса.
+     */
+    public void recordAgentPhase(String phase, long nanos) {
+        timer("docstyler.agent.phase", "phase", phase, "Время фазы Python агента")
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordQueueWait(long nanos) {
+        timer("docstyler.job.queue.wait", "queue", "main", "Время ожидания задания в очереди")
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordJob(String outcome, long nanos) {
+        timer("docstyler.job.duration", "outcome", outcome, "Полное время выполнения задания")
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (firstJobUptimeMs.compareAndSet(-1, ManagementFactory.getRuntimeMXBean().getUptime())) {
+            firstJobNanos = nanos;
+        }
+    }
+
+    /**
+     * Задание снято до начала обработки (отменено в очереди): времени выполнения у него
+     * нет, поэтому оно только считается и не попадает ни в таймер, ни в метрику первого задания.
+     */
+    public void recordDiscardedJob(String outcome) {
+        counters.computeIfAbsent("discarded:" + outcome, key -> Counter.builder("docstyler.job.discarded")
+                        .description("Задания, снятые до начала обработки")
+                        .tag("outcome", outcome)
+                        .register(registry))
+                .increment();
+    }
+
+    /**
+     * Экземпляр готов к заданиям: от старта JVM до конца прогрева (после ApplicationReadyEvent).
+     */
+    public void recordStartup(long warmupNanos) {
+        readyUptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        warmupMs = TimeUnit.NANOSECONDS.toMillis(warmupNanos);
+    }
+
+    /**
+     * Время запуска и первого задания, в секундах; NaN, пока событие не произошло.
+     * Spring Boot сам публикует application.started.time и application.ready.time,
+     * но они не включают запуск JVM и прогрев агента.
+     */
+    @PostConstruct
+    public void registerStartupMetrics() {
+        gauge("docstyler.startup.ready", "От старта JVM до готовности с прогревом, с", this,
+                metrics -> seconds(metrics.readyUptimeMs));
+        gauge("docstyler.startup.warmup", "Прогрев агента при запуске, с", this,
+                metrics -> seconds(metrics.warmupMs));
+        gauge("docstyler.startup.first-job", "От старта JVM до завершения первого задания, с", this,
+                metrics -> seconds(metrics.firstJobUptimeMs.get()));
+        gauge("docstyler.startup.first-job.duration", "Время выполнения первого задания, с", this,
+                metrics -> metrics.firstJobUptimeMs.get() < 0 ? Double.NaN : metrics.firstJobNanos / 1e9);
+    }
+
+    private static double seconds(long millis) {
+        return millis < 0 ? Double.NaN : millis / 1000.0;
+    }
+
+    public void recordAgentExit(String mode, int exitCode) {
+        counters.computeIfAbsent(mode + ":" + exitCode, key -> Counter.builder("docstyler.agent.exit")
+                        .description("Завершения Python агента по коду выхода")
+                        .tag("mode", mode)
+                        .tag("code", String.valueOf(exitCode))
+                        .register(registry))
+                .increment();
+    }
+
+    public <T> void gauge(String name, String description, T source, ToDoubleFunction<T> value) {
+        Gauge.builder(name, source, value).description(description).register(registry);
+    }
+
+    public <T> void counter(String name, String description, T source, ToDoubleFunction<T> value) {
+        FunctionCounter.builder(name, source, value).description(description).register(registry);
+    }
+
+    private Timer timer(String name, String tagKey, String tagValue, String description) {
+        return timers.computeIfAbsent(name + ":" + tagValue, key -> Timer.builder(name)
+                .description(description)
+                .tag(tagKey, tagValue)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+}
@@ -0,0 +1,308 @@
+package com.docstyler.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Пул долгоживущих Python воркеров (main.py --worker).
+ * Интерпретатор и импорты загружаются один раз, задания передаются по stdin
+ * в виде одной JSON строки, конец вывода задания отмечается строкой DONE:<код>.
+ * stderr каждого воркера вычитывается в фоне (StderrTail), а не наследуется.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class PythonAgentPool {
+
+    private static final long ACQUIRE_RECHECK_MS = 500;
+
+    private final ObjectMapper objectMapper;
+    private final ProcessingMetrics metrics;
+
+    private final BlockingQueue<AgentWorker> idleWorkers = new LinkedBlockingQueue<>();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    // Потоки, ждущие воркера в acquire: им нужна замена утилизированного воркера
+    private final AtomicInteger waiters = new AtomicInteger();
+    private volatile File lastAgentFile;
+
+    @Value("${python.executable:python3}")
+    private String pythonExecutable;
+
+    @Value("${python.agent.pool.size:2}")
+    private int poolSize;
+
+    @Value("${python.agent.pool.max-jobs-per-worker:200}")
+    private int maxJobsPerWorker;
+
+    private volatile boolean shutdown;
+
+    public int runJob(File agentFile,
+                      AgentRequest agentRequest,
+                      AgentRun run,
+                      Consumer<AgentProtocolReader> lineHandler) throws IOException, InterruptedException {
+
+        Map<String, Object> job = new LinkedHashMap<>();
+        if (!AgentRequest.PROCESS.equals(agentRequest.mode())) {
+            job.put("mode", agentRequest.mode());
+        }
+        if (agentRequest.templatePath() != null) {
+            job.put("template", agentRequest.templatePath().toString());
+        }
+        job.put("draft", agentRequest.draftPath().toString());
+        job.put("output", agentRequest.outputDir().toString());
+        if (agentRequest.styles() != null) {
+            job.put("styles", agentRequest.styles());
+        }
+        if (agentRequest.parts() != null) {
+            job.put("parts", agentRequest.parts().stream().map(Path::toString).toList());
+        }
+        String request = objectMapper.writeValueAsString(job);
+
+        long acquireStarted = System.nanoTime();
+        AgentWorker worker = acquire(agentFile);
+        metrics.recordStage("agent.acquire", System.nanoTime() - acquireStarted);
+        worker.stderr.clear();
+        // Задание отменили, пока оно ждало воркера: тёплый воркер возвращается в пул нетронутым
+        if (!run.attachIfRunning(worker.process, worker.stderr)) {
+            release(worker);
+            return -1;
+        }
+        try {
+            // Сторож убивает процесс воркера целиком; такой воркер будет заменён
+            return worker.execute(request, lineHandler);
+        } catch (IOException e) {
+            worker.broken = true;
+            throw e;
+        } finally {
+            // После задания воркер обслуживает других - отмена этого задания его уже не касается.
+            // Сторож мог убить воркер уже после ответа DONE: такой в пул не возвращается
+            if (run.detach(worker.process)) {
+                worker.broken = true;
+            }
+            release(worker);
+        }
+    }
+
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.gauge("docstyler.agent.workers", "Живых Python воркеров", this, PythonAgentPool::getLiveWorkers);
+        metrics.gauge("docstyler.agent.workers.idle", "Свободных Python воркеров", idleWorkers, BlockingQueue::size);
+    }
+
+    public int getLiveWorkers() {
+        return liveWorkers.get();
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Заранее поднимает недостающих до python.agent.pool.size воркеров, параллельно:
+     * первое задание после запуска не ждёт старта интерпретатора. Возвращает число поднятых.
+     */
+    public int prewarm(File agentFile) throws InterruptedException {
+        List<Callable<AgentWorker>> starts = new ArrayList<>();
+        int live = liveWorkers.get();
+        while (live < poolSize && !shutdown) {
+            if (liveWorkers.compareAndSet(live, live + 1)) {
+                starts.add(() -> AgentWorker.start(pythonExecutable, agentFile));
+            }
+            live = liveWorkers.get();
+        }
+
+        int started = 0;
+        try (ExecutorService starter = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Future<AgentWorker> start : starter.invokeAll(starts)) {
+                try {
+                    release(start.get());
+                    started++;
+                } catch (ExecutionException e) {
+                    liveWorkers.decrementAndGet();
+                    log.warn("Could not pre-start Python worker: {}", e.getCause().getMessage());
+                }
+            }
+        }
+        return started;
+    }
+
+    private AgentWorker acquire(File agentFile) throws IOException, InterruptedException {
+        lastAgentFile = agentFile;
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                if (shutdown) {
+                    throw new IllegalStateException("Python agent pool is shut down");
+                }
+
+                AgentWorker worker = idleWorkers.poll();
+                if (worker != null) {
+                    return worker;
+                }
+
+                // Пул ещё не заполнен (или воркера только что утилизировали) - поднимаем нового
+                int live = liveWorkers.get();
+                if (live < poolSize) {
+                    if (liveWorkers.compareAndSet(live, live + 1)) {
+                        try {
+                            return AgentWorker.start(pythonExecutable, agentFile);
+                        } catch (IOException | RuntimeException e) {
+                            liveWorkers.decrementAndGet();
+                            throw e;
+                        }
+                    }
+                    continue;
+                }
+
+                // Ждём с таймаутом, чтобы снова проверить, не освободилось ли место в пуле
+                worker = idleWorkers.poll(ACQUIRE_RECHECK_MS, TimeUnit.MILLISECONDS);
+                if (worker != null) {
+                    return worker;
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private void release(AgentWorker worker) {
+        if (shutdown || worker.broken || !worker.process.isAlive()
+                || worker.jobsServed >= maxJobsPerWorker) {
+            log.info("Recycling Python worker pid={} after {} jobs (broken={})",
+                    worker.process.pid(), worker.jobsServed, worker.broken);
+            worker.destroy();
+            liveWorkers.decrementAndGet();
+            if (!shutdown && waiters.get() > 0) {
+                startReplacement();
+            }
+            return;
+        }
+        idleWorkers.offer(worker);
+    }
+
+    /**
+     * Замена утилизированного воркера для тех, кто уже ждёт в acquire: поднимается
+     * в фоне и кладётся в очередь свободных, чтобы ожидающий не зависел от новых запросов.
+     */
+    private void startReplacement() {
+        File agentFile = lastAgentFile;
+        int live = liveWorkers.get();
+        if (agentFile == null || live >= poolSize || !liveWorkers.compareAndSet(live, live + 1)) {
+            return;
+        }
+        Thread.ofVirtual().name("agent-worker-replacement").start(() -> {
+            try {
+                release(AgentWorker.start(pythonExecutable, agentFile));
+            } catch (IOException | RuntimeException e) {
+                liveWorkers.decrementAndGet();
+                log.warn("Could not start replacement Python worker: {}", e.getMessage());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        AgentWorker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.destroy();
+            liveWorkers.decrementAndGet();
+        }
+    }
+
+    private static final class AgentWorker {
+
+        private final Process process;
+        private final BufferedWriter stdin;
+        private final AgentProtocolReader stdout;
+        private final StderrTail stderr;
+        private int jobsServed;
+        private volatile boolean broken;
+
+        private AgentWorker(Process process) {
+            this.process = process;
+            this.stdin = new BufferedWriter(
+                    new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.stdout = new AgentProtocolReader(process.getInputStream());
+            this.stderr = StderrTail.drain(process.getErrorStream(), "worker " + process.pid());
+        }
+
+        static AgentWorker start(String pythonExecutable, File agentFile) throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(
+                    pythonExecutable,
+                    agentFile.getAbsolutePath(),
+                    "--worker"
+            );
+
+            AgentWorker worker = new AgentWorker(pb.start());
+
+            // Ждём, пока воркер загрузится и сообщит о готовности
+            AgentProtocolReader.Kind kind;
+            while ((kind = worker.stdout.read()) != AgentProtocolReader.Kind.EOF) {
+                if (kind == AgentProtocolReader.Kind.READY) {
+                    log.info("Python worker started, pid={}", worker.process.pid());
+                    return worker;
+                }
+                log.debug("Python worker: {}", worker.stdout.line());
+            }
+
+            worker.destroy();
+            throw new IOException("Python worker exited before becoming ready: " + worker.stderr.lastLine());
+        }
+
+        int execute(String request, Consumer<AgentProtocolReader> lineHandler) throws IOException {
+            stdin.write(request);
+            stdin.newLine();
+            stdin.flush();
+
+            AgentProtocolReader.Kind kind;
+            while ((kind = stdout.read()) != AgentProtocolReader.Kind.EOF) {
+                if (kind == AgentProtocolReader.Kind.DONE) {
+                    jobsServed++;
+                    return stdout.number();
+                }
+                lineHandler.accept(stdout);
+            }
+
+            broken = true;
+            String lastError = stderr.lastLine();
+            throw new IOException("Python worker pid=" + process.pid() + " terminated unexpectedly"
+                    + (lastError != null ? ": " + lastError : ""));
+        }
+
+        void destroy() {
+            try {
+                stdin.close();
+            } catch (IOException ignored) {
+                // воркер мог уже завершиться
+            }
+            process.destroy();
+        }
+    }
+}
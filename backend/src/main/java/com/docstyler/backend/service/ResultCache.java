@@ -0,0 +1,283 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Дисковый кэш готовых результатов для одинаковых пар (шаблон, черновик).
+ * Ключ - SHA-256 от хэшей обоих файлов и версии агента. Размер ограничен
+ * result.cache.max-size-mb, вытесняются давно не использованные записи.
+ * Индекс хранится в index.tsv и переживает перезапуск.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ResultCache {
+
+    private static final String INDEX_FILE = "index.tsv";
+    // Меняется, когда меняется содержимое записей: с "2" результаты не содержат имён файлов
+    private static final String KEY_VERSION = "2";
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ProcessingMetrics metrics;
+
+    @Value("${result.cache.directory:./result_cache}")
+    private String cacheDirectory;
+
+    @Value("${result.cache.max-size-mb:1024}")
+    private long maxSizeMb;
+
+    private Path cacheDir;
+    private long totalBytes;
+    private volatile boolean indexDirty;
+
+    @PostConstruct
+    public void init() throws IOException {
+        cacheDir = Paths.get(cacheDirectory);
+        Files.createDirectories(cacheDir);
+        loadIndex();
+
+        metrics.counter("docstyler.result.cache.hits", "Попаданий в кэш результатов", hits, AtomicLong::get);
+        metrics.counter("docstyler.result.cache.misses", "Промахов кэша результатов", misses, AtomicLong::get);
+        metrics.gauge("docstyler.result.cache.bytes", "Байт в кэше результатов", this, ResultCache::getTotalBytes);
+    }
+
+    public static String key(String templateHash, String draftHash, String agentVersion) {
+        byte[] digest = UploadSpool.newDigest().digest(
+                (templateHash + ":" + draftHash + ":" + agentVersion + ":" + KEY_VERSION).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Путь к сохранённому результату или null, если такой пары ещё не обрабатывали.
+     */
+    public Path lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                Path file = entryPath(key, entry.fileName());
+                if (Files.exists(file)) {
+                    entry.lastAccess = System.currentTimeMillis();
+                    indexDirty = true;
+                    hits.incrementAndGet();
+                    return file;
+                }
+                // Файл удалили в обход кэша
+                entries.remove(key);
+                totalBytes -= entry.size();
+                indexDirty = true;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, Path resultFile) {
+        long started = System.nanoTime();
+        try {
+            long size = Files.size(resultFile);
+            if (size > maxSizeMb * 1024 * 1024) {
+                return;
+            }
+
+            String fileName = resultFile.getFileName().toString();
+            Path entryDir = cacheDir.resolve(key);
+            Files.createDirectories(entryDir);
+            Path target = entryDir.resolve(fileName);
+            Path incoming = entryDir.resolve(fileName + ".part");
+            try {
+                Files.deleteIfExists(incoming);
+                Files.createLink(incoming, resultFile);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(resultFile, incoming, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(incoming, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            List<String> evicted = new ArrayList<>();
+            synchronized (entries) {
+                Entry previous = entries.put(key, new Entry(fileName, size, System.currentTimeMillis()));
+                if (previous != null) {
+                    totalBytes -= previous.size();
+                }
+                totalBytes += size;
+
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                while (totalBytes > maxSizeMb * 1024 * 1024 && it.hasNext()) {
+                    Map.Entry<String, Entry> eldest = it.next();
+                    if (eldest.getKey().equals(key)) {
+                        continue;
+                    }
+                    totalBytes -= eldest.getValue().size();
+                    evicted.add(eldest.getKey());
+                    it.remove();
+                }
+            }
+
+            for (String evictedKey : evicted) {
+                deleteEntryDir(evictedKey);
+            }
+            // Индекс переписывается пачкой в flushIndex; после сбоя записи не из индекса
+            // просто удаляются при запуске
+            indexDirty = true;
+            metrics.recordStage("result.cache", System.nanoTime() - started);
+        } catch (IOException e) {
+            log.warn("Could not store result {} in cache: {}", resultFile, e.getMessage());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getTotalBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${result.cache.index-flush-interval-ms:30000}")
+    public void flushIndex() {
+        if (indexDirty) {
+            writeIndex();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushIndex();
+    }
+
+    private void loadIndex() throws IOException {
+        Path index = cacheDir.resolve(INDEX_FILE);
+        if (!Files.exists(index)) {
+            return;
+        }
+
+        List<String[]> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            if (parts.length == 4) {
+                rows.add(parts);
+            }
+        }
+        // Восстанавливаем порядок LRU: от давно использованных к недавним
+        rows.sort((a, b) -> Long.compare(Long.parseLong(a[3]), Long.parseLong(b[3])));
+
+        synchronized (entries) {
+            for (String[] row : rows) {
+                String key = row[0];
+                long size = Long.parseLong(row[2]);
+                if (Files.exists(entryPath(key, row[1]))) {
+                    entries.put(key, new Entry(row[1], size, Long.parseLong(row[3])));
+                    totalBytes += size;
+                }
+            }
+        }
+
+        // Удаляем директории, которых нет в индексе (например, после сбоя во время записи)
+        try (Stream<Path> dirs = Files.list(cacheDir)) {
+            dirs.filter(Files::isDirectory)
+                    .map(dir -> dir.getFileName().toString())
+                    .filter(key -> !entries.containsKey(key))
+                    .forEach(this::deleteEntryDir);
+        }
+
+        log.info("Result cache at {}: {} entries, {} bytes", cacheDir.toAbsolutePath(), entries.size(), totalBytes);
+    }
+
+    private void writeIndex() {
+        Path index = cacheDir.resolve(INDEX_FILE);
+        Path incoming = cacheDir.resolve(INDEX_FILE + ".part");
+        synchronized (entries) {
+            indexDirty = false;
+            try (BufferedWriter writer = Files.newBufferedWriter(incoming, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey() + "\t" + entry.fileName() + "\t" + entry.size() + "\t" + entry.lastAccess);
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                indexDirty = true;
+                log.warn("Could not write result cache index: {}", e.getMessage());
+                return;
+            }
+            try {
+                Files.move(incoming, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                indexDirty = true;
+                log.warn("Could not replace result cache index: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Path entryPath(String key, String fileName) {
+        return cacheDir.resolve(key).resolve(fileName);
+    }
+
+    private void deleteEntryDir(String key) {
+        try (Stream<Path> files = Files.walk(cacheDir.resolve(key))) {
+            files.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Could not delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Could not delete cached result {}: {}", key, e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        private final String fileName;
+        private final long size;
+        private long lastAccess;
+
+        private Entry(String fileName, long size, long lastAccess) {
+            this.fileName = fileName;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+
+        String fileName() {
+            return fileName;
+        }
+
+        long size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.UploadStatus;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Докачиваемые загрузки по частям. Фрагменты пишутся прямо в файл внутри хранилища
+ * загрузок, SHA-256 считается по мере поступления, .docx проверяется потоково
+ * (DocxStreamValidator) - битый файл отклоняется на первых фрагментах, а не после
+ * передачи целиком. Принятые байты не теряются и при обрыве соединения посреди
+ * фрагмента: клиент узнаёт смещение (GET) и продолжает с него.
+ * Состояние хэша живёт в памяти, поэтому незавершённые загрузки не переживают перезапуск.
+ * По той же причине в режиме кластера загрузка привязана к узлу, который её начал:
+ * без балансировки по пользователю (X-User-Id) на один узел фрагменты и
+ * process-uploads попадут на другие узлы, поэтому там загрузки по частям включаются
+ * только явным uploads.cluster.sticky-routing=true.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ResumableUploadService {
+
+    private static final String UPLOADS_DIR = "uploads";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final UploadSpool uploadSpool;
+    private final ProcessingMetrics metrics;
+    private final ClusterJobStore clusterStore;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    @Value("${spool.directory:./spool}")
+    private String spoolDirectory;
+
+    @Value("${uploads.max-file-size-mb:50}")
+    private long maxFileSizeMb;
+
+    @Value("${uploads.max-chunk-size-mb:8}")
+    private long maxChunkSizeMb;
+
+    @Value("${uploads.max-active-per-user:4}")
+    private int maxActivePerUser;
+
+    @Value("${uploads.idle-ttl-minutes:30}")
+    private long idleTtlMinutes;
+
+    @Value("${uploads.docx.max-uncompressed-mb:256}")
+    private long maxUncompressedMb;
+
+    @Value("${uploads.cluster.sticky-routing:false}")
+    private boolean stickyRouting;
+
+    private Path uploadsDir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        // Внутри spool.directory, чтобы готовый файл переносился в хранилище без копирования
+        uploadsDir = Paths.get(spoolDirectory, UPLOADS_DIR);
+        Files.createDirectories(uploadsDir);
+
+        try (Stream<Path> leftovers = Files.list(uploadsDir)) {
+            leftovers.forEach(this::deleteQuietly);
+        }
+
+        metrics.gauge("docstyler.uploads.active", "Незавершённых загрузок по частям", uploads,
+                map -> map.values().stream().filter(upload -> upload.state == State.UPLOADING).count());
+    }
+
+    /**
+     * Начинает загрузку файла объявленного размера.
+     */
+    public UploadStatus create(String userId, String fileName, long size) throws IOException {
+        if (clusterStore.isEnabled() && !stickyRouting) {
+            throw new IllegalStateException("Загрузка по частям в режиме кластера требует привязки "
+                    + "пользователя к узлу (uploads.cluster.sticky-routing); используйте POST /api/documents/process");
+        }
+        long maxBytes = maxFileSizeMb * 1024 * 1024;
+        if (size <= 0 || size > maxBytes) {
+            throw new UploadRejectedException("Размер файла должен быть от 1 байта до " + maxFileSizeMb + " МБ");
+        }
+        long active = uploads.values().stream()
+                .filter(upload -> upload.userId.equals(userId) && upload.state == State.UPLOADING)
+                .count();
+        if (active >= maxActivePerUser) {
+            throw new UserLimitExceededException(
+                    "Слишком много незавершённых загрузок: не больше " + maxActivePerUser, 60);
+        }
+
+        String name = UploadSpool.sanitizeName(fileName, "upload.bin");
+        String uploadId = UUID.randomUUID().toString();
+        Path partFile = uploadsDir.resolve(uploadId + ".part");
+        Files.createFile(partFile);
+
+        DocxStreamValidator validator = name.toLowerCase().endsWith(".docx")
+                ? new DocxStreamValidator(maxUncompressedMb * 1024 * 1024)
+                : null;
+        Upload upload = new Upload(uploadId, userId, name, size, partFile, validator);
+        uploads.put(uploadId, upload);
+        log.info("Upload {} started by {}: {} ({} bytes)", uploadId, userId, name, size);
+        return upload.snapshot();
+    }
+
+    /**
+     * Принимает фрагмент, начинающийся со смещения offset. Тело читается прямо из потока
+     * запроса; каждая прочитанная порция сразу пишется на диск и учитывается в хэше.
+     * Последний байт файла завершает загрузку: файл переносится в хранилище под своим хэшем.
+     * Возвращает состояние с принятым смещением - оно может быть меньше конца фрагмента.
+     */
+    public UploadStatus append(String uploadId, long offset, InputStream body) throws IOException {
+        Upload upload = require(uploadId);
+        if (!upload.lock.tryLock()) {
+            throw new UploadOffsetConflictException("Загрузка уже принимает другой фрагмент", upload.offset);
+        }
+        try {
+            if (upload.state != State.UPLOADING) {
+                throw new UploadOffsetConflictException("Загрузка уже " + upload.state, upload.offset);
+            }
+            if (offset != upload.offset) {
+                throw new UploadOffsetConflictException(
+                        "Ожидался фрагмент со смещения " + upload.offset, upload.offset);
+            }
+            upload.touch();
+
+            long started = System.nanoTime();
+            long limit = Math.min(maxChunkSizeMb * 1024 * 1024, upload.size - upload.offset);
+            long received = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FileChannel channel = FileChannel.open(upload.partFile, StandardOpenOption.WRITE)) {
+                channel.position(upload.offset);
+                int n;
+                while (received < limit
+                        && (n = body.read(buffer, 0, (int) Math.min(buffer.length, limit - received))) > 0) {
+                    if (upload.validator != null) {
+                        upload.validator.update(buffer, 0, n);
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    upload.digest.update(buffer, 0, n);
+                    // Смещение двигается порциями: при обрыве соединения принятое сохраняется
+                    upload.offset += n;
+                    received += n;
+                }
+            } catch (UploadRejectedException e) {
+                reject(upload, e.getMessage());
+                throw e;
+            }
+            metrics.recordStage("upload.chunk", System.nanoTime() - started);
+
+            if (upload.offset == upload.size) {
+                if (body.read() >= 0) {
+                    reject(upload, "Данных больше объявленного размера файла");
+                    throw new UploadRejectedException(upload.message);
+                }
+                complete(upload);
+            }
+            // Фрагмент больше uploads.max-chunk-size-mb принимается частично:
+            // клиент продолжает с возвращённого смещения
+            upload.touch();
+            return upload.snapshot();
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Состояние загрузки или null, если такой нет (не создавалась или уже удалена).
+     */
+    public UploadStatus getStatus(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return null;
+        }
+        upload.touch();
+        return upload.snapshot();
+    }
+
+    /**
+     * Файл завершённой загрузки для задания. Вызывающий получает свою ссылку на объект
+     * хранилища, сама загрузка остаётся доступной (один шаблон - много заданий) до DELETE
+     * или истечения uploads.idle-ttl-minutes.
+     */
+    public SpooledFile claim(String uploadId, String userId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || !upload.userId.equals(userId)) {
+            throw new IllegalArgumentException("Upload not found: " + uploadId);
+        }
+        upload.lock.lock();
+        try {
+            if (upload.state != State.COMPLETED) {
+                throw new IllegalArgumentException("Upload " + uploadId + " is " + upload.state);
+            }
+            upload.touch();
+            return uploadSpool.retain(upload.spooled);
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    public boolean abort(String uploadId) {
+        Upload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            return false;
+        }
+        upload.lock.lock();
+        try {
+            discard(upload);
+        } finally {
+            upload.lock.unlock();
+        }
+        log.info("Upload {} aborted", uploadId);
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${uploads.sweep-interval-ms:60000}")
+    public void sweepIdleUploads() {
+        long deadline = System.currentTimeMillis() - idleTtlMinutes * 60_000;
+        int removed = 0;
+        for (Upload upload : uploads.values()) {
+            // Загрузку, которая сейчас принимает фрагмент, не трогаем
+            if (upload.lastActivity > deadline || !upload.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (upload.lastActivity <= deadline && uploads.remove(upload.id, upload)) {
+                    discard(upload);
+                    removed++;
+                }
+            } finally {
+                upload.lock.unlock();
+            }
+        }
+        if (removed > 0) {
+            log.info("Removed {} idle uploads", removed);
+        }
+    }
+
+    private void complete(Upload upload) {
+        if (upload.validator != null) {
+            try {
+                upload.validator.finish();
+            } catch (UploadRejectedException e) {
+                reject(upload, e.getMessage());
+                throw e;
+            } finally {
+                upload.validator.close();
+            }
+        }
+        String hash = HexFormat.of().formatHex(upload.digest.digest());
+        upload.spooled = uploadSpool.acquire(hash, upload.partFile, upload.size, upload.fileName);
+        upload.state = State.COMPLETED;
+        log.info("Upload {} completed: {} bytes, sha256 {}", upload.id, upload.size, hash);
+    }
+
+    private void reject(Upload upload, String reason) {
+        upload.state = State.REJECTED;
+        upload.message = reason;
+        if (upload.validator != null) {
+            upload.validator.close();
+        }
+        deleteQuietly(upload.partFile);
+        log.info("Upload {} rejected: {}", upload.id, reason);
+    }
+
+    private void discard(Upload upload) {
+        if (upload.state == State.COMPLETED) {
+            uploadSpool.release(upload.spooled);
+        } else {
+            if (upload.validator != null) {
+                upload.validator.close();
+            }
+            deleteQuietly(upload.partFile);
+        }
+        upload.state = State.REJECTED;
+    }
+
+    private Upload require(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new IllegalArgumentException("Upload not found: " + uploadId);
+        }
+        return upload;
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    private enum State { UPLOADING, COMPLETED, REJECTED }
+
+    private static final class Upload {
+
+        private final String id;
+        private final String userId;
+        private final String fileName;
+        private final long size;
+        private final Path partFile;
+        private final DocxStreamValidator validator;
+        private final MessageDigest digest = UploadSpool.newDigest();
+        private final LocalDateTime createdAt = LocalDateTime.now();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile State state = State.UPLOADING;
+        private volatile long offset;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile String message;
+        private volatile SpooledFile spooled;
+
+        private Upload(String id, String userId, String fileName, long size, Path partFile,
+                       DocxStreamValidator validator) {
+            this.id = id;
+            this.userId = userId;
+            this.fileName = fileName;
+            this.size = size;
+            this.partFile = partFile;
+            this.validator = validator;
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        UploadStatus snapshot() {
+            UploadStatus status = new UploadStatus();
+            status.setUploadId(id);
+            status.setUserId(userId);
+            status.setFileName(fileName);
+            status.setStatus(state.name());
+            status.setSize(size);
+            status.setOffset(offset);
+            status.setMessage(message);
+            status.setCreatedAt(createdAt);
+            SpooledFile file = spooled;
+            if (file != null) {
+                status.setHash(file.hash());
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Обработка черновика по частям. Черновик делится на абзацы; размеченные абзацы
+ * кэшируются (ChunkCache), и агенту отправляются только новые и изменённые.
+ * Большой черновик дополнительно делится по заголовкам разделов (те же, что
+ * распознаёт main.py), и разделы размечаются параллельно на нескольких воркерах пула.
+ * Затем агент собирает части по порядку в итоговый документ. Строки размечаются
+ * независимо друг от друга, поэтому результат совпадает с обработкой черновика целиком.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SectionProcessor {
+
+    // Названия разделов, которые агент размечает заголовками; их же использует DocxStyleEngine
+    static final Set<String> SECTION_HEADINGS =
+            Set.of("Введение", "Методы", "Результаты", "Заключение", "Список литературы");
+
+    private final PythonAgentPool agentPool;
+    private final JobStatusPublisher statusPublisher;
+    private final ChunkCache chunkCache;
+    private final ObjectMapper objectMapper;
+    private final ProcessingMetrics metrics;
+
+    @Value("${processing.sections.enabled:true}")
+    private boolean sectionsEnabled;
+
+    @Value("${processing.sections.min-draft-kb:64}")
+    private long minDraftKb;
+
+    @Value("${processing.sections.max-sections:16}")
+    private int maxSections;
+
+    @Value("${processing.sections.max-parallel:4}")
+    private int maxParallel;
+
+    @Value("${processing.chunks.enabled:true}")
+    private boolean chunksEnabled;
+
+    /**
+     * Делит черновик на разделы и абзацы. null - черновик выгоднее отдать агенту
+     * целиком (обработка по частям выключена или черновик не читается как UTF-8).
+     */
+    public DraftPlan plan(Path draft) throws IOException {
+        boolean sectioned = sectionsEnabled && Files.size(draft) >= minDraftKb * 1024;
+        if (!chunksEnabled && !sectioned) {
+            return null;
+        }
+
+        String content;
+        try {
+            content = Files.readString(draft, StandardCharsets.UTF_8);
+        } catch (CharacterCodingException e) {
+            // Агент тоже не прочитает такой черновик - пусть сообщит об ошибке сам
+            return null;
+        }
+        // Как в агенте: универсальные переводы строк и strip() всего текста
+        String[] lines = stripPython(content.replace("\r\n", "\n").replace('\r', '\n')).split("\n", -1);
+
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        if (sectioned) {
+            for (int i = 1; i < lines.length; i++) {
+                if (SECTION_HEADINGS.contains(lines[i])) {
+                    starts.add(i);
+                }
+            }
+        }
+        if (!chunksEnabled && starts.size() < 2) {
+            return null;
+        }
+
+        // Слишком много разделов - объединяем соседние, порядок строк не меняется
+        int groups = Math.min(starts.size(), maxSections);
+        List<Section> sections = new ArrayList<>(groups);
+        for (int group = 0; group < groups; group++) {
+            int from = starts.get(group * starts.size() / groups);
+            int nextGroup = (group + 1) * starts.size() / groups;
+            int to = nextGroup < starts.size() ? starts.get(nextGroup) : lines.length;
+            sections.add(new Section(chunk(lines, from, to)));
+        }
+        return new DraftPlan(sections);
+    }
+
+    /**
+     * Размечает части черновика, которых нет в кэше (разделы - параллельно), и собирает
+     * документ. context - шаблон и версия агента для ключей кэша. Возвращает код
+     * завершения агента: первый ненулевой код части или код сборки.
+     */
+    public int run(DraftPlan plan,
+                   String context,
+                   File agentFile,
+                   AgentRequest document,
+                   AgentRun run,
+                   ProcessStatus status,
+                   Consumer<String> errorHandler,
+                   Consumer<AgentProtocolReader> mergeHandler) throws Exception {
+
+        Path partsDir = document.outputDir().resolve("sections");
+        Files.createDirectories(partsDir);
+
+        // Что уже размечено раньше - берём из кэша
+        List<Integer> pending = new ArrayList<>();
+        int total = 0;
+        int cached = 0;
+        for (int i = 0; i < plan.sections().size(); i++) {
+            Section section = plan.sections().get(i);
+            for (Chunk chunk : section.chunks()) {
+                chunk.key = ChunkCache.key(context, chunk.first, chunk.text);
+                chunk.output = chunksEnabled ? chunkCache.get(chunk.key) : null;
+                total++;
+                if (chunk.output != null) {
+                    cached++;
+                }
+            }
+            if (section.chunks().stream().anyMatch(chunk -> chunk.output == null)) {
+                pending.add(i);
+            }
+        }
+
+        status.setMessage(cached > 0
+                ? "Без изменений абзацев: " + cached + " из " + total + ", обрабатываем остальные..."
+                : "Черновик разбит на части (" + plan.sections().size() + "), обрабатываем...");
+        statusPublisher.publish(status);
+        log.info("Job {}: {} sections, {} of {} chunks cached", status.getProcessId(),
+                plan.sections().size(), cached, total);
+
+        int exitCode = pending.isEmpty() ? 0
+                : styleSections(plan, pending, partsDir, agentFile, document, run, status, errorHandler);
+        if (exitCode != 0 || run.isKilled()) {
+            return exitCode != 0 ? exitCode : -1;
+        }
+
+        // Части по порядку: текст раздела - размеченные абзацы через перевод строки
+        List<Path> parts = new ArrayList<>(plan.sections().size());
+        for (int i = 0; i < plan.sections().size(); i++) {
+            List<String> outputs = plan.sections().get(i).chunks().stream().map(chunk -> chunk.output).toList();
+            Path part = partsDir.resolve(String.format("part_%03d.txt", i));
+            Files.writeString(part, String.join("\n", outputs), StandardCharsets.UTF_8);
+            parts.add(part);
+        }
+
+        AgentRequest merge = AgentRequest.merge(document.templatePath(), document.draftPath(),
+                document.outputDir(), document.styles(), parts);
+        return agentPool.runJob(agentFile, merge, run, mergeHandler);
+    }
+
+    private int styleSections(DraftPlan plan,
+                              List<Integer> pending,
+                              Path partsDir,
+                              File agentFile,
+                              AgentRequest document,
+                              AgentRun run,
+                              ProcessStatus status,
+                              Consumer<String> errorHandler) throws Exception {
+
+        int[] progress = new int[pending.size()];
+        long started = System.nanoTime();
+        Semaphore slots = new Semaphore(Math.max(1, maxParallel));
+        List<Future<Integer>> results = new ArrayList<>(pending.size());
+        int exitCode = 0;
+
+        try (ExecutorService fanOut = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < pending.size(); i++) {
+                int slot = i;
+                Section section = plan.sections().get(pending.get(i));
+                List<Chunk> missing = section.chunks().stream().filter(chunk -> chunk.output == null).toList();
+
+                // Абзацы раздела, которых нет в кэше, одним заданием
+                Path input = partsDir.resolve(String.format("chunks_%03d.json", pending.get(i)));
+                objectMapper.writeValue(input.toFile(), missing.stream()
+                        .map(chunk -> Map.of("text", chunk.text, "first", chunk.first))
+                        .toList());
+                AgentRequest request = AgentRequest.chunks(input, partsDir, document.styles());
+
+                results.add(fanOut.submit(() -> {
+                    slots.acquire();
+                    try {
+                        if (run.isKilled()) {
+                            return -1;
+                        }
+                        Path[] output = new Path[1];
+                        int code = agentPool.runJob(agentFile, request, run, line -> {
+                            run.touch();
+                            if (run.isKilled()) {
+                                return;
+                            }
+                            switch (line.kind()) {
+                                case PROGRESS -> sectionProgress(status, progress, slot, line.number());
+                                case RESULT -> output[0] = Paths.get(line.text());
+                                case ERROR -> errorHandler.accept(line.text());
+                                default -> { }
+                            }
+                        });
+                        if (code == 0) {
+                            code = storeOutputs(missing, output[0], errorHandler);
+                        }
+                        return code;
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results) {
+                int code;
+                try {
+                    code = result.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+                if (code != 0 && exitCode == 0) {
+                    exitCode = code;
+                }
+            }
+        }
+        metrics.recordStage("agent.sections", System.nanoTime() - started);
+        return exitCode;
+    }
+
+    /**
+     * Раскладывает ответ агента по абзацам и кладёт их в кэш.
+     */
+    private int storeOutputs(List<Chunk> chunks, Path output, Consumer<String> errorHandler) throws IOException {
+        List<String> outputs = output != null
+                ? objectMapper.readValue(output.toFile(), new TypeReference<List<String>>() { })
+                : null;
+        if (outputs == null || outputs.size() != chunks.size()) {
+            errorHandler.accept("агент вернул неполный результат разметки");
+            return 1;
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            chunk.output = outputs.get(i);
+            if (chunksEnabled) {
+                chunkCache.put(chunk.key, chunk.output);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Общий прогресс - среднее по обрабатываемым разделам, на разметку отводится диапазон 10-90%.
+     */
+    private void sectionProgress(ProcessStatus status, int[] progress, int index, int value) {
+        int aggregate;
+        int done = 0;
+        synchronized (progress) {
+            progress[index] = Math.max(progress[index], Math.min(100, value));
+            long sum = 0;
+            for (int sectionProgress : progress) {
+                sum += sectionProgress;
+                if (sectionProgress == 100) {
+                    done++;
+                }
+            }
+            aggregate = (int) (10 + sum * 80 / (100L * progress.length));
+
+            if (aggregate <= status.getProgress()) {
+                return;
+            }
+            status.setProgress(aggregate);
+            status.setMessage("Обработано частей: " + done + " из " + progress.length);
+        }
+        statusPublisher.publish(status);
+    }
+
+    /**
+     * Абзацы строк [from, to): в текстовом черновике абзац - это непустая строка,
+     * пустые строки после неё относятся к тому же абзацу. Первая строка черновика
+     * размечается в своём контексте (правило заголовка документа).
+     */
+    private static List<Chunk> chunk(String[] lines, int from, int to) {
+        List<Chunk> chunks = new ArrayList<>();
+        int start = from;
+        for (int i = from + 1; i < to; i++) {
+            if (!lines[i].isBlank()) {
+                chunks.add(new Chunk(String.join("\n", Arrays.asList(lines).subList(start, i)), start == 0));
+                start = i;
+            }
+        }
+        chunks.add(new Chunk(String.join("\n", Arrays.asList(lines).subList(start, to)), start == 0));
+        return chunks;
+    }
+
+    private static String stripPython(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && isPythonSpace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && isPythonSpace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isPythonSpace(char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c) || c == '\u0085';
+    }
+
+    /**
+     * Черновик, разбитый на разделы и абзацы.
+     */
+    public record DraftPlan(List<Section> sections) {
+    }
+
+    private record Section(List<Chunk> chunks) {
+    }
+
+    private static final class Chunk {
+        private final String text;
+        private final boolean first;
+        private String key;
+        private volatile String output;
+
+        private Chunk(String text, boolean first) {
+            this.text = text;
+            this.first = first;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.docstyler.backend.service;
+
+import java.nio.file.Path;
+
+/**
+ * Загруженный файл в контентно-адресуемом хранилище.
+ *
+ * @param hash         SHA-256 содержимого (hex), он же ключ в хранилище
+ * @param path         путь к единственной копии файла в хранилище
+ * @param size         размер в байтах
+ * @param originalName имя файла, под которым его загрузил пользователь
+ */
+public record SpooledFile(String hash, Path path, long size, String originalName) {
+}
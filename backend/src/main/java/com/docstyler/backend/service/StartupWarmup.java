@@ -0,0 +1,141 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Прогрев при запуске (python.agent.prewarm.enabled): пул воркеров поднимается заранее,
+ * и каждый воркер выполняет короткое задание merge - без имитации работы модели,
+ * но через тот же протокол, чтение файлов и запись результата. Слушатель выполняется
+ * синхронно, поэтому readiness (/actuator/health/readiness) переходит в
+ * ACCEPTING_TRAFFIC только после прогрева, и первое задание идёт на тёплом агенте.
+ * Задания прогрева видит JobWatchdog; не уложившиеся в срок снимаются вместе с воркером,
+ * так что зависший агент не задерживает готовность дольше WARMUP_JOB_TIMEOUT_SECONDS.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class StartupWarmup {
+
+    private static final long WARMUP_JOB_TIMEOUT_SECONDS = 30;
+
+    private final AgentLocator agentLocator;
+    private final PythonAgentPool agentPool;
+    private final JobWatchdog jobWatchdog;
+    private final ProcessingMetrics metrics;
+    private final ObjectMapper objectMapper;
+
+    @Value("${python.agent.prewarm.enabled:false}")
+    private boolean enabled;
+
+    @Value("${python.agent.mode:pool}")
+    private String agentMode;
+
+    @Value("${temp.directory:./temp_documents}")
+    private String tempDirectory;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void warmUp() {
+        long started = System.nanoTime();
+        if (enabled && "pool".equals(agentMode)) {
+            try {
+                File agentFile = agentLocator.agentFile();
+                int workers = agentPool.prewarm(agentFile);
+                int jobs = runWarmupJobs(agentFile);
+                log.info("Warm-up done in {} ms: {} Python workers started, {} warm-up jobs",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), workers, jobs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Без прогрева сервис всё равно работает, просто первое задание медленнее
+                log.warn("Warm-up failed: {}", e.getMessage());
+            }
+        }
+        metrics.recordStartup(System.nanoTime() - started);
+    }
+
+    /**
+     * По одному заданию на каждый воркер пула одновременно: пока все заняты,
+     * следующий запрос к пулу не получит уже прогретого воркера повторно.
+     */
+    private int runWarmupJobs(File agentFile) throws Exception {
+        Path dir = Paths.get(tempDirectory, "warmup");
+        Files.createDirectories(dir);
+        try {
+            Path template = Files.writeString(dir.resolve("template.txt"),
+                    "Заголовок 1 --- Шрифт: Times New Roman, 14pt\n", StandardCharsets.UTF_8);
+            Path draft = Files.writeString(dir.resolve("draft.txt"),
+                    "Прогрев\n\nВведение\nТекст.\n", StandardCharsets.UTF_8);
+            Path part = Files.writeString(dir.resolve("part.txt"), "Прогрев\n", StandardCharsets.UTF_8);
+            // Заодно строятся сериализаторы Jackson для статуса задания
+            objectMapper.writeValueAsString(new ProcessStatus("warmup", "warmup"));
+
+            List<AgentRun> runs = new ArrayList<>();
+            List<Callable<Integer>> jobs = new ArrayList<>();
+            for (int i = 0; i < agentPool.getLiveWorkers(); i++) {
+                Path output = Files.createDirectories(dir.resolve("out-" + i));
+                AgentRequest request = AgentRequest.merge(template, draft, output,
+                        List.of("Заголовок 1"), List.of(part));
+                AgentRun run = jobWatchdog.start("warmup-" + i, (int) WARMUP_JOB_TIMEOUT_SECONDS);
+                runs.add(run);
+                jobs.add(() -> {
+                    try {
+                        return agentPool.runJob(agentFile, request, run, line -> run.touch());
+                    } finally {
+                        jobWatchdog.finish(run);
+                    }
+                });
+            }
+
+            int succeeded = 0;
+            try (ExecutorService runner = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Integer>> results = runner.invokeAll(jobs, WARMUP_JOB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                for (int i = 0; i < results.size(); i++) {
+                    Future<Integer> job = results.get(i);
+                    if (job.isCancelled()) {
+                        // Прерывание не снимает поток с чтения из канала агента: убиваем воркер,
+                        // иначе close() будет ждать зависшее задание
+                        runs.get(i).kill(JobWatchdog.TIMEOUT);
+                    } else if (job.state() == Future.State.SUCCESS && job.resultNow() == 0) {
+                        succeeded++;
+                    }
+                }
+            }
+            return succeeded;
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (Exception e) {
+            log.debug("Could not clean warm-up directory {}: {}", dir, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.docstyler.backend.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Последние байты stderr агента для отчётов об ошибках. Поток stderr вычитывается
+ * постоянно в виртуальном потоке, поэтому многословный агент не заполнит буфер
+ * канала и не зависнет; хранится только хвост фиксированного размера.
+ */
+@Slf4j
+public final class StderrTail {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final ThreadFactory DRAINERS = Thread.ofVirtual().name("agent-stderr-", 0).factory();
+
+    private final byte[] ring;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private int end;
+    private int length;
+
+    private StderrTail(int capacity) {
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Запускает вычитывание stderr процесса; поток завершается вместе с процессом.
+     */
+    public static StderrTail drain(InputStream stderr, String label) {
+        StderrTail tail = new StderrTail(DEFAULT_CAPACITY);
+        DRAINERS.newThread(() -> tail.pump(stderr, label)).start();
+        return tail;
+    }
+
+    /**
+     * Забывает накопленное - например, перед следующим заданием воркера.
+     */
+    public synchronized void clear() {
+        end = 0;
+        length = 0;
+    }
+
+    /**
+     * Ждёт, пока stderr будет вычитан до конца (процесс завершился).
+     */
+    public boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        return closed.await(timeout, unit);
+    }
+
+    public synchronized boolean isEmpty() {
+        return length == 0;
+    }
+
+    public synchronized String contents() {
+        byte[] copy = new byte[length];
+        int start = Math.floorMod(end - length, ring.length);
+        int firstPart = Math.min(length, ring.length - start);
+        System.arraycopy(ring, start, copy, 0, firstPart);
+        System.arraycopy(ring, 0, copy, firstPart, length - firstPart);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Последняя непустая строка - обычно текст исключения Python.
+     */
+    public String lastLine() {
+        String text = contents().stripTrailing();
+        if (text.isEmpty()) {
+            return null;
+        }
+        return text.substring(text.lastIndexOf('\n') + 1);
+    }
+
+    private synchronized void append(byte[] data, int count) {
+        int offset = Math.max(0, count - ring.length);
+        for (int i = offset; i < count; i++) {
+            ring[end] = data[i];
+            end = (end + 1) % ring.length;
+        }
+        length = Math.min(ring.length, length + count - offset);
+    }
+
+    private void pump(InputStream stderr, String label) {
+        byte[] chunk = new byte[4096];
+        try (stderr) {
+            int count;
+            while ((count = stderr.read(chunk)) > 0) {
+                append(chunk, count);
+                if (log.isDebugEnabled()) {
+                    log.debug("Python stderr [{}]: {}", label,
+                            new String(chunk, 0, count, StandardCharsets.UTF_8).stripTrailing());
+                }
+            }
+        } catch (IOException e) {
+            // процесс завершён или убит - канал закрылся
+        } finally {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш разобранных стилей шаблона по SHA-256 его содержимого.
+ * Одни и те же шаблоны приходят тысячи раз в день, поэтому разбираем каждый один раз
+ * и храним в ограниченном LRU кэше со временем жизни записи.
+ */
+@Component
+@Slf4j
+public class TemplateStyleCache {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ProcessingMetrics metrics;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, CachedStyles> cache;
+
+    public TemplateStyleCache(ProcessingMetrics metrics,
+                              @Value("${template.cache.max-entries:256}") int maxEntries,
+                              @Value("${template.cache.ttl-minutes:720}") long ttlMinutes) {
+        this.metrics = metrics;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMinutes * 60_000;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStyles> eldest) {
+                if (size() > TemplateStyleCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Метрики регистрируются после создания: gauge держит ссылку на сам кэш.
+     */
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.counter("docstyler.template.cache.hits", "Попаданий в кэш стилей шаблонов", hits, AtomicLong::get);
+        metrics.counter("docstyler.template.cache.misses", "Промахов кэша стилей шаблонов", misses, AtomicLong::get);
+        metrics.gauge("docstyler.template.cache.size", "Шаблонов в кэше стилей", this, TemplateStyleCache::getSize);
+    }
+
+    /**
+     * Стили шаблона; null, если шаблон не удалось разобрать на стороне Java
+     * (тогда его разбирает сам агент).
+     */
+    public List<String> getStyles(SpooledFile template) {
+        long now = System.currentTimeMillis();
+
+        synchronized (cache) {
+            CachedStyles cached = cache.get(template.hash());
+            if (cached != null && cached.expiresAt() > now) {
+                hits.incrementAndGet();
+                return cached.styles();
+            }
+        }
+
+        misses.incrementAndGet();
+        List<String> styles = parseStyles(template);
+        if (styles == null) {
+            return null;
+        }
+
+        synchronized (cache) {
+            cache.put(template.hash(), new CachedStyles(styles, now + ttlMillis));
+        }
+        log.debug("Template {} analysed: {} styles", template.hash(), styles.size());
+        return styles;
+    }
+
+    /**
+     * Тот же разбор, что и в main.py: строка вида "Заголовок 1 --- Шрифт: Times New Roman, 14pt"
+     * даёт стиль "Заголовок 1".
+     */
+    private List<String> parseStyles(SpooledFile template) {
+        List<String> styles = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(template.path(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (!line.isEmpty() && line.contains("---")) {
+                    styles.add(line.substring(0, line.indexOf("---")).strip());
+                }
+            }
+        } catch (CharacterCodingException e) {
+            log.debug("Template {} is not UTF-8 text, leaving analysis to the agent", template.hash());
+            return null;
+        } catch (IOException e) {
+            log.warn("Could not analyse template {}: {}", template.hash(), e.getMessage());
+            return null;
+        }
+        return Collections.unmodifiableList(styles);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private record CachedStyles(List<String> styles, long expiresAt) {
+    }
+}
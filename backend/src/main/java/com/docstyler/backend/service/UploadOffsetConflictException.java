@@ -0,0 +1,18 @@
+package com.docstyler.backend.service;
+
+import lombok.Getter;
+
+/**
+ * Фрагмент пришёл не с того смещения (или загрузка уже принимает другой фрагмент):
+ * клиенту стоит продолжить с currentOffset.
+ */
+@Getter
+public class UploadOffsetConflictException extends RuntimeException {
+
+    private final long currentOffset;
+
+    public UploadOffsetConflictException(String message, long currentOffset) {
+        super(message);
+        this.currentOffset = currentOffset;
+    }
+}
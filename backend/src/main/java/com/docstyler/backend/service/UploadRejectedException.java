@@ -0,0 +1,11 @@
+package com.docstyler.backend.service;
+
+/**
+ * Загрузка отклонена: файл не прошёл проверку или нарушает ограничения загрузок.
+ */
+public class UploadRejectedException extends RuntimeException {
+
+    public UploadRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,255 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Контентно-адресуемое хранилище загрузок. Каждый файл сохраняется один раз под
+ * SHA-256 своего содержимого, задания получают на него жёсткую ссылку.
+ * Файл без ссылок удаляется, если его не загружали повторно в течение spool.idle-ttl-minutes.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class UploadSpool {
+
+    private final ProcessingMetrics metrics;
+
+    private final Map<String, Integer> refCounts = new ConcurrentHashMap<>();
+    private final Map<String, Long> idleSince = new ConcurrentHashMap<>();
+
+    @Value("${spool.directory:./spool}")
+    private String spoolDirectory;
+
+    @Value("${spool.idle-ttl-minutes:60}")
+    private long idleTtlMinutes;
+
+    private Path objectsDir;
+    private Path incomingDir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        objectsDir = Paths.get(spoolDirectory, "objects");
+        incomingDir = Paths.get(spoolDirectory, "incoming");
+        Files.createDirectories(objectsDir);
+        Files.createDirectories(incomingDir);
+
+        // Незавершённые загрузки прошлого запуска больше не нужны
+        try (Stream<Path> leftovers = Files.list(incomingDir)) {
+            leftovers.forEach(this::deleteQuietly);
+        }
+
+        // Объекты прошлого запуска считаем неиспользуемыми, пока на них не сошлются снова
+        long now = System.currentTimeMillis();
+        try (Stream<Path> objects = Files.walk(objectsDir)) {
+            objects.filter(Files::isRegularFile)
+                    .forEach(object -> idleSince.put(object.getFileName().toString(), now));
+        }
+        log.info("Upload spool at {}: {} stored objects", objectsDir.toAbsolutePath(), idleSince.size());
+
+        metrics.gauge("docstyler.spool.objects", "Файлов в хранилище загрузок", this, UploadSpool::getStoredObjectCount);
+    }
+
+    /**
+     * Сохраняет загрузку в хранилище (если такого содержимого там ещё нет)
+     * и увеличивает счётчик ссылок на неё. Вызывается в потоке запроса.
+     */
+    public SpooledFile spool(MultipartFile file, String defaultName) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return spool(in, sanitizeName(file.getOriginalFilename(), defaultName));
+        }
+    }
+
+    /**
+     * То же для произвольного потока (например, записи zip архива). Поток не закрывается.
+     */
+    public SpooledFile spool(InputStream source, String originalName) throws IOException {
+        long started = System.nanoTime();
+        Path incoming = incomingDir.resolve(UUID.randomUUID() + ".part");
+        MessageDigest digest = newDigest();
+        long size;
+        try (OutputStream out = Files.newOutputStream(incoming)) {
+            size = new DigestInputStream(source, digest).transferTo(out);
+        } catch (IOException e) {
+            deleteQuietly(incoming);
+            throw e;
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        SpooledFile spooled = acquire(hash, incoming, size, originalName);
+        metrics.recordStage("spool", System.nanoTime() - started);
+        return spooled;
+    }
+
+    /**
+     * Снова берёт ссылку на объект, сохранённый до перезапуска; null, если его уже нет.
+     */
+    public SpooledFile adopt(String hash, String originalName) {
+        Path object = objectPath(hash);
+        SpooledFile[] adopted = {null};
+        refCounts.compute(hash, (key, count) -> {
+            if (!Files.exists(object)) {
+                return count;
+            }
+            idleSince.remove(key);
+            try {
+                adopted[0] = new SpooledFile(hash, object, Files.size(object), originalName);
+            } catch (IOException e) {
+                return count;
+            }
+            return count == null ? 1 : count + 1;
+        });
+        return adopted[0];
+    }
+
+    /**
+     * Ещё одна ссылка на файл, на который вызывающий уже держит ссылку.
+     */
+    public SpooledFile retain(SpooledFile file) {
+        refCounts.merge(file.hash(), 1, Integer::sum);
+        return file;
+    }
+
+    /**
+     * Регистрирует уже записанный во входящую директорию файл под его хэшем.
+     */
+    SpooledFile acquire(String hash, Path incoming, long size, String originalName) {
+        Path object = objectPath(hash);
+
+        refCounts.compute(hash, (key, count) -> {
+            try {
+                if (Files.exists(object)) {
+                    // Такое содержимое уже хранится - вторая копия не нужна
+                    Files.delete(incoming);
+                } else {
+                    Files.createDirectories(object.getParent());
+                    Files.move(incoming, object, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (FileAlreadyExistsException e) {
+                deleteQuietly(incoming);
+            } catch (IOException e) {
+                deleteQuietly(incoming);
+                throw new UncheckedIOException(e);
+            }
+            idleSince.remove(key);
+            return count == null ? 1 : count + 1;
+        });
+
+        return new SpooledFile(hash, object, size, originalName);
+    }
+
+    /**
+     * Делает файл задания: жёсткая ссылка на объект хранилища, а если файловая
+     * система её не поддерживает - сам объект хранилища.
+     */
+    public Path linkInto(SpooledFile file, Path jobDir, String name) {
+        Path link = jobDir.resolve(name);
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, file.path());
+            return link;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Hard link {} -> {} not possible, using spool object directly: {}",
+                    link, file.path(), e.getMessage());
+            return file.path();
+        }
+    }
+
+    public void release(SpooledFile file) {
+        if (file == null) {
+            return;
+        }
+        refCounts.computeIfPresent(file.hash(), (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            idleSince.put(key, System.currentTimeMillis());
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${spool.sweep-interval-ms:60000}")
+    public void sweepIdleObjects() {
+        long deadline = System.currentTimeMillis() - idleTtlMinutes * 60_000;
+        int removed = 0;
+
+        for (Map.Entry<String, Long> entry : idleSince.entrySet()) {
+            if (entry.getValue() > deadline) {
+                continue;
+            }
+            String hash = entry.getKey();
+            boolean[] deleted = {false};
+            // compute блокирует ключ, поэтому параллельная загрузка того же файла не потеряет объект
+            refCounts.compute(hash, (key, count) -> {
+                if (count == null && idleSince.remove(key) != null) {
+                    deleteQuietly(objectPath(key));
+                    deleted[0] = true;
+                }
+                return count;
+            });
+            if (deleted[0]) {
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            log.info("Upload spool: removed {} unreferenced objects", removed);
+        }
+    }
+
+    public int getStoredObjectCount() {
+        return refCounts.size() + idleSince.size();
+    }
+
+    private Path objectPath(String hash) {
+        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String sanitizeName(String name, String defaultName) {
+        if (name == null || name.isBlank()) {
+            return defaultName;
+        }
+        // Отбрасываем путь клиента, оставляем только имя файла
+        String fileName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        return fileName.isBlank() || ".".equals(fileName) || "..".equals(fileName) ? defaultName : fileName;
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Could not delete {}: {}", path, e.getMessage());
+        }
+    }
+}
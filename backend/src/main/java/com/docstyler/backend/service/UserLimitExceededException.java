@@ -0,0 +1,11 @@
+package com.docstyler.backend.service;
+
+/**
+ * Запрос отклонён из-за ограничений конкретного пользователя (а не всего сервера).
+ */
+public class UserLimitExceededException extends JobRejectedException {
+
+    public UserLimitExceededException(String message, int retryAfterSeconds) {
+        super(message, retryAfterSeconds);
+    }
+}
@@ -0,0 +1,125 @@
+package com.docstyler.backend.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничения на пользователя: token bucket на частоту запросов (users.rate-limit.*) и
+ * потолок одновременных заданий в очереди и в работе (users.concurrency-limit.enabled,
+ * слот занимает JobScheduler). Проверяется до приёма файлов, поэтому отклонённый
+ * запрос ничего не пишет на диск.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class UserRateLimiter {
+
+    private final JobScheduler jobScheduler;
+    private final ProcessingMetrics metrics;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong concurrencyLimited = new AtomicLong();
+
+    @Value("${users.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${users.rate-limit.burst:10}")
+    private int burst;
+
+    @Value("${users.rate-limit.requests-per-minute:30}")
+    private double requestsPerMinute;
+
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.counter("docstyler.users.rejected.rate", "Запросов, отклонённых по частоте", rateLimited,
+                AtomicLong::get);
+        metrics.counter("docstyler.users.rejected.concurrency", "Запросов, отклонённых по числу заданий",
+                concurrencyLimited, AtomicLong::get);
+    }
+
+    /**
+     * Пропускает запрос пользователя или бросает UserLimitExceededException
+     * со временем, через которое стоит повторить. Пропущенный запрос держит слот
+     * пользователя до завершения (см. JobScheduler.reserveUserSlot).
+     */
+    public void admit(String userId) {
+        try {
+            jobScheduler.reserveUserSlot(userId);
+        } catch (UserLimitExceededException e) {
+            concurrencyLimited.incrementAndGet();
+            throw e;
+        }
+        if (!enabled) {
+            return;
+        }
+
+        TokenBucket bucket = buckets.computeIfAbsent(userId, id -> new TokenBucket(burst));
+        long waitNanos = bucket.tryConsume(burst, requestsPerMinute / TimeUnit.MINUTES.toNanos(1));
+        if (waitNanos > 0) {
+            rateLimited.incrementAndGet();
+            log.debug("User {} rejected: rate limit", userId);
+            int retryAfter = (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1);
+            jobScheduler.releaseReservation();
+            throw new UserLimitExceededException("Слишком много запросов, попробуйте позже", retryAfter);
+        }
+    }
+
+    /**
+     * Завершение запроса, пропущенного admit: освобождает его слот, если задание
+     * так и не было поставлено.
+     */
+    public void release() {
+        jobScheduler.releaseReservation();
+    }
+
+    /**
+     * Убирает полные корзины: для них нет разницы, есть запись или нет.
+     */
+    @Scheduled(fixedDelayString = "${users.rate-limit.sweep-interval-ms:60000}")
+    public void sweepIdleBuckets() {
+        double tokensPerNano = requestsPerMinute / TimeUnit.MINUTES.toNanos(1);
+        buckets.values().removeIf(bucket -> bucket.isFull(burst, tokensPerNano));
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        private TokenBucket(int capacity) {
+            this.tokens = capacity;
+        }
+
+        /**
+         * Забирает один токен; возвращает 0 или сколько наносекунд ждать следующего.
+         */
+        synchronized long tryConsume(int capacity, double tokensPerNano) {
+            refill(capacity, tokensPerNano);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        synchronized boolean isFull(int capacity, double tokensPerNano) {
+            refill(capacity, tokensPerNano);
+            return tokens >= capacity;
+        }
+
+        private void refill(int capacity, double tokensPerNano) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+        }
+    }
+}
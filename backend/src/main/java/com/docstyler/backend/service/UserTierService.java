@@ -0,0 +1,159 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.User;
+import com.docstyler.backend.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Тариф пользователя (User.subscription) и его вес в очереди обработки.
+ * Тарифы кэшируются; MongoDB опрашивается только в фоне, поток запроса её не ждёт:
+ * пока ответа нет, действует прежний тариф или бесплатный. Очередь запросов к базе
+ * ограничена, а после ошибки база не опрашивается failure-backoff-ms.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class UserTierService {
+
+    static final String DEFAULT_TIER = "free";
+
+    private final UserRepository userRepository;
+
+    private final Map<String, CachedTier> tiers = new ConcurrentHashMap<>();
+    private final Set<String> pendingLookups = ConcurrentHashMap.newKeySet();
+
+    @Value("${users.tier.weights:free:1,pro:4}")
+    private String weightsSpec;
+
+    @Value("${users.tier.cache-ttl-minutes:10}")
+    private long cacheTtlMinutes;
+
+    @Value("${users.tier.lookup-queue-capacity:100}")
+    private int lookupQueueCapacity;
+
+    @Value("${users.tier.failure-backoff-ms:30000}")
+    private long failureBackoffMs;
+
+    private Map<String, Double> weights;
+    private ThreadPoolExecutor lookupExecutor;
+    private volatile long lookupsPausedUntil;
+
+    @PostConstruct
+    public void init() {
+        weights = parseWeights(weightsSpec);
+        lookupExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(lookupQueueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "user-tier-lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        log.info("User tier weights: {}", weights);
+    }
+
+    public String getTier(String userId) {
+        if (userId == null || "anonymous".equals(userId)) {
+            return DEFAULT_TIER;
+        }
+
+        CachedTier cached = tiers.get(userId);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.loadedAt() < TimeUnit.MINUTES.toMillis(cacheTtlMinutes)) {
+            return cached.tier();
+        }
+
+        scheduleLookup(userId, now);
+        return cached != null ? cached.tier() : DEFAULT_TIER;
+    }
+
+    public double getWeight(String userId) {
+        String tier = getTier(userId);
+        return weights.getOrDefault(tier, weights.getOrDefault(DEFAULT_TIER, 1.0));
+    }
+
+    @Scheduled(fixedDelayString = "${users.tier.sweep-interval-ms:300000}")
+    public void sweepExpired() {
+        long expiredBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(cacheTtlMinutes);
+        tiers.values().removeIf(cached -> cached.loadedAt() < expiredBefore);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lookupExecutor.shutdownNow();
+    }
+
+    /**
+     * Ставит чтение тарифа в фоновую очередь. Один запрос к базе на пользователя,
+     * сколько бы заданий ни пришло одновременно; при полной очереди или недоступной
+     * базе запрос просто не ставится - тариф обновится при следующем обращении.
+     */
+    private void scheduleLookup(String userId, long now) {
+        if (now < lookupsPausedUntil || !pendingLookups.add(userId)) {
+            return;
+        }
+        try {
+            lookupExecutor.execute(() -> {
+                try {
+                    loadTier(userId);
+                } finally {
+                    pendingLookups.remove(userId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingLookups.remove(userId);
+            log.debug("Tier lookup queue is full, user {} keeps tier {}", userId, DEFAULT_TIER);
+        }
+    }
+
+    private void loadTier(String userId) {
+        String tier;
+        try {
+            tier = userRepository.findById(userId)
+                    .map(User::getSubscription)
+                    .filter(subscription -> !subscription.isBlank())
+                    .orElse(DEFAULT_TIER);
+        } catch (RuntimeException e) {
+            log.warn("Could not load subscription for user {}: {}", userId, e.getMessage());
+            tier = DEFAULT_TIER;
+            // Пока база недоступна, новые запросы не копятся за зависшими на таймауте соединения
+            lookupsPausedUntil = System.currentTimeMillis() + failureBackoffMs;
+            lookupExecutor.getQueue().clear();
+            pendingLookups.clear();
+        }
+        // Запоминаем и неудачный результат, чтобы недоступная база не опрашивалась на каждое задание
+        tiers.put(userId, new CachedTier(tier, System.currentTimeMillis()));
+    }
+
+    private static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> result = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid users.tier.weights entry: " + entry);
+            }
+            double weight = Double.parseDouble(parts[1].trim());
+            if (weight < 0.1) {
+                throw new IllegalArgumentException("Tier weight must be at least 0.1: " + entry);
+            }
+            result.put(parts[0].trim(), weight);
+        }
+        return result;
+    }
+
+    private record CachedTier(String tier, long loadedAt) {
+    }
+}
@@ -0,0 +1,159 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterJobStoreTest {
+
+    private static final ObjectMapper MAPPER = JsonMapper.builder().findAndAddModules().build();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void leaseIsTakenByOneNodeAndRenewedOnlyByIt() throws Exception {
+        ClusterJobStore a = node("a");
+        ClusterJobStore b = node("b");
+        enqueue(a, "job-1", "u1");
+        assertEquals(List.of("job-1"), b.queuedJobs());
+
+        assertTrue(a.tryLease("job-1"));
+        assertFalse(b.tryLease("job-1"));
+        b.removeTicket("job-1");
+        assertTrue(b.queuedJobs().isEmpty());
+
+        assertTrue(a.renewLease("job-1"));
+        assertFalse(b.renewLease("job-1"));
+        assertEquals(List.of("job-1"), a.ownedJobs());
+    }
+
+    @Test
+    void expiredLeaseIsReclaimedAndJobRequeued() throws Exception {
+        ClusterJobStore a = node("a");
+        ClusterJobStore b = node("b");
+        enqueue(a, "job-1", "u1");
+        assertTrue(a.tryLease("job-1"));
+        a.removeTicket("job-1");
+
+        // Свежую аренду не трогают
+        assertEquals(0, b.reclaimExpiredLeases());
+        assertTrue(a.renewLease("job-1"));
+
+        // Узел a перестал продлевать аренду
+        age(lease("job-1"), 60);
+        assertEquals(1, b.reclaimExpiredLeases());
+        assertEquals(List.of("job-1"), b.queuedJobs());
+        assertEquals("QUEUED", b.readStatus("job-1").getStatus());
+        try (var leases = Files.list(dir.resolve("leases"))) {
+            assertEquals(0, leases.count());
+        }
+
+        // Узел a узнаёт о потере аренды при следующем продлении
+        assertFalse(a.renewLease("job-1"));
+        assertTrue(a.ownedJobs().isEmpty());
+        assertTrue(b.tryLease("job-1"));
+    }
+
+    @Test
+    void renewalSurvivesReclaimCheckInProgress() throws Exception {
+        ClusterJobStore a = node("a");
+        enqueue(a, "job-1", "u1");
+        assertTrue(a.tryLease("job-1"));
+
+        // Узел b переименовал аренду на время проверки срока
+        Path checking = lease("job-1").resolveSibling("job-1.reclaim-b");
+        Files.move(lease("job-1"), checking, StandardCopyOption.ATOMIC_MOVE);
+        assertTrue(a.renewLease("job-1"));
+        assertEquals(List.of("job-1"), a.ownedJobs());
+
+        // Аренда оказалась живой и вернулась на место
+        Files.move(checking, lease("job-1"), StandardCopyOption.ATOMIC_MOVE);
+        assertTrue(a.renewLease("job-1"));
+    }
+
+    @Test
+    void stalledReclaimOfCrashedNodeIsFinished() throws Exception {
+        ClusterJobStore a = node("a");
+        ClusterJobStore c = node("c");
+        enqueue(a, "job-1", "u1");
+        assertTrue(a.tryLease("job-1"));
+        a.removeTicket("job-1");
+
+        // Узел b упал посреди перехвата аренды
+        Path stalled = lease("job-1").resolveSibling("job-1.reclaim-b");
+        Files.move(lease("job-1"), stalled, StandardCopyOption.ATOMIC_MOVE);
+        age(stalled, 60);
+
+        assertEquals(1, c.reclaimExpiredLeases());
+        assertFalse(Files.exists(stalled));
+        assertEquals(List.of("job-1"), c.queuedJobs());
+    }
+
+    @Test
+    void unfinishedCountIsCachedAndIncludesOwnEnqueues() throws Exception {
+        ClusterJobStore a = node("a");
+        ClusterJobStore b = node("b");
+        enqueue(a, "job-1", "u1");
+        enqueue(a, "job-2", "u1");
+        enqueue(a, "job-3", "u2");
+        assertTrue(a.tryLease("job-1"));
+        a.removeTicket("job-1");
+
+        // Задание в аренде считается наравне с ожидающими
+        assertEquals(2, b.countUnfinished("u1", 10));
+        assertEquals(1, b.countUnfinished("u1", 1));
+        assertEquals(1, b.countUnfinished("u2", 10));
+
+        // В пределах интервала опроса хранилище не перечитывается, свои задания досчитываются
+        enqueue(a, "job-4", "u1");
+        assertEquals(2, b.countUnfinished("u1", 10));
+        enqueue(b, "job-5", "u1");
+        assertEquals(3, b.countUnfinished("u1", 10));
+    }
+
+    private ClusterJobStore node(String nodeId) throws Exception {
+        ClusterJobStore store = new ClusterJobStore(MAPPER);
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "directory", dir.toString());
+        ReflectionTestUtils.setField(store, "nodeId", nodeId);
+        ReflectionTestUtils.setField(store, "leaseTtlSeconds", 30L);
+        ReflectionTestUtils.setField(store, "pollIntervalMs", TimeUnit.MINUTES.toMillis(10));
+        ReflectionTestUtils.setField(store, "queueCapacity", 100);
+        store.init();
+        return store;
+    }
+
+    private void enqueue(ClusterJobStore store, String processId, String userId) throws Exception {
+        Path template = Files.writeString(dir.resolve(processId + "-template.txt"), "Шаблон", StandardCharsets.UTF_8);
+        Path draft = Files.writeString(dir.resolve(processId + "-draft.txt"), "Черновик", StandardCharsets.UTF_8);
+        store.enqueue(new ProcessStatus(processId, userId),
+                new SpooledFile("t", template, Files.size(template), "template.txt"),
+                new SpooledFile("d", draft, Files.size(draft), "draft.txt"));
+        // Билеты упорядочены по времени поступления с точностью до миллисекунды
+        Thread.sleep(2);
+    }
+
+    private Path lease(String processId) {
+        return dir.resolve("leases").resolve(processId);
+    }
+
+    private static void age(Path file, long seconds) throws Exception {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - seconds * 1000));
+    }
+}
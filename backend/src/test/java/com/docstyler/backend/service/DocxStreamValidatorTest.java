@@ -0,0 +1,147 @@
+package com.docstyler.backend.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocxStreamValidatorTest {
+
+    private static final long MAX_UNCOMPRESSED = 1024 * 1024;
+    private static final byte[] DOCUMENT = "<w:document/>".repeat(200).getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void acceptsDocxWithDataDescriptors() throws IOException {
+        // ZipOutputStream пишет сжатые записи с дескриптором данных
+        byte[] docx = zip(true, "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8),
+                "word/document.xml", DOCUMENT);
+        assertDoesNotThrow(() -> validate(docx));
+    }
+
+    @Test
+    void acceptsDocxWithSizesInHeaders() throws IOException {
+        byte[] docx = zip(false, "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8),
+                "word/document.xml", DOCUMENT);
+        assertDoesNotThrow(() -> validate(docx));
+    }
+
+    @Test
+    void rejectsTruncatedArchive() throws IOException {
+        byte[] docx = zip(true, "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8),
+                "word/document.xml", DOCUMENT);
+        byte[] truncated = Arrays.copyOf(docx, docx.length / 2);
+        assertThrows(UploadRejectedException.class, () -> validate(truncated));
+    }
+
+    @Test
+    void rejectsHeaderThatUnderstatesUncompressedSize() throws IOException {
+        // Заголовок без дескриптора объявляет 1 байт вместо реального размера document.xml
+        byte[] docx = zip(false, "word/document.xml", DOCUMENT,
+                "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer.wrap(docx).order(ByteOrder.LITTLE_ENDIAN).putInt(22, 1);
+
+        UploadRejectedException e = assertThrows(UploadRejectedException.class, () -> validate(docx));
+        assertTrue(e.getMessage().contains("word/document.xml"), e.getMessage());
+    }
+
+    @Test
+    void limitCountsRealInflatedBytes() throws IOException {
+        // Хорошо сжимаемая запись больше предела, заголовок при этом честный
+        byte[] huge = new byte[(int) MAX_UNCOMPRESSED * 2];
+        byte[] docx = zip(false, "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8),
+                "word/document.xml", huge);
+        assertThrows(UploadRejectedException.class, () -> validate(docx));
+    }
+
+    @Test
+    void rejectsStoredEntryWithDataDescriptor() {
+        // Без сжатия и без размеров в заголовке конец записи не найти
+        ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] name = "word/document.xml".getBytes(StandardCharsets.UTF_8);
+        header.putInt(0x04034b50).putShort((short) 20).putShort((short) 8).putShort((short) 0)
+                .putInt(0).putInt(0).putInt(0).putInt(0)
+                .putShort((short) name.length).putShort((short) 0);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archive.writeBytes(header.array());
+        archive.writeBytes(name);
+        archive.writeBytes(DOCUMENT);
+
+        assertThrows(UploadRejectedException.class, () -> validate(archive.toByteArray()));
+    }
+
+    @Test
+    void rejectsArchiveWithoutDocumentPart() throws IOException {
+        byte[] zip = zip(true, "[Content_Types].xml", "<Types/>".getBytes(StandardCharsets.UTF_8),
+                "word/styles.xml", DOCUMENT);
+        UploadRejectedException e = assertThrows(UploadRejectedException.class, () -> validate(zip));
+        assertTrue(e.getMessage().contains("word/document.xml"), e.getMessage());
+    }
+
+    /**
+     * Подаёт архив мелкими порциями, чтобы границы заголовков попадали между фрагментами.
+     */
+    private static void validate(byte[] archive) {
+        DocxStreamValidator validator = new DocxStreamValidator(MAX_UNCOMPRESSED);
+        try {
+            for (int offset = 0; offset < archive.length; offset += 7) {
+                validator.update(archive, offset, Math.min(7, archive.length - offset));
+            }
+            validator.finish();
+        } finally {
+            validator.close();
+        }
+    }
+
+    /**
+     * Архив из пар имя/содержимое. withDescriptors=false - размеры и CRC заранее
+     * записываются в локальные заголовки, дескрипторов данных нет.
+     */
+    private static byte[] zip(boolean withDescriptors, Object... namesAndContents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                byte[] content = (byte[]) namesAndContents[i + 1];
+                ZipEntry entry = new ZipEntry((String) namesAndContents[i]);
+                if (!withDescriptors) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setCrc(crc.getValue());
+                    entry.setSize(content.length);
+                    entry.setCompressedSize(deflatedSize(content));
+                }
+                zip.putNextEntry(entry);
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static long deflatedSize(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            long size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+}
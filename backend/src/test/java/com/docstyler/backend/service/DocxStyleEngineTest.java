@@ -0,0 +1,158 @@
+package com.docstyler.backend.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocxStyleEngineTest {
+
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String W14_NS = "http://schemas.microsoft.com/office/word/2010/wordml";
+
+    private static final String TEMPLATE_STYLES = """
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <w:styles xmlns:w="%s">
+              <w:style w:type="paragraph" w:default="1" w:styleId="Normal"><w:name w:val="Normal"/>
+                <w:rPr><w:rFonts w:ascii="Times New Roman"/></w:rPr></w:style>
+              <w:style w:type="paragraph" w:styleId="Heading1"><w:name w:val="heading 1"/></w:style>
+              <w:style w:type="paragraph" w:styleId="Heading2"><w:name w:val="heading 2"/></w:style>
+            </w:styles>
+            """.formatted(W_NS);
+
+    // Normal есть и в шаблоне - остаётся шаблонный; Quote и QuoteChar есть только в черновике
+    private static final String DRAFT_STYLES = """
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <w:styles xmlns:w="%s" xmlns:w14="%s">
+              <w:style w:type="paragraph" w:default="1" w:styleId="Normal"><w:name w:val="Normal"/>
+                <w:rPr><w:rFonts w:ascii="Arial"/></w:rPr></w:style>
+              <w:style w:type="paragraph" w:styleId="Quote"><w:name w:val="Quote"/><w:basedOn w:val="Normal"/>
+                <w:rPr><w:i/><w14:ligatures w14:val="standard"/></w:rPr></w:style>
+              <w:style w:type="character" w:styleId="QuoteChar"><w:name w:val="Quote Char"/></w:style>
+            </w:styles>
+            """.formatted(W_NS, W14_NS);
+
+    private static final String DRAFT_DOCUMENT = """
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <w:document xmlns:w="%s"><w:body>
+              <w:p><w:r><w:t>Отчёт</w:t></w:r></w:p>
+              <w:p><w:pPr><w:pStyle w:val="Quote"/></w:pPr><w:r><w:t>Цитата</w:t></w:r></w:p>
+            </w:body></w:document>
+            """.formatted(W_NS);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsDraftStylesMissingFromTemplate() throws Exception {
+        Path template = docx("template.docx", TEMPLATE_STYLES, DRAFT_DOCUMENT);
+        Path draft = docx("draft.docx", DRAFT_STYLES, DRAFT_DOCUMENT);
+        Path output = dir.resolve("styled.docx");
+
+        engine(true).apply(template, draft, output);
+
+        Document styles = readPart(output, "word/styles.xml");
+        List<String> ids = new ArrayList<>();
+        NodeList nodes = styles.getElementsByTagNameNS(W_NS, "style");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            ids.add(((Element) nodes.item(i)).getAttributeNS(W_NS, "styleId"));
+        }
+        assertEquals(List.of("Normal", "Heading1", "Heading2", "Quote", "QuoteChar"), ids);
+
+        // Normal - из шаблона, а не из черновика
+        Element normalFont = (Element) styles.getElementsByTagNameNS(W_NS, "rFonts").item(0);
+        assertEquals("Times New Roman", normalFont.getAttributeNS(W_NS, "ascii"));
+        // Элементы чужих пространств имён из стилей черновика остаются корректным XML
+        assertEquals(1, styles.getElementsByTagNameNS(W14_NS, "ligatures").getLength());
+
+        Document document = readPart(output, "word/document.xml");
+        NodeList paragraphStyles = document.getElementsByTagNameNS(W_NS, "pStyle");
+        assertEquals("Heading1", ((Element) paragraphStyles.item(0)).getAttributeNS(W_NS, "val"));
+        assertEquals("Quote", ((Element) paragraphStyles.item(1)).getAttributeNS(W_NS, "val"));
+    }
+
+    @Test
+    void rejectsDraftInflatingPastLimit() throws Exception {
+        Path template = docx("template.docx", TEMPLATE_STYLES, DRAFT_DOCUMENT);
+        Path draft = docx("draft.docx", DRAFT_STYLES, DRAFT_DOCUMENT);
+        // Несколько килобайт в архиве, 2 МБ после распаковки
+        try (ZipFile source = new ZipFile(draft.toFile());
+             OutputStream out = Files.newOutputStream(dir.resolve("bomb.docx"));
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (ZipEntry entry : Collections.list(source.entries())) {
+                zip.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream in = source.getInputStream(entry)) {
+                    in.transferTo(zip);
+                }
+            }
+            zip.putNextEntry(new ZipEntry("word/media/filler.bin"));
+            zip.write(new byte[2 * 1024 * 1024]);
+            zip.closeEntry();
+        }
+        DocxStyleEngine engine = engine(true);
+        ReflectionTestUtils.setField(engine, "maxUncompressedMb", 1L);
+
+        IOException e = assertThrows(IOException.class,
+                () -> engine.apply(template, dir.resolve("bomb.docx"), dir.resolve("styled.docx")));
+        assertTrue(e.getMessage().contains("1 МБ"), e.getMessage());
+    }
+
+    @Test
+    void versionDependsOnSettings() {
+        assertNotEquals(engine(true).version(), engine(false).version());
+        assertTrue(engine(true).version().startsWith(DocxStyleEngine.VERSION));
+    }
+
+    private DocxStyleEngine engine(boolean stripDirectFormatting) {
+        DocxStyleEngine engine = new DocxStyleEngine();
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        ReflectionTestUtils.setField(engine, "stripDirectFormatting", stripDirectFormatting);
+        ReflectionTestUtils.setField(engine, "maxUncompressedMb", 256L);
+        return engine;
+    }
+
+    private Path docx(String name, String styles, String document) throws Exception {
+        Path file = dir.resolve(name);
+        try (OutputStream out = Files.newOutputStream(file);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+            zip.write("<Types/>".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("word/document.xml"));
+            zip.write(document.strip().getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("word/styles.xml"));
+            zip.write(styles.strip().getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return file;
+    }
+
+    private static Document readPart(Path docx, String part) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try (ZipFile zip = new ZipFile(docx.toFile());
+             InputStream in = zip.getInputStream(zip.getEntry(part))) {
+            return factory.newDocumentBuilder().parse(in);
+        }
+    }
+}
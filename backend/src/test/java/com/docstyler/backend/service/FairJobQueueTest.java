@@ -0,0 +1,110 @@
+package com.docstyler.backend.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FairJobQueueTest {
+
+    private static final int CAPACITY = 100;
+
+    @Test
+    void usersWithEqualWeightAlternate() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        offer(queue, "a", 1, "a1", "a2", "a3");
+        offer(queue, "b", 1, "b1", "b2");
+
+        assertEquals(List.of("a1", "b1", "a2", "b2", "a3"), drain(queue));
+    }
+
+    @Test
+    void weightGivesProportionalShareOfEachRound() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        offer(queue, "free", 1, "f1", "f2", "f3");
+        offer(queue, "pro", 4, "p1", "p2", "p3", "p4", "p5", "p6");
+
+        // За круг pro получает четыре задания, free - одно, но free не ждёт дольше круга
+        assertEquals(List.of("f1", "p1", "p2", "p3", "p4", "f2", "p5", "p6", "f3"), drain(queue));
+    }
+
+    @Test
+    void fractionalWeightAccumulatesAcrossRounds() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        offer(queue, "slow", 0.5, "s1", "s2");
+        offer(queue, "fast", 1, "f1", "f2", "f3", "f4");
+
+        // Вес 0.5 - одно задание за два круга
+        assertEquals(List.of("f1", "s1", "f2", "f3", "s2", "f4"), drain(queue));
+    }
+
+    @Test
+    void emptiedUserDoesNotKeepCredit() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        offer(queue, "pro", 4, "p1");
+        assertEquals("p1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+        // Неизрасходованный квант не переносится: снова по одному заданию на круг
+        offer(queue, "free", 1, "f1", "f2");
+        offer(queue, "pro", 1, "p2", "p3");
+        assertEquals(List.of("f1", "p2", "f2", "p3"), drain(queue));
+        assertEquals(0, queue.activeUsers());
+    }
+
+    @Test
+    void positionOfMatchesPollOrder() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        offer(queue, "free", 1, "f1", "f2");
+        offer(queue, "pro", 4, "p1", "p2", "p3", "p4", "p5");
+
+        List<String> expected = new ArrayList<>();
+        for (String item : List.of("f1", "f2", "p1", "p2", "p3", "p4", "p5")) {
+            expected.add(item + "@" + queue.positionOf(item::equals));
+        }
+        List<String> order = drain(queue);
+        List<String> actual = new ArrayList<>();
+        for (String item : List.of("f1", "f2", "p1", "p2", "p3", "p4", "p5")) {
+            actual.add(item + "@" + (order.indexOf(item) + 1));
+        }
+        assertEquals(actual, expected);
+        assertEquals(0, queue.positionOf("f1"::equals));
+    }
+
+    @Test
+    void removeAndCapacity() throws Exception {
+        FairJobQueue<String> queue = new FairJobQueue<>();
+        assertTrue(queue.offer("a", 1, "a1", 2));
+        assertTrue(queue.offer("b", 1, "b1", 2));
+        assertFalse(queue.offer("a", 1, "a2", 2));
+
+        assertEquals("b1", queue.remove("b1"::equals));
+        assertNull(queue.remove("b1"::equals));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.activeUsers());
+
+        assertTrue(queue.offer("a", 1, "a2", 2));
+        assertEquals(List.of("a1", "a2"), drain(queue));
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    private static void offer(FairJobQueue<String> queue, String userId, double weight, String... items) {
+        for (String item : items) {
+            assertTrue(queue.offer(userId, weight, item, CAPACITY));
+        }
+    }
+
+    private static List<String> drain(FairJobQueue<String> queue) throws InterruptedException {
+        List<String> order = new ArrayList<>();
+        String item;
+        while ((item = queue.poll(0, TimeUnit.MILLISECONDS)) != null) {
+            order.add(item);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,143 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobJournalTest {
+
+    private static final ObjectMapper MAPPER = JsonMapper.builder().findAndAddModules().build();
+
+    @TempDir
+    Path dir;
+
+    private final List<JobJournal> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(JobJournal::shutdown);
+    }
+
+    @Test
+    void replayRestoresLatestStateWithInputFiles() throws Exception {
+        JobJournal journal = open(10_000);
+        assertTrue(journal.replay().isEmpty());
+
+        ProcessStatus queued = new ProcessStatus("job-1", "u1");
+        journal.recordSubmitted(queued, file("aa", "template.docx"), file("bb", "draft.docx"));
+        ProcessStatus done = new ProcessStatus("job-2", "u2");
+        journal.recordSubmitted(done, file("cc", "t.docx"), file("dd", "d.docx"));
+
+        queued.setStatus("PROCESSING");
+        journal.recordStatus(queued);
+        // Прогресс без смены состояния в журнал не пишется
+        queued.setProgress(50);
+        journal.recordStatus(queued);
+        done.setStatus("COMPLETED");
+        journal.recordStatus(done);
+        journal.flush();
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(4, lines().size());
+        journal.shutdown();
+
+        Map<String, JobJournal.JournaledJob> jobs = byId(open(10_000).replay());
+        assertEquals(2, jobs.size());
+
+        JobJournal.JournaledJob running = jobs.get("job-1");
+        assertEquals("PROCESSING", running.status().getStatus());
+        assertEquals("u1", running.status().getUserId());
+        assertEquals(new JobJournal.FileRef("aa", "template.docx"), running.template());
+        assertEquals(new JobJournal.FileRef("bb", "draft.docx"), running.draft());
+        assertEquals("COMPLETED", jobs.get("job-2").status().getStatus());
+    }
+
+    @Test
+    void removedJobsAndDamagedTailAreSkipped() throws Exception {
+        JobJournal journal = open(10_000);
+        journal.replay();
+        journal.recordSubmitted(new ProcessStatus("gone", "u1"), file("aa", "t.docx"), file("bb", "d.docx"));
+        journal.recordSubmitted(new ProcessStatus("kept", "u1"), file("aa", "t.docx"), file("bb", "d.docx"));
+        journal.recordRemoved("gone");
+        journal.flush();
+        journal.shutdown();
+        // Строка, оборванная аварийным завершением
+        Files.writeString(dir.resolve("jobs.log"), "{\"op\":\"status\",\"sta", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        Map<String, JobJournal.JournaledJob> jobs = byId(open(10_000).replay());
+        assertEquals(List.of("kept"), List.copyOf(jobs.keySet()));
+        // Replay переписал журнал: по строке на живое задание, без обрывка
+        assertEquals(1, lines().size());
+    }
+
+    @Test
+    void journalIsCompactedToLatestRecords() throws Exception {
+        JobJournal journal = open(6);
+        journal.replay();
+        ProcessStatus status = new ProcessStatus("job-1", "u1");
+        journal.recordSubmitted(status, file("aa", "t.docx"), file("bb", "d.docx"));
+        journal.recordSubmitted(new ProcessStatus("job-2", "u1"), file("aa", "t.docx"), file("cc", "d.docx"));
+        for (int i = 0; i < 3; i++) {
+            status.setStatus("PROCESSING");
+            journal.recordStatus(status);
+            status.setStatus("QUEUED");
+            journal.recordStatus(status);
+        }
+        journal.flush();
+
+        // 8 записей о двух заданиях сжаты до двух строк, новые дописываются после них
+        assertEquals(2, lines().size());
+        status.setStatus("PROCESSING");
+        journal.recordStatus(status);
+        journal.flush();
+        assertEquals(3, lines().size());
+        journal.shutdown();
+
+        JobJournal.JournaledJob restored = byId(open(10_000).replay()).get("job-1");
+        assertEquals("PROCESSING", restored.status().getStatus());
+        assertNotNull(restored.template());
+    }
+
+    private JobJournal open(int compactThreshold) throws Exception {
+        JobJournal journal = new JobJournal(MAPPER);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "journalDirectory", dir.toString());
+        // Пишем явным flush, фоновый поток не мешает
+        ReflectionTestUtils.setField(journal, "flushIntervalMs", 60_000L);
+        ReflectionTestUtils.setField(journal, "fsync", false);
+        ReflectionTestUtils.setField(journal, "compactThreshold", compactThreshold);
+        journal.init();
+        opened.add(journal);
+        return journal;
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.readAllLines(dir.resolve("jobs.log"), StandardCharsets.UTF_8);
+    }
+
+    private static SpooledFile file(String hash, String name) {
+        return new SpooledFile(hash, Path.of(hash), 1, name);
+    }
+
+    private static Map<String, JobJournal.JournaledJob> byId(List<JobJournal.JournaledJob> jobs) {
+        return jobs.stream().collect(Collectors.toMap(job -> job.status().getProcessId(), Function.identity()));
+    }
+}
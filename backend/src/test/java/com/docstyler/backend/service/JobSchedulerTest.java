@@ -0,0 +1,163 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobSchedulerTest {
+
+    private static final Runnable NOTHING = () -> { };
+
+    private JobScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void submitCountsSlotsUpToUserLimit() {
+        // Без воркеров задания остаются в очереди и держат слоты
+        scheduler = scheduler(0, 10, 2);
+        scheduler.submit("j1", "u1", NOTHING, null);
+        scheduler.submit("j2", "u1", NOTHING, null);
+
+        assertThrows(UserLimitExceededException.class, () -> scheduler.submit("j3", "u1", NOTHING, null));
+        assertEquals(2, scheduler.getUserJobCount("u1"));
+        assertFalse(scheduler.hasUserCapacity("u1"));
+        // Потолок - на пользователя, а не общий
+        scheduler.submit("j4", "u2", NOTHING, null);
+        assertEquals(1, scheduler.getUserJobCount("u2"));
+    }
+
+    @Test
+    void reservationIsTakenOverBySubmit() {
+        scheduler = scheduler(0, 10, 1);
+        scheduler.reserveUserSlot("u1");
+        assertEquals(1, scheduler.getUserJobCount("u1"));
+
+        // Задание забирает занятый при допуске слот, второй не занимается
+        scheduler.submit("j1", "u1", NOTHING, null);
+        scheduler.releaseReservation();
+        assertEquals(1, scheduler.getUserJobCount("u1"));
+    }
+
+    @Test
+    void unusedReservationIsReleased() {
+        scheduler = scheduler(0, 10, 1);
+        scheduler.reserveUserSlot("u1");
+        scheduler.releaseReservation();
+        scheduler.releaseReservation();
+
+        assertEquals(0, scheduler.getUserJobCount("u1"));
+    }
+
+    @Test
+    void rejectionByFullQueueFreesSlot() {
+        scheduler = scheduler(0, 1, 5);
+        scheduler.submit("j1", "u1", NOTHING, null);
+
+        JobRejectedException e = assertThrows(JobRejectedException.class,
+                () -> scheduler.submit("j2", "u2", NOTHING, null));
+        assertFalse(e instanceof UserLimitExceededException);
+        assertEquals(0, scheduler.getUserJobCount("u2"));
+    }
+
+    @Test
+    void cancelFreesSlotAndRunsDiscard() {
+        scheduler = scheduler(0, 10, 2);
+        AtomicBoolean discarded = new AtomicBoolean();
+        scheduler.submit("j1", "u1", NOTHING, () -> discarded.set(true));
+        scheduler.submit("j2", "u1", NOTHING, null);
+        assertEquals(2, scheduler.getQueuePosition("j2"));
+
+        assertTrue(scheduler.cancel("j1"));
+        assertFalse(scheduler.cancel("j1"));
+        assertTrue(discarded.get());
+        assertEquals(1, scheduler.getUserJobCount("u1"));
+        assertEquals(1, scheduler.getQueuePosition("j2"));
+    }
+
+    @Test
+    void runningJobReleasesSlotOnceBeforeItEnds() throws Exception {
+        scheduler = scheduler(1, 10, 2);
+        scheduler.init();
+        CountDownLatch released = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger countAfterRelease = new AtomicInteger(-1);
+        scheduler.submit("j1", "u1", () -> {
+            // Так публикация итогового статуса освобождает слот раньше конца задания
+            scheduler.releaseRunningSlot("j1");
+            scheduler.releaseRunningSlot("j1");
+            countAfterRelease.set(scheduler.getUserJobCount("u1"));
+            released.countDown();
+            await(finish);
+        }, null);
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertEquals(0, countAfterRelease.get());
+
+        // Пока первое задание ещё в воркере, пользователь уже может поставить следующее
+        scheduler.submit("j2", "u1", NOTHING, null);
+        scheduler.submit("j3", "u1", NOTHING, null);
+        finish.countDown();
+
+        // Воркер не освобождает слот первого задания повторно
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.getQueuedCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        while (scheduler.getUserJobCount("u1") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, scheduler.getUserJobCount("u1"));
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    @Test
+    void releaseFromOtherThreadOrJobIsIgnored() {
+        scheduler = scheduler(0, 10, 2);
+        scheduler.submit("j1", "u1", NOTHING, null);
+
+        scheduler.releaseRunningSlot("j1");
+        assertEquals(1, scheduler.getUserJobCount("u1"));
+    }
+
+    private static JobScheduler scheduler(int concurrency, int queueCapacity, int maxUserJobs) {
+        UserTierService tiers = new UserTierService(Mockito.mock(UserRepository.class));
+        ReflectionTestUtils.setField(tiers, "weightsSpec", "free:1");
+        ReflectionTestUtils.setField(tiers, "cacheTtlMinutes", 10L);
+        ReflectionTestUtils.setField(tiers, "lookupQueueCapacity", 10);
+        tiers.init();
+
+        JobScheduler scheduler = new JobScheduler(new ProcessingMetrics(new SimpleMeterRegistry()), tiers);
+        ReflectionTestUtils.setField(scheduler, "concurrency", concurrency);
+        ReflectionTestUtils.setField(scheduler, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(scheduler, "retryAfterSeconds", 30);
+        ReflectionTestUtils.setField(scheduler, "userLimitEnabled", true);
+        ReflectionTestUtils.setField(scheduler, "maxUserJobs", maxUserJobs);
+        return scheduler;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
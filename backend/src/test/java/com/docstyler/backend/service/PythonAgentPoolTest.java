@@ -0,0 +1,127 @@
+package com.docstyler.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PythonAgentPoolTest {
+
+    // Минимальный воркер по протоколу main.py --worker: READY, затем DONE:0 на каждое задание
+    private static final String STUB_WORKER = """
+            import sys, time
+            print("READY", flush=True)
+            for line in sys.stdin:
+                if line.strip():
+                    time.sleep(0.3)
+                    print("DONE:0", flush=True)
+            """;
+
+    @TempDir
+    Path dir;
+
+    private PythonAgentPool pool;
+    private File agentFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        agentFile = Files.writeString(dir.resolve("main.py"), STUB_WORKER).toFile();
+        pool = new PythonAgentPool(new ObjectMapper(), new ProcessingMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(pool, "pythonExecutable", "python3");
+        ReflectionTestUtils.setField(pool, "poolSize", 1);
+        // Каждый воркер утилизируется после первого же задания
+        ReflectionTestUtils.setField(pool, "maxJobsPerWorker", 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void waiterGetsReplacementWhenWorkerIsRecycled() throws Exception {
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> runJob("first"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.getLiveWorkers() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getLiveWorkers());
+
+        // Пул заполнен: второе задание ждёт в acquire, пока первое не вернёт воркера,
+        // а тот утилизируется - ожидающий должен получить замену без новых запросов
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> runJob("second"));
+
+        assertEquals(0, first.get(10, TimeUnit.SECONDS));
+        assertEquals(0, second.get(10, TimeUnit.SECONDS));
+        assertTrue(pool.getLiveWorkers() <= 1);
+    }
+
+    @Test
+    void jobCancelledWhileWaitingLeavesWorkerInPool() throws Exception {
+        ReflectionTestUtils.setField(pool, "maxJobsPerWorker", 10);
+        assertEquals(0, runJob("warm"));
+
+        AgentRun cancelled = new AgentRun("cancelled", TimeUnit.MINUTES.toNanos(1));
+        cancelled.kill("CANCELLED");
+        AgentRequest request = new AgentRequest(dir.resolve("template.txt"), dir.resolve("draft.txt"), dir, null);
+        assertEquals(-1, pool.runJob(agentFile, request, cancelled, line -> { }));
+
+        // Тот же воркер жив и обслуживает следующее задание
+        assertEquals(1, pool.getLiveWorkers());
+        assertEquals(0, runJob("next"));
+    }
+
+    @Test
+    void workerKilledBeforeDetachIsNotReturnedToPool() throws Exception {
+        ReflectionTestUtils.setField(pool, "maxJobsPerWorker", 10);
+        // PROGRESS и сразу DONE: убийство догоняет воркер, когда ответ уже прочитан
+        File fastAgent = Files.writeString(dir.resolve("fast.py"), """
+                import sys
+                print("READY", flush=True)
+                for line in sys.stdin:
+                    if line.strip():
+                        print("PROGRESS:90", flush=True)
+                        print("DONE:0", flush=True)
+                """).toFile();
+        AgentRun run = new AgentRun("killed", TimeUnit.MINUTES.toNanos(1));
+        AgentRequest request = new AgentRequest(dir.resolve("template.txt"), dir.resolve("draft.txt"), dir, null);
+        try {
+            pool.runJob(fastAgent, request, run, line -> run.kill("TIMEOUT"));
+        } catch (IOException e) {
+            // воркер успел умереть до DONE - тоже допустимый исход
+        }
+
+        assertTrue(run.isKilled());
+        assertEquals(0, pool.getLiveWorkers());
+    }
+
+    @Test
+    void stallIsCountedOnlyWhileAgentIsAttached() {
+        AgentRun run = new AgentRun("waiting", TimeUnit.MINUTES.toNanos(10));
+        long later = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        assertFalse(run.isStalled(later, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private int runJob(String processId) {
+        AgentRequest request = new AgentRequest(dir.resolve("template.txt"), dir.resolve("draft.txt"), dir, null);
+        try {
+            return pool.runJob(agentFile, request, new AgentRun(processId, TimeUnit.MINUTES.toNanos(1)), line -> { });
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+class SectionProcessorTest {
+
+    private static final ObjectMapper MAPPER = JsonMapper.builder().findAndAddModules().build();
+
+    private static final String DRAFT = String.join("\n",
+            "Отчёт о работе",
+            "",
+            "Введение",
+            "Первый абзац введения.",
+            "",
+            "Второй абзац введения.",
+            "Методы",
+            "Описание методов.",
+            "Заключение",
+            "Итоги.");
+
+    @TempDir
+    Path dir;
+
+    private final PythonAgentPool agentPool = Mockito.mock(PythonAgentPool.class);
+    private final ChunkCache chunkCache = new ChunkCache(new ProcessingMetrics(new SimpleMeterRegistry()), 1);
+
+    // Абзацы, отправленные агенту на разметку, и части, пришедшие на сборку
+    private final List<String> styled = new CopyOnWriteArrayList<>();
+    private final List<List<Path>> merged = new CopyOnWriteArrayList<>();
+    private volatile boolean dropLastOutput;
+
+    private SectionProcessor processor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        processor = new SectionProcessor(agentPool, Mockito.mock(JobStatusPublisher.class), chunkCache, MAPPER,
+                new ProcessingMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(processor, "sectionsEnabled", true);
+        ReflectionTestUtils.setField(processor, "minDraftKb", 0L);
+        ReflectionTestUtils.setField(processor, "maxSections", 16);
+        ReflectionTestUtils.setField(processor, "maxParallel", 2);
+        ReflectionTestUtils.setField(processor, "chunksEnabled", true);
+
+        Mockito.when(agentPool.runJob(any(), any(), any(), any())).thenAnswer(invocation -> {
+            AgentRequest request = invocation.getArgument(1);
+            Consumer<AgentProtocolReader> handler = invocation.getArgument(3);
+            if (AgentRequest.MERGE.equals(request.mode())) {
+                merged.add(request.parts());
+                return 0;
+            }
+            // Агент-заглушка: разметка абзаца - его текст в верхнем регистре
+            List<Map<String, Object>> chunks = MAPPER.readValue(request.draftPath().toFile(),
+                    new TypeReference<List<Map<String, Object>>>() { });
+            List<String> outputs = new ArrayList<>();
+            for (Map<String, Object> chunk : chunks) {
+                String text = (String) chunk.get("text");
+                styled.add(text);
+                outputs.add(text.toUpperCase());
+            }
+            if (dropLastOutput) {
+                outputs.remove(outputs.size() - 1);
+            }
+            Path output = request.draftPath().resolveSibling(request.draftPath().getFileName() + ".out");
+            MAPPER.writeValue(output.toFile(), outputs);
+            handler.accept(line("RESULT:" + output));
+            return 0;
+        });
+    }
+
+    @Test
+    void sectionsAreMergedInDraftOrder() throws Exception {
+        SectionProcessor.DraftPlan plan = plan(DRAFT);
+        assertEquals(4, plan.sections().size());
+
+        assertEquals(0, run(plan));
+        assertEquals(1, merged.size());
+        assertEquals(DRAFT.toUpperCase(), joinParts(merged.get(0)));
+        // Пустая строка после абзаца уходит агенту вместе с ним
+        assertTrue(styled.contains("Отчёт о работе\n"));
+        assertTrue(styled.contains("Первый абзац введения.\n"));
+    }
+
+    @Test
+    void onlyChangedParagraphsAreSentAgain() throws Exception {
+        assertEquals(0, run(plan(DRAFT)));
+        styled.clear();
+
+        String edited = DRAFT.replace("Описание методов.", "Новое описание методов.");
+        assertEquals(0, run(plan(edited)));
+
+        assertEquals(List.of("Новое описание методов."), styled);
+        assertEquals(edited.toUpperCase(), joinParts(merged.get(1)));
+    }
+
+    @Test
+    void tooManySectionsAreJoinedWithoutReordering() throws Exception {
+        ReflectionTestUtils.setField(processor, "maxSections", 2);
+        SectionProcessor.DraftPlan plan = plan(DRAFT);
+        assertEquals(2, plan.sections().size());
+
+        assertEquals(0, run(plan));
+        assertEquals(2, merged.get(0).size());
+        assertEquals(DRAFT.toUpperCase(), joinParts(merged.get(0)));
+    }
+
+    @Test
+    void incompleteAgentResultFailsWithoutMerge() throws Exception {
+        dropLastOutput = true;
+        List<String> errors = new CopyOnWriteArrayList<>();
+
+        assertEquals(1, run(plan(DRAFT), errors::add));
+        assertTrue(merged.isEmpty());
+        assertTrue(errors.contains("агент вернул неполный результат разметки"));
+    }
+
+    @Test
+    void smallDraftWithoutChunkCacheIsSentWhole() throws Exception {
+        ReflectionTestUtils.setField(processor, "chunksEnabled", false);
+        ReflectionTestUtils.setField(processor, "minDraftKb", 64L);
+        assertNull(plan(DRAFT));
+
+        // Переводы строк и пробелы по краям приводятся к виду, в котором их читает агент
+        ReflectionTestUtils.setField(processor, "minDraftKb", 0L);
+        SectionProcessor.DraftPlan plan = plan(" \r\n" + DRAFT.replace("\n", "\r\n") + "\r\n\r\n");
+        assertNotNull(plan);
+        assertEquals(0, run(plan));
+        assertEquals(DRAFT.toUpperCase(), joinParts(merged.get(0)));
+    }
+
+    private SectionProcessor.DraftPlan plan(String content) throws Exception {
+        Path draft = Files.writeString(dir.resolve("draft.txt"), content, StandardCharsets.UTF_8);
+        return processor.plan(draft);
+    }
+
+    private int run(SectionProcessor.DraftPlan plan) throws Exception {
+        return run(plan, error -> { });
+    }
+
+    private int run(SectionProcessor.DraftPlan plan, Consumer<String> errors) throws Exception {
+        Path output = Files.createDirectories(dir.resolve("out-" + merged.size() + "-" + System.nanoTime()));
+        AgentRequest document = new AgentRequest(dir.resolve("template.txt"), dir.resolve("draft.txt"), output, null);
+        AgentRun agentRun = new AgentRun("job-1", TimeUnit.MINUTES.toNanos(1));
+        return processor.run(plan, "шаблон:v1", new File("main.py"), document, agentRun,
+                new ProcessStatus("job-1", "u1"), errors, line -> { });
+    }
+
+    private static String joinParts(List<Path> parts) throws Exception {
+        List<String> texts = new ArrayList<>();
+        for (Path part : parts) {
+            texts.add(Files.readString(part, StandardCharsets.UTF_8));
+        }
+        return String.join("\n", texts);
+    }
+
+    private static AgentProtocolReader line(String text) throws Exception {
+        AgentProtocolReader reader = new AgentProtocolReader(
+                new ByteArrayInputStream((text + "\n").getBytes(StandardCharsets.UTF_8)));
+        reader.read();
+        return reader;
+    }
+}
@@ -0,0 +1,105 @@
+package com.docstyler.backend.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadSpoolTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void identicalUploadsShareOneObject() throws Exception {
+        UploadSpool spool = open(60);
+        SpooledFile first = spool("Отчёт", "a.txt", spool);
+        SpooledFile second = spool("Отчёт", "b.txt", spool);
+
+        assertEquals(first.hash(), second.hash());
+        assertEquals(first.path(), second.path());
+        assertEquals("b.txt", second.originalName());
+        assertEquals(1, spool.getStoredObjectCount());
+        try (var incoming = Files.list(dir.resolve("incoming"))) {
+            assertEquals(0, incoming.count());
+        }
+    }
+
+    @Test
+    void objectIsSweptOnlyAfterLastReferenceIsReleased() throws Exception {
+        UploadSpool spool = open(0);
+        SpooledFile file = spool("Черновик", "draft.txt", spool);
+        spool.retain(file);
+
+        spool.release(file);
+        spool.sweepIdleObjects();
+        assertTrue(Files.exists(file.path()), "ещё одна ссылка жива");
+
+        spool.release(file);
+        spool.sweepIdleObjects();
+        assertFalse(Files.exists(file.path()));
+        assertEquals(0, spool.getStoredObjectCount());
+        // Лишний release ничего не ломает
+        spool.release(file);
+    }
+
+    @Test
+    void idleObjectWithinTtlIsKept() throws Exception {
+        UploadSpool spool = open(60);
+        SpooledFile file = spool("Шаблон", "template.txt", spool);
+        spool.release(file);
+        spool.sweepIdleObjects();
+
+        assertTrue(Files.exists(file.path()));
+        // Повторная загрузка того же содержимого снова берёт объект в работу
+        assertEquals(file.path(), spool("Шаблон", "again.txt", spool).path());
+    }
+
+    @Test
+    void objectsOfPreviousRunCanBeAdoptedUntilSwept() throws Exception {
+        SpooledFile kept = spool("Задание в очереди", "kept.txt", open(0));
+        SpooledFile orphan = spool("Никому не нужен", "orphan.txt", open(0));
+
+        // Перезапуск: объекты на диске, ссылок пока нет
+        UploadSpool restarted = open(0);
+        assertEquals(2, restarted.getStoredObjectCount());
+        SpooledFile adopted = restarted.adopt(kept.hash(), "kept.txt");
+        assertNotNull(adopted);
+        assertNull(restarted.adopt("00" + kept.hash().substring(2), "missing.txt"));
+
+        restarted.sweepIdleObjects();
+        assertTrue(Files.exists(adopted.path()));
+        assertFalse(Files.exists(orphan.path()));
+    }
+
+    @Test
+    void clientPathIsStrippedFromName() {
+        assertEquals("report.docx", UploadSpool.sanitizeName("C:\\Users\\me\\report.docx", "draft"));
+        assertEquals("report.docx", UploadSpool.sanitizeName("../../report.docx", "draft"));
+        assertEquals("draft", UploadSpool.sanitizeName("..", "draft"));
+        assertEquals("draft", UploadSpool.sanitizeName(" ", "draft"));
+    }
+
+    private UploadSpool open(long idleTtlMinutes) throws Exception {
+        UploadSpool spool = new UploadSpool(new ProcessingMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(spool, "spoolDirectory", dir.toString());
+        ReflectionTestUtils.setField(spool, "idleTtlMinutes", idleTtlMinutes);
+        spool.init();
+        return spool;
+    }
+
+    private static SpooledFile spool(String content, String name, UploadSpool spool) throws Exception {
+        return spool.spool(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), name);
+    }
+}
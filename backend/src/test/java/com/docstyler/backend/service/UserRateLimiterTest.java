@@ -0,0 +1,136 @@
+package com.docstyler.backend.service;
+
+import com.docstyler.backend.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserRateLimiterTest {
+
+    private final JobScheduler scheduler = scheduler(2);
+
+    @Test
+    void burstIsAdmittedThenRejectedWithRetryAfter() {
+        // 6 запросов в минуту - токен раз в 10 секунд
+        UserRateLimiter limiter = limiter(true, 3, 6);
+        for (int i = 0; i < 3; i++) {
+            limiter.admit("u1");
+            limiter.release();
+        }
+
+        UserLimitExceededException e = assertThrows(UserLimitExceededException.class, () -> limiter.admit("u1"));
+        assertTrue(e.getRetryAfterSeconds() >= 1 && e.getRetryAfterSeconds() <= 11, "retry after " + e.getRetryAfterSeconds());
+        // Корзины у пользователей свои
+        assertDoesNotThrow(() -> limiter.admit("u2"));
+        limiter.release();
+    }
+
+    @Test
+    void rateRejectionFreesReservedSlot() {
+        UserRateLimiter limiter = limiter(true, 1, 1);
+        limiter.admit("u1");
+        limiter.release();
+
+        assertThrows(UserLimitExceededException.class, () -> limiter.admit("u1"));
+        assertEquals(0, scheduler.getUserJobCount("u1"));
+    }
+
+    @Test
+    void admittedRequestHoldsSlotUntilRelease() throws Exception {
+        UserRateLimiter limiter = limiter(false, 1, 1);
+        // Два запроса в других потоках заняли оба слота и ещё не завершились
+        holdSlot(limiter, "u1");
+        holdSlot(limiter, "u1");
+        assertEquals(2, scheduler.getUserJobCount("u1"));
+
+        assertInstanceOf(UserLimitExceededException.class, admitInNewThread(limiter, "u1"));
+
+        // Запрос в этом потоке освобождает свой слот по завершении
+        UserRateLimiter other = limiter(false, 1, 1);
+        other.admit("u2");
+        assertEquals(1, scheduler.getUserJobCount("u2"));
+        other.release();
+        assertEquals(0, scheduler.getUserJobCount("u2"));
+    }
+
+    @Test
+    void sweepDropsOnlyFullBuckets() {
+        // Корзина на один запрос, токен восстанавливается за 100 мс
+        UserRateLimiter limiter = limiter(true, 1, 600);
+        limiter.admit("busy");
+        limiter.release();
+        limiter.admit("idle");
+        limiter.release();
+        Map<?, ?> buckets = (Map<?, ?>) ReflectionTestUtils.getField(limiter, "buckets");
+        assertEquals(2, buckets.size());
+
+        // idle за это время наполняется, busy снова тратит свой токен
+        sleep(150);
+        limiter.admit("busy");
+        limiter.release();
+        limiter.sweepIdleBuckets();
+
+        assertEquals(1, buckets.size());
+    }
+
+    private UserRateLimiter limiter(boolean enabled, int burst, double requestsPerMinute) {
+        UserRateLimiter limiter = new UserRateLimiter(scheduler, new ProcessingMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(limiter, "enabled", enabled);
+        ReflectionTestUtils.setField(limiter, "burst", burst);
+        ReflectionTestUtils.setField(limiter, "requestsPerMinute", requestsPerMinute);
+        limiter.registerMetrics();
+        return limiter;
+    }
+
+    private static void holdSlot(UserRateLimiter limiter, String userId) throws Exception {
+        // Поток завершается, не вызвав release: слот остаётся занятым
+        assertNull(admitInNewThread(limiter, userId));
+    }
+
+    /**
+     * Слот допуска привязан к потоку, поэтому каждый запрос - в своём новом потоке.
+     */
+    private static RuntimeException admitInNewThread(UserRateLimiter limiter, String userId) throws Exception {
+        RuntimeException[] error = new RuntimeException[1];
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.admit(userId);
+            } catch (RuntimeException e) {
+                error[0] = e;
+            }
+        });
+        thread.start();
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+        return error[0];
+    }
+
+    private static JobScheduler scheduler(int maxUserJobs) {
+        UserTierService tiers = new UserTierService(Mockito.mock(UserRepository.class));
+        ReflectionTestUtils.setField(tiers, "weightsSpec", "free:1");
+        ReflectionTestUtils.setField(tiers, "lookupQueueCapacity", 10);
+        tiers.init();
+        JobScheduler scheduler = new JobScheduler(new ProcessingMetrics(new SimpleMeterRegistry()), tiers);
+        ReflectionTestUtils.setField(scheduler, "userLimitEnabled", true);
+        ReflectionTestUtils.setField(scheduler, "maxUserJobs", maxUserJobs);
+        return scheduler;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.service.AgentProtocolReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор вывода агента (PROGRESS/MESSAGE/RESULT...) - то, что поток задания
+ * делает на каждой строке stdout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class AgentProtocolBenchmark {
+
+    @Param({"100", "10000"})
+    private int lines;
+
+    private byte[] output;
+
+    @Setup
+    public void prepare() {
+        // Похоже на реальный вывод: прогресс, сообщения по-русски и отладочная печать
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (i % 4) {
+                case 0 -> out.append("PROGRESS:").append(i * 100 / lines).append('\n');
+                case 1 -> out.append("MESSAGE:Обработка абзаца ").append(i).append(" из ").append(lines).append('\n');
+                case 2 -> out.append("Применен стиль Heading 2 к строке ").append(i).append('\n');
+                default -> out.append("MESSAGE:Раздел \"Результаты\" размечен\n");
+            }
+        }
+        out.append("RESULT:/tmp/docstyler/temp_documents/job/styled_document.txt\n");
+        out.append("DONE:0\n");
+        output = out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        AgentProtocolReader reader = new AgentProtocolReader(new ByteArrayInputStream(output));
+        long sum = 0;
+        AgentProtocolReader.Kind kind;
+        while ((kind = reader.read()) != AgentProtocolReader.Kind.EOF) {
+            switch (kind) {
+                case PROGRESS, DONE -> sum += reader.number();
+                case MESSAGE, RESULT, ERROR -> sum += reader.text().length();
+                default -> sum++;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,135 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.BackendApplication;
+import com.docstyler.backend.model.ProcessStatus;
+import com.docstyler.backend.service.DocumentProcessingService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend, поднятый внутри процесса бенчмарка: настоящий Spring контекст
+ * с заглушкой Python агента, все рабочие каталоги - во временной директории.
+ */
+final class BenchmarkBackend implements AutoCloseable {
+
+    private static final long POLL_FALLBACK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path workDir;
+    private final ConfigurableApplicationContext context;
+
+    private BenchmarkBackend(Path workDir, ConfigurableApplicationContext context) {
+        this.workDir = workDir;
+        this.context = context;
+    }
+
+    /**
+     * Запускает backend; overrides - пары ключ, значение поверх настроек бенчмарка.
+     */
+    static BenchmarkBackend start(String... overrides) throws IOException {
+        Path workDir = Files.createTempDirectory("docstyler-bench");
+        Map<String, Object> properties = properties(workDir);
+        properties.put("server.port", "0");
+        properties.put("logging.level.root", "WARN");
+        for (int i = 0; i + 1 < overrides.length; i += 2) {
+            properties.put(overrides[i], overrides[i + 1]);
+        }
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(BackendApplication.class)
+                .properties(properties)
+                .run();
+        return new BenchmarkBackend(workDir, context);
+    }
+
+    /**
+     * Настройки backend для прогона с заглушкой агента; заглушка кладётся в workDir.
+     */
+    static Map<String, Object> properties(Path workDir) throws IOException {
+        Path agentDir = Files.createDirectories(workDir.resolve("python_agent"));
+        try (InputStream stub = BenchmarkBackend.class.getResourceAsStream("/stub_agent/main.py")) {
+            Files.copy(stub, agentDir.resolve("main.py"), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("server.servlet.context-path", "/api");
+        properties.put("spring.main.banner-mode", "off");
+        properties.put("management.health.mongo.enabled", "false");
+        properties.put("management.endpoints.web.exposure.include", "health,metrics");
+        properties.put("python.agent.path", agentDir.toString());
+        properties.put("temp.directory", workDir.resolve("temp_documents").toString());
+        properties.put("spool.directory", workDir.resolve("spool").toString());
+        properties.put("result.cache.directory", workDir.resolve("result_cache").toString());
+        properties.put("jobs.journal.directory", workDir.resolve("journal").toString());
+        // Заглушка умеет только обычный режим заданий
+        properties.put("processing.chunks.enabled", "false");
+        properties.put("processing.sections.enabled", "false");
+        // Заданий создаются тысячи: убираем их быстро и в квоту не упираемся
+        properties.put("jobs.retention.completed-minutes", "1");
+        properties.put("jobs.retention.error-minutes", "1");
+        properties.put("jobs.sweep.interval-ms", "1000");
+        properties.put("jobs.quota.max-live-jobs", "1000000");
+        return properties;
+    }
+
+    <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    /**
+     * Адрес метода DocumentController, например "/result/" + processId.
+     */
+    String documentsUrl(String path) {
+        String port = context.getEnvironment().getProperty("local.server.port");
+        return "http://localhost:" + port + "/api/api/documents" + path;
+    }
+
+    /**
+     * Ждёт завершения задания тем же способом, что long-poll статуса.
+     */
+    ProcessStatus awaitFinished(String processId, Duration timeout) throws InterruptedException {
+        DocumentProcessingService service = bean(DocumentProcessingService.class);
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            ProcessStatus status = service.findProcessStatus(processId);
+            if (status == null) {
+                throw new IllegalStateException("Job disappeared: " + processId);
+            }
+            CountDownLatch changed = new CountDownLatch(1);
+            Runnable cancel = service.awaitStatusChange(status, update -> changed.countDown());
+            try {
+                // Статус мог измениться до подписки
+                status = service.findProcessStatus(processId);
+                if (status == null) {
+                    throw new IllegalStateException("Job disappeared: " + processId);
+                }
+                if (status.isFinished()) {
+                    return status.snapshot();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Job " + processId + " did not finish in " + timeout);
+                }
+                changed.await(Math.min(remaining, POLL_FALLBACK_NANOS), TimeUnit.NANOSECONDS);
+            } finally {
+                cancel.run();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        FileSystemUtils.deleteRecursively(workDir);
+    }
+}
@@ -0,0 +1,76 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.docstyler.backend.service.DocumentProcessingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пропускная способность startDocumentProcessing от приёма файлов до COMPLETED:
+ * сохранение загрузок, очередь, пул воркеров и разбор вывода. Агент - заглушка,
+ * так что измеряется только накладная часть backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(4)
+public class JobSubmissionBenchmark {
+
+    private static final Duration JOB_TIMEOUT = Duration.ofSeconds(30);
+
+    private final AtomicLong drafts = new AtomicLong();
+
+    private BenchmarkBackend backend;
+    private DocumentProcessingService service;
+    private byte[] template;
+
+    @Setup
+    public void start() throws IOException {
+        backend = BenchmarkBackend.start();
+        service = backend.bean(DocumentProcessingService.class);
+        template = "Заголовок\n\nВведение\nТекст шаблона.\n\nЗаключение\nИтоги.\n"
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        backend.close();
+    }
+
+    @Benchmark
+    public ProcessStatus submitAndComplete() throws InterruptedException {
+        // Каждый черновик уникален, иначе задание сразу обслужит кэш результатов
+        byte[] draft = ("Статья " + drafts.incrementAndGet() + "\n\nВведение\nТекст статьи.\n")
+                .getBytes(StandardCharsets.UTF_8);
+        String processId = service.startDocumentProcessing("bench",
+                new BytesMultipartFile("template.txt", template),
+                new BytesMultipartFile("draft.txt", draft),
+                null);
+
+        ProcessStatus status = backend.awaitFinished(processId, JOB_TIMEOUT);
+        if (!"COMPLETED".equals(status.getStatus())) {
+            throw new IllegalStateException("Job " + processId + " ended with " + status.getStatus()
+                    + ": " + status.getMessage());
+        }
+        return status;
+    }
+}
@@ -0,0 +1,445 @@
+package com.docstyler.backend.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный и длительный (soak) прогон REST API целиком: каждый виртуальный
+ * пользователь отправляет /process, опрашивает /status до завершения и скачивает
+ * /result. Backend по умолчанию запускается отдельным процессом с заглушкой агента
+ * (задержка и доля ошибок настраиваются), так что прогон не требует сети и модели.
+ * Раз в интервал печатаются p50/p95/p99, пропускная способность, доля ошибок и
+ * ресурсы backend - рост дескрипторов, потоков или процессов за часы прогона
+ * выдаёт утечку.
+ * <p>
+ * Запуск: mvn package exec:exec@load -Dload.args="--duration=2h --concurrency=16 --csv=target/soak.csv"
+ * <ul>
+ *   <li>--concurrency (8), --users (= concurrency) - одновременных клиентов и разных X-User-Id;</li>
+ *   <li>--duration (5m), --report-interval (30s), --poll-interval (500ms), --job-timeout (5m);</li>
+ *   <li>--draft-kb (32) - размер черновика;</li>
+ *   <li>--agent-latency-ms (300), --agent-jitter-ms (200), --agent-failure-rate (0.02) - заглушка агента;</li>
+ *   <li>--url - нагружать уже работающий backend (например http://host:8080/api) вместо своего;</li>
+ *   <li>--csv - дописывать интервалы в CSV для графиков длительного прогона;</li>
+ *   <li>--backend-log (target/load-backend.log), --backend-jvm-args ("-Xmx512m"),
+ *       --backend-property=key=value (можно несколько раз) - для запускаемого backend.</li>
+ * </ul>
+ */
+public final class LoadHarness {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final long MAX_RETRY_AFTER_MS = 5_000;
+    private static final String TEMPLATE = "Заголовок\n\nВведение\nТекст шаблона.\n\nЗаключение\nИтоги.\n";
+
+    private final Options options;
+    private final LoadTarget target;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final Map<String, Recorder> latencies = new LinkedHashMap<>();
+    private final Map<String, Histogram> totalLatencies = new LinkedHashMap<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong drafts = new AtomicLong();
+
+    private volatile boolean stopping;
+
+    private LoadHarness(Options options, LoadTarget target) {
+        this.options = options;
+        this.target = target;
+        for (String operation : List.of("job", "submit", "status", "result")) {
+            latencies.put(operation, new Recorder(3));
+            totalLatencies.put(operation, new Histogram(3));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        try (LoadTarget target = options.url() != null
+                ? LoadTarget.remote(options.url())
+                : LoadTarget.launch(options)) {
+            new LoadHarness(options, target).run();
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        System.out.printf("Load: %d users for %s against %s%n", options.concurrency(), options.duration(),
+                target.documentsUrl(""));
+
+        ExecutorService users = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < options.concurrency(); i++) {
+            String userId = "load-" + (i % options.users());
+            users.submit(() -> runUser(userId));
+        }
+
+        PrintWriter csv = options.csv() != null ? openCsv(options.csv()) : null;
+        long started = System.nanoTime();
+        long deadline = started + options.duration().toNanos();
+        long previousReport = started;
+        long previousCompleted = 0;
+        LoadTarget.ResourceSample first = target.sample();
+        LoadTarget.ResourceSample last = first;
+
+        try {
+            while (System.nanoTime() < deadline && target.isAlive()) {
+                long sleep = Math.min(options.reportInterval().toNanos(), deadline - System.nanoTime());
+                TimeUnit.NANOSECONDS.sleep(Math.max(sleep, 0));
+
+                long now = System.nanoTime();
+                Map<String, Histogram> interval = new LinkedHashMap<>();
+                latencies.forEach((operation, recorder) -> {
+                    Histogram histogram = recorder.getIntervalHistogram();
+                    totalLatencies.get(operation).add(histogram);
+                    interval.put(operation, histogram);
+                });
+                long done = completed.sum();
+                double throughput = (done - previousCompleted) / ((now - previousReport) / 1e9);
+                last = target.sample();
+
+                System.out.println(formatInterval(now - started, throughput, interval, last));
+                if (csv != null) {
+                    writeCsv(csv, now - started, throughput, interval, last);
+                }
+                previousReport = now;
+                previousCompleted = done;
+            }
+        } finally {
+            stopping = true;
+            users.shutdown();
+            if (!users.awaitTermination(options.jobTimeout().toSeconds() + 10, TimeUnit.SECONDS)) {
+                users.shutdownNow();
+            }
+            if (csv != null) {
+                csv.close();
+            }
+        }
+
+        if (!target.isAlive()) {
+            System.out.println("Backend process died during the run, see " + options.backendLog());
+        }
+        printSummary(System.nanoTime() - started, first, last);
+    }
+
+    private void runUser(String userId) {
+        while (!stopping) {
+            try {
+                runJob(userId);
+            } catch (IOException e) {
+                errors.increment();
+                pause(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Одно задание глазами клиента: отправка, опрос статуса, скачивание результата.
+     */
+    private void runJob(String userId) throws IOException, InterruptedException {
+        long jobStarted = System.nanoTime();
+
+        long started = System.nanoTime();
+        HttpResponse<String> submitted = client.send(submitRequest(userId), HttpResponse.BodyHandlers.ofString());
+        record("submit", started);
+        int code = submitted.statusCode();
+        if (code == 429 || code == 503) {
+            rejected.increment();
+            long retryAfter = submitted.headers().firstValueAsLong("Retry-After").orElse(1) * 1000;
+            pause(Math.min(retryAfter, MAX_RETRY_AFTER_MS));
+            return;
+        }
+        if (code != 202) {
+            errors.increment();
+            return;
+        }
+        String processId = OBJECT_MAPPER.readTree(submitted.body()).path("processId").asText();
+
+        // Опрос как у фронтенда, с If-None-Match: неизменный статус отдаётся как 304
+        String etag = null;
+        JsonNode status;
+        long jobDeadline = jobStarted + options.jobTimeout().toNanos();
+        while (true) {
+            pause(options.pollInterval().toMillis());
+            if (System.nanoTime() > jobDeadline) {
+                errors.increment();
+                return;
+            }
+            HttpRequest.Builder poll = HttpRequest.newBuilder(URI.create(target.documentsUrl("/status/" + processId)))
+                    .timeout(Duration.ofSeconds(30));
+            if (etag != null) {
+                poll.header("If-None-Match", etag);
+            }
+            started = System.nanoTime();
+            HttpResponse<String> response = client.send(poll.build(), HttpResponse.BodyHandlers.ofString());
+            record("status", started);
+            if (response.statusCode() == 304) {
+                continue;
+            }
+            if (response.statusCode() != 200) {
+                errors.increment();
+                return;
+            }
+            etag = response.headers().firstValue("ETag").orElse(null);
+            status = OBJECT_MAPPER.readTree(response.body());
+            String state = status.path("status").asText();
+            if (!"QUEUED".equals(state) && !"PROCESSING".equals(state)) {
+                break;
+            }
+        }
+
+        if (!"COMPLETED".equals(status.path("status").asText())) {
+            // Ожидаемый исход при STUB_AGENT_FAILURE_RATE > 0
+            failed.increment();
+            return;
+        }
+
+        started = System.nanoTime();
+        HttpResponse<InputStream> result = client.send(
+                HttpRequest.newBuilder(URI.create(target.documentsUrl("/result/" + processId)))
+                        .timeout(Duration.ofSeconds(60))
+                        .build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = result.body()) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+        record("result", started);
+        if (result.statusCode() != 200) {
+            errors.increment();
+            return;
+        }
+        record("job", jobStarted);
+        completed.increment();
+    }
+
+    private HttpRequest submitRequest(String userId) {
+        // Каждый черновик уникален, иначе задания обслужит кэш результатов
+        String boundary = "load-" + UUID.randomUUID();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(options.draftKb() * 1024 + 1024);
+        writePart(body, boundary, "template", "template.txt", TEMPLATE.getBytes(StandardCharsets.UTF_8));
+        writePart(body, boundary, "draft", "draft.txt", draft(drafts.incrementAndGet()));
+        body.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        return HttpRequest.newBuilder(URI.create(target.documentsUrl("/process")))
+                .timeout(Duration.ofSeconds(60))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .header("X-User-Id", userId)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+    }
+
+    private byte[] draft(long number) {
+        StringBuilder draft = new StringBuilder("Статья ").append(number).append("\n\nВведение\n");
+        String paragraph = "Текст абзаца черновика для нагрузочного прогона.\n";
+        int target = options.draftKb() * 1024;
+        while (draft.length() * 2 < target) {
+            draft.append(paragraph);
+        }
+        return draft.append("\nЗаключение\nИтоги.\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writePart(ByteArrayOutputStream body, String boundary, String name,
+                                  String fileName, byte[] content) {
+        body.writeBytes(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(content);
+        body.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void record(String operation, long startedNanos) {
+        latencies.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNanos));
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String formatInterval(long elapsedNanos, double throughput, Map<String, Histogram> interval,
+                                  LoadTarget.ResourceSample resources) {
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "[%s] %.1f jobs/s, total %d ok %d failed %d rejected %d errors",
+                formatElapsed(elapsedNanos), throughput, completed.sum(), failed.sum(), rejected.sum(), errors.sum()));
+        interval.forEach((operation, histogram) -> line.append(" | ").append(operation).append(' ')
+                .append(formatPercentiles(histogram)));
+        line.append(String.format(Locale.ROOT, " | heap %s fds %d threads %d procs %d",
+                formatMb(resources.heapBytes()), resources.openFiles(), resources.threads(), resources.processes()));
+        return line.toString();
+    }
+
+    private void printSummary(long elapsedNanos, LoadTarget.ResourceSample first, LoadTarget.ResourceSample last) {
+        long ok = completed.sum();
+        long attempted = ok + failed.sum() + errors.sum();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Summary after %s: %d jobs completed, %.2f jobs/s%n",
+                formatElapsed(elapsedNanos), ok, ok / (elapsedNanos / 1e9));
+        System.out.printf(Locale.ROOT, "  error rate %.2f%% (%d failed jobs, %d client/HTTP errors), %d rejected submissions%n",
+                attempted == 0 ? 0.0 : 100.0 * (failed.sum() + errors.sum()) / attempted,
+                failed.sum(), errors.sum(), rejected.sum());
+        totalLatencies.forEach((operation, histogram) -> System.out.printf(Locale.ROOT,
+                "  %-6s p50/p95/p99 %s ms, max %.1f ms, %d samples%n", operation, formatPercentiles(histogram),
+                histogram.getMaxValue() / 1000.0, histogram.getTotalCount()));
+        System.out.printf(Locale.ROOT, "  heap %s -> %s, fds %d -> %d, threads %d -> %d, procs %d -> %d%n",
+                formatMb(first.heapBytes()), formatMb(last.heapBytes()), first.openFiles(), last.openFiles(),
+                first.threads(), last.threads(), first.processes(), last.processes());
+    }
+
+    private static PrintWriter openCsv(Path file) throws IOException {
+        boolean fresh = !Files.exists(file);
+        PrintWriter csv = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), true);
+        if (fresh) {
+            csv.println("elapsed_s,jobs_per_s,completed,failed,rejected,errors,"
+                    + "job_p50_ms,job_p95_ms,job_p99_ms,submit_p50_ms,submit_p95_ms,submit_p99_ms,"
+                    + "status_p50_ms,status_p95_ms,status_p99_ms,result_p50_ms,result_p95_ms,result_p99_ms,"
+                    + "heap_bytes,open_files,threads,processes");
+        }
+        return csv;
+    }
+
+    private void writeCsv(PrintWriter csv, long elapsedNanos, double throughput, Map<String, Histogram> interval,
+                          LoadTarget.ResourceSample resources) {
+        StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%d,%.2f,%d,%d,%d,%d",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), throughput,
+                completed.sum(), failed.sum(), rejected.sum(), errors.sum()));
+        for (Histogram histogram : interval.values()) {
+            for (double percentile : new double[]{50, 95, 99}) {
+                row.append(String.format(Locale.ROOT, ",%.1f", histogram.getValueAtPercentile(percentile) / 1000.0));
+            }
+        }
+        row.append(',').append(resources.heapBytes()).append(',').append(resources.openFiles())
+                .append(',').append(resources.threads()).append(',').append(resources.processes());
+        csv.println(row);
+    }
+
+    private static String formatPercentiles(Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "%.1f/%.1f/%.1f",
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(95) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0);
+    }
+
+    private static String formatMb(long bytes) {
+        return bytes < 0 ? "n/a" : (bytes >> 20) + "MB";
+    }
+
+    private static String formatElapsed(long nanos) {
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    /**
+     * Параметры прогона, задаются аргументами вида --name=value.
+     */
+    record Options(int concurrency,
+                   int users,
+                   Duration duration,
+                   Duration reportInterval,
+                   Duration pollInterval,
+                   Duration jobTimeout,
+                   int draftKb,
+                   long agentLatencyMs,
+                   long agentJitterMs,
+                   double agentFailureRate,
+                   String url,
+                   Path csv,
+                   Path backendLog,
+                   List<String> backendJvmArgs,
+                   List<String> backendProperties) {
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new LinkedHashMap<>();
+            List<String> backendProperties = new ArrayList<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+                }
+                String name = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if ("backend-property".equals(name)) {
+                    backendProperties.add(value);
+                } else {
+                    values.put(name, value);
+                }
+            }
+
+            int concurrency = Integer.parseInt(values.getOrDefault("concurrency", "8"));
+            String jvmArgs = values.getOrDefault("backend-jvm-args", "").trim();
+            return new Options(
+                    concurrency,
+                    Integer.parseInt(values.getOrDefault("users", String.valueOf(concurrency))),
+                    duration(values.getOrDefault("duration", "5m")),
+                    duration(values.getOrDefault("report-interval", "30s")),
+                    duration(values.getOrDefault("poll-interval", "500ms")),
+                    duration(values.getOrDefault("job-timeout", "5m")),
+                    Integer.parseInt(values.getOrDefault("draft-kb", "32")),
+                    Long.parseLong(values.getOrDefault("agent-latency-ms", "300")),
+                    Long.parseLong(values.getOrDefault("agent-jitter-ms", "200")),
+                    Double.parseDouble(values.getOrDefault("agent-failure-rate", "0.02")),
+                    values.get("url"),
+                    values.containsKey("csv") ? Paths.get(values.get("csv")) : null,
+                    Paths.get(values.getOrDefault("backend-log", "target/load-backend.log")),
+                    jvmArgs.isEmpty() ? List.of() : Arrays.asList(jvmArgs.split("\\s+")),
+                    backendProperties);
+        }
+
+        /**
+         * "500ms", "30s", "10m", "2h" или ISO-8601 ("PT2H").
+         */
+        static Duration duration(String value) {
+            if (value.startsWith("P") || value.startsWith("p")) {
+                return Duration.parse(value);
+            }
+            if (value.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+            }
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            return switch (value.charAt(value.length() - 1)) {
+                case 's' -> Duration.ofSeconds(amount);
+                case 'm' -> Duration.ofMinutes(amount);
+                case 'h' -> Duration.ofHours(amount);
+                default -> throw new IllegalArgumentException("Unknown duration: " + value);
+            };
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.BackendApplication;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backend под нагрузкой: либо отдельный JVM процесс с заглушкой агента, запущенный
+ * самим прогоном (его ресурсы измеряются честно, без клиента), либо уже работающий
+ * экземпляр по адресу. Ресурсы читаются через actuator.
+ */
+final class LoadTarget implements AutoCloseable {
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(90);
+
+    private final String baseUrl;
+    private final Process process;
+    private final Path workDir;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private LoadTarget(String baseUrl, Process process, Path workDir) {
+        this.baseUrl = baseUrl;
+        this.process = process;
+        this.workDir = workDir;
+    }
+
+    /**
+     * Уже работающий backend, например "http://host:8080/api".
+     */
+    static LoadTarget remote(String baseUrl) {
+        return new LoadTarget(baseUrl.replaceAll("/+$", ""), null, null);
+    }
+
+    /**
+     * Запускает backend отдельным процессом на свободном порту.
+     */
+    static LoadTarget launch(LoadHarness.Options options) throws IOException, InterruptedException {
+        Path workDir = Files.createTempDirectory("docstyler-load");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options.backendJvmArgs());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BackendApplication.class.getName());
+        for (Map.Entry<String, Object> property : BenchmarkBackend.properties(workDir).entrySet()) {
+            command.add("--" + property.getKey() + "=" + property.getValue());
+        }
+        command.add("--server.port=" + port);
+        // Цель прогона - ёмкость сервиса, поэтому лимиты пользователей выключены
+        command.add("--users.rate-limit.enabled=false");
+        command.add("--logging.level.com.docstyler=INFO");
+        for (String property : options.backendProperties()) {
+            command.add("--" + property);
+        }
+
+        Path log = options.backendLog().toAbsolutePath();
+        Files.createDirectories(log.getParent());
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile());
+        builder.environment().put("STUB_AGENT_LATENCY_MS", String.valueOf(options.agentLatencyMs()));
+        builder.environment().put("STUB_AGENT_JITTER_MS", String.valueOf(options.agentJitterMs()));
+        builder.environment().put("STUB_AGENT_FAILURE_RATE", String.valueOf(options.agentFailureRate()));
+
+        LoadTarget target = new LoadTarget("http://localhost:" + port + "/api", builder.start(), workDir);
+        try {
+            target.awaitHealthy(log);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            target.close();
+            throw e;
+        }
+        return target;
+    }
+
+    String documentsUrl(String path) {
+        return baseUrl + "/api/documents" + path;
+    }
+
+    /**
+     * Снимок ресурсов backend; недоступное значение - -1.
+     */
+    ResourceSample sample() {
+        long heap = metric("jvm.memory.used", "area:heap");
+        long fds = metric("process.files.open", null);
+        long threads = metric("jvm.threads.live", null);
+        long processes = process != null
+                ? process.descendants().filter(ProcessHandle::isAlive).count()
+                : metric("docstyler.agent.workers", null);
+        return new ResourceSample(heap, fds, threads, processes);
+    }
+
+    boolean isAlive() {
+        return process == null || process.isAlive();
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        if (process != null) {
+            List<ProcessHandle> workers = process.descendants().toList();
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+            // Воркеры агента завершаются, когда закрывается их stdin, но не полагаемся на это
+            workers.forEach(ProcessHandle::destroyForcibly);
+        }
+        if (workDir != null) {
+            FileSystemUtils.deleteRecursively(workDir);
+        }
+    }
+
+    private void awaitHealthy(Path log) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        HttpRequest health = HttpRequest.newBuilder(URI.create(documentsUrl("/health")))
+                .timeout(Duration.ofSeconds(2))
+                .build();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Backend exited with code " + process.exitValue() + ", see " + log);
+            }
+            try {
+                if (client.send(health, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // ещё не слушает порт
+            }
+            Thread.sleep(500);
+        }
+        throw new IOException("Backend did not start in " + STARTUP_TIMEOUT + ", see " + log);
+    }
+
+    private long metric(String name, String tag) {
+        String url = baseUrl + "/actuator/metrics/" + name + (tag != null ? "?tag=" + tag : "");
+        try {
+            HttpResponse<String> response = client.send(
+                    HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(5)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return -1;
+            }
+            JsonNode measurement = objectMapper.readTree(response.body()).path("measurements").path(0);
+            return measurement.has("value") ? (long) measurement.path("value").asDouble() : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * Ресурсы backend: heap в байтах, открытые дескрипторы, живые потоки JVM
+     * и дочерние процессы (воркеры агента).
+     */
+    record ResourceSample(long heapBytes, long openFiles, long threads, long processes) {
+    }
+}
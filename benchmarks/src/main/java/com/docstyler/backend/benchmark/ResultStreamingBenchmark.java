@@ -0,0 +1,100 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.docstyler.backend.service.DocumentProcessingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отдача результата через GET /result/{processId} по HTTP, как её получает клиент.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResultStreamingBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int sizeMb;
+
+    private BenchmarkBackend backend;
+    private HttpClient client;
+    private HttpRequest request;
+    private long expectedBytes;
+
+    @Setup
+    public void start() throws IOException, InterruptedException {
+        backend = BenchmarkBackend.start();
+        DocumentProcessingService service = backend.bean(DocumentProcessingService.class);
+
+        // Заглушка агента копирует черновик в результат - результат нужного размера
+        byte[] draft = draftOfSize(sizeMb * 1024 * 1024);
+        String processId = service.startDocumentProcessing("bench",
+                new BytesMultipartFile("template.txt", "Шаблон\n".getBytes(StandardCharsets.UTF_8)),
+                new BytesMultipartFile("draft.txt", draft),
+                null);
+        ProcessStatus status = backend.awaitFinished(processId, Duration.ofMinutes(2));
+        if (!"COMPLETED".equals(status.getStatus())) {
+            throw new IllegalStateException("Could not prepare result: " + status.getMessage());
+        }
+        expectedBytes = draft.length;
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        request = HttpRequest.newBuilder(URI.create(backend.documentsUrl("/result/" + processId))).build();
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        backend.close();
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            long received = body.transferTo(OutputStream.nullOutputStream());
+            if (response.statusCode() != 200 || received != expectedBytes) {
+                throw new IllegalStateException("Unexpected response " + response.statusCode()
+                        + ", " + received + " of " + expectedBytes + " bytes");
+            }
+            return received;
+        }
+    }
+
+    private static byte[] draftOfSize(int size) {
+        byte[] line = "Текст абзаца черновика для проверки отдачи большого результата.\n"
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] draft = new byte[size];
+        int offset = 0;
+        for (; offset + line.length <= size; offset += line.length) {
+            System.arraycopy(line, 0, draft, offset, line.length);
+        }
+        // Хвост - пустые строки, чтобы не оборвать символ UTF-8 посередине
+        Arrays.fill(draft, offset, size, (byte) '\n');
+        return draft;
+    }
+}
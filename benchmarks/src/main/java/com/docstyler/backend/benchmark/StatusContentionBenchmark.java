@@ -0,0 +1,106 @@
+package com.docstyler.backend.benchmark;
+
+import com.docstyler.backend.model.ProcessStatus;
+import com.docstyler.backend.service.DocumentProcessingService;
+import com.docstyler.backend.service.JobRegistry;
+import com.docstyler.backend.service.JobStatusPublisher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение статусов (как GET /status) при одновременных обновлениях прогресса
+ * из потоков заданий. Группа uncontended - те же чтения без записи, для сравнения.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class StatusContentionBenchmark {
+
+    // 1 - все читают и пишут одно задание, 64 - нагрузка размазана по заданиям
+    @Param({"1", "64"})
+    private int jobs;
+
+    private BenchmarkBackend backend;
+    private DocumentProcessingService service;
+    private JobStatusPublisher publisher;
+    private ProcessStatus[] statuses;
+    private String[] processIds;
+
+    @Setup
+    public void start() throws IOException {
+        backend = BenchmarkBackend.start();
+        service = backend.bean(DocumentProcessingService.class);
+        publisher = backend.bean(JobStatusPublisher.class);
+        JobRegistry registry = backend.bean(JobRegistry.class);
+
+        statuses = new ProcessStatus[jobs];
+        processIds = new String[jobs];
+        for (int i = 0; i < jobs; i++) {
+            ProcessStatus status = new ProcessStatus(UUID.randomUUID().toString(), "bench");
+            status.setStatus("PROCESSING");
+            registry.put(status);
+            statuses[i] = status;
+            processIds[i] = status.getProcessId();
+        }
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        backend.close();
+    }
+
+    /**
+     * Свой курсор у каждого потока, чтобы выбор задания не был общей точкой записи.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int bound) {
+            next = next + 1 == bound ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public ProcessStatus read(Cursor cursor) {
+        return service.getProcessStatus(processIds[cursor.next(jobs)]).snapshot();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void write(Cursor cursor) {
+        ProcessStatus status = statuses[cursor.next(jobs)];
+        status.setProgress(status.getProgress() == 99 ? 1 : status.getProgress() + 1);
+        publisher.publish(status);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(3)
+    public ProcessStatus readOnly(Cursor cursor) {
+        return service.getProcessStatus(processIds[cursor.next(jobs)]).snapshot();
+    }
+}
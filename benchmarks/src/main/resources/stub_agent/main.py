@@ -0,0 +1,63 @@
+"""
+Заглушка Python агента для бенчмарков и нагрузочных прогонов: тот же протокол
+вывода, что у main.py, но вместо разметки черновик просто копируется в результат.
+
+Поведение задаётся переменными окружения (их наследуют воркеры от backend):
+  STUB_AGENT_LATENCY_MS   - время "обработки" задания, по умолчанию 0
+  STUB_AGENT_JITTER_MS    - случайная добавка к нему, от 0 до значения
+  STUB_AGENT_FAILURE_RATE - доля заданий, которые завершаются ошибкой (0..1)
+"""
+import json
+import os
+import random
+import shutil
+import sys
+import time
+
+LATENCY_MS = float(os.environ.get("STUB_AGENT_LATENCY_MS", "0"))
+JITTER_MS = float(os.environ.get("STUB_AGENT_JITTER_MS", "0"))
+FAILURE_RATE = float(os.environ.get("STUB_AGENT_FAILURE_RATE", "0"))
+PROGRESS_STEPS = 5
+
+
+def process_documents(template_path, draft_path, output_dir):
+    delay = (LATENCY_MS + random.uniform(0, JITTER_MS)) / 1000.0
+    for step in range(1, PROGRESS_STEPS + 1):
+        if delay > 0:
+            time.sleep(delay / PROGRESS_STEPS)
+        print(f"PROGRESS:{10 + step * 80 // PROGRESS_STEPS}", flush=True)
+
+    if random.random() < FAILURE_RATE:
+        raise RuntimeError("stub agent failure")
+
+    os.makedirs(output_dir, exist_ok=True)
+    result_path = os.path.join(output_dir, "styled_document.txt")
+    shutil.copyfile(draft_path, result_path)
+    print("PROGRESS:100")
+    print(f"RESULT:{result_path}", flush=True)
+
+
+def worker_mode():
+    print("READY", flush=True)
+    for line in sys.stdin:
+        if not line.strip():
+            continue
+        code = 0
+        try:
+            job = json.loads(line)
+            process_documents(job.get("template"), job["draft"], job["output"])
+        except Exception as e:
+            print(f"ERROR:{e}")
+            code = 1
+        print(f"DONE:{code}", flush=True)
+
+
+if __name__ == "__main__":
+    if "--worker" in sys.argv:
+        worker_mode()
+    else:
+        try:
+            process_documents(sys.argv[1], sys.argv[2], sys.argv[3])
+        except Exception as e:
+            print(f"ERROR:{e}", flush=True)
+            sys.exit(1)
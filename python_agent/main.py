@@ -1,6 +1,7 @@
 #!/usr/bin/env python3
 import sys
 import os
+import json
 import time
 from pathlib import Path
 
@@ -12,9 +13,21 @@ def test_mode():
     print("MESSAGE:Готов к интеграции с ML моделью")
     return 0
 
-def process_documents(template_path, draft_path, output_dir):
+def extract_styles(template_content):
+    """Извлекает стили из шаблона (упрощённо)"""
+    styles = []
+    for line in template_content.split('\n'):
+        line = line.strip()
+        if line and '---' in line:
+            # Пример: "Заголовок 1 --- Шрифт: Times New Roman, 14pt"
+            part = line.split('---')[0].strip()
+            styles.append(part)
+    return styles
+
+def process_documents(template_path, draft_path, output_dir, styles=None):
     """
-    Обрабатывает документы: применяет стили из шаблона к черновику
+    Обрабатывает документы: применяет стили из шаблона к черновику.
+    Если стили уже извлечены бэкендом (кэш шаблонов), шаблон повторно не читается.
     TODO: Заменить на вызов ML модели
     """
     print("MESSAGE:Запуск DocStyler Python агента...")
@@ -24,8 +37,9 @@ def process_documents(template_path, draft_path, output_dir):
     print("MESSAGE:Чтение входных файлов...")
 
     try:
-        with open(template_path, 'r', encoding='utf-8') as f:
-            template_content = f.read()
+        if styles is None:
+            with open(template_path, 'r', encoding='utf-8') as f:
+                template_content = f.read()
 
         with open(draft_path, 'r', encoding='utf-8') as f:
             draft_content = f.read()
@@ -37,31 +51,51 @@ def process_documents(template_path, draft_path, output_dir):
 
     # 2. Анализ шаблона
     print("PROGRESS:40")
-    print("MESSAGE:Анализ шаблона стилей...")
-
-    # Извлекаем стили из шаблона (упрощённо)
-    styles = []
-    for line in template_content.split('\n'):
-        line = line.strip()
-        if line and '---' in line:
-            # Пример: "Заголовок 1 --- Шрифт: Times New Roman, 14pt"
-            part = line.split('---')[0].strip()
-            styles.append(part)
-
-    time.sleep(0.5)
+    if styles is None:
+        print("MESSAGE:Анализ шаблона стилей...")
+        styles = extract_styles(template_content)
+        time.sleep(0.5)
+    else:
+        print("MESSAGE:Стили шаблона получены из кэша")
 
     # 3. Обработка текста (ЗДЕСЬ БУДЕТ ML МОДЕЛЬ)
     print("PROGRESS:60")
     print("MESSAGE:Обработка документа...")
 
+    processed_lines = style_lines(draft_content.strip().split('\n'), styles)
+
+    time.sleep(1)
+
+    # 4. Сохранение результата
+    print("PROGRESS:80")
+    print("MESSAGE:Сохранение результата...")
+
+    try:
+        result_path = write_result(output_dir, template_path, draft_path, styles,
+                                   "\n".join(processed_lines), draft_content)
+
+        print("PROGRESS:100")
+        print("MESSAGE:Обработка успешно завершена!")
+        print(f"RESULT:{result_path}")
+        return 0
+
+    except Exception as e:
+        print(f"ERROR: Ошибка сохранения: {e}")
+        return 1
+
+def style_lines(draft_lines, styles, first_section=True):
+    """
+    Размечает строки черновика стилями. Строки обрабатываются независимо,
+    поэтому черновик можно разбить на части и разметить их по отдельности;
+    правило заголовка документа действует только для первой строки первой части.
+    """
     # Временная логика: добавляем маркеры стилей к тексту
     processed_lines = []
-    draft_lines = draft_content.strip().split('\n')
 
     for i, line in enumerate(draft_lines):
         if line.strip():
             # Простая эвристика для определения типа контента
-            if i == 0 and len(line) < 50:
+            if first_section and i == 0 and len(line) < 50:
                 # Первая короткая строка - вероятно заголовок
                 processed_lines.append(f"# {line}")
                 processed_lines.append(f"[Стиль: Заголовок 1 - {styles[0] if styles else 'Times New Roman, 14pt'}]")
@@ -75,79 +109,156 @@ def process_documents(template_path, draft_path, output_dir):
                 processed_lines.append(f"[Стиль: Основной текст - {styles[2] if len(styles) > 2 else 'Calibri, 11pt'}]")
         processed_lines.append("")  # Пустая строка
 
-    time.sleep(1)
-
-    # 4. Сохранение результата
-    print("PROGRESS:80")
-    print("MESSAGE:Сохранение результата...")
+    return processed_lines
 
+def write_result(output_dir, template_path, draft_path, styles, body, draft_content):
+    """Записывает итоговый документ и сырой текст для ML модели, возвращает путь к результату"""
     # Создаём директорию если нужно
     os.makedirs(output_dir, exist_ok=True)
     result_path = os.path.join(output_dir, "styled_document.txt")
 
+    with open(result_path, 'w', encoding='utf-8') as f:
+        # Заголовок документа
+        f.write("=" * 70 + "\n")
+        f.write("СТИЛИЗОВАННЫЙ ДОКУМЕНТ (DocStyler v1.0)\n")
+        f.write("=" * 70 + "\n\n")
+
+        # Метаданные
+        f.write("[ИНФОРМАЦИЯ ОБ ОБРАБОТКЕ]\n")
+        f.write(f"• Шаблон стилей: {os.path.basename(template_path)}\n")
+        f.write(f"• Исходный документ: {os.path.basename(draft_path)}\n")
+        f.write(f"• Время обработки: {time.strftime('%Y-%m-%d %H:%M:%S')}\n")
+        f.write(f"• Агент: Python ML Bridge (готов к ML модели)\n\n")
+
+        f.write("[ОБНАРУЖЕННЫЕ СТИЛИ В ШАБЛОНЕ]\n")
+        for i, style in enumerate(styles[:3], 1):
+            f.write(f"{i}. {style}\n")
+        if not styles:
+            f.write("Используются стили по умолчанию\n")
+        f.write("\n")
+
+        f.write("=" * 70 + "\n")
+        f.write("ОБРАБОТАННОЕ СОДЕРЖАНИЕ:\n")
+        f.write("=" * 70 + "\n\n")
+
+        # Основной контент
+        f.write(body)
+        f.write("\n\n")
+
+        f.write("=" * 70 + "\n")
+        f.write("ПРИМЕЧАНИЕ:\n")
+        f.write("=" * 70 + "\n")
+        f.write("Это временная версия. Скоро будет подключена ML модель для:\n")
+        f.write("• Автоматического определения структуры документа\n")
+        f.write("• Интеллектуального применения стилей\n")
+        f.write("• Адаптивного форматирования\n")
+        f.write("• Сохранения семантической разметки\n")
+
+    # Дополнительно: сохраняем сырой текст для ML модели
+    raw_path = os.path.join(output_dir, "raw_for_ml.txt")
+    with open(raw_path, 'w', encoding='utf-8') as f:
+        f.write(draft_content)
+
+    return result_path
+
+def process_chunks(chunks_path, output_dir, styles):
+    """
+    Размечает отдельные абзацы черновика: бэкенд присылает только те, которых нет
+    в его кэше (JSON список [{"text": ..., "first": ...}]). Результат - JSON список
+    размеченных абзацев в том же порядке.
+    """
+    print("PROGRESS:20")
     try:
-        with open(result_path, 'w', encoding='utf-8') as f:
-            # Заголовок документа
-            f.write("=" * 70 + "\n")
-            f.write("СТИЛИЗОВАННЫЙ ДОКУМЕНТ (DocStyler v1.0)\n")
-            f.write("=" * 70 + "\n\n")
-
-            # Метаданные
-            f.write("[ИНФОРМАЦИЯ ОБ ОБРАБОТКЕ]\n")
-            f.write(f"• Шаблон стилей: {os.path.basename(template_path)}\n")
-            f.write(f"• Исходный документ: {os.path.basename(draft_path)}\n")
-            f.write(f"• Время обработки: {time.strftime('%Y-%m-%d %H:%M:%S')}\n")
-            f.write(f"• Агент: Python ML Bridge (готов к ML модели)\n\n")
-
-            f.write("[ОБНАРУЖЕННЫЕ СТИЛИ В ШАБЛОНЕ]\n")
-            for i, style in enumerate(styles[:3], 1):
-                f.write(f"{i}. {style}\n")
-            if not styles:
-                f.write("Используются стили по умолчанию\n")
-            f.write("\n")
-
-            f.write("=" * 70 + "\n")
-            f.write("ОБРАБОТАННОЕ СОДЕРЖАНИЕ:\n")
-            f.write("=" * 70 + "\n\n")
-
-            # Основной контент
-            f.write("\n".join(processed_lines))
-            f.write("\n\n")
-
-            f.write("=" * 70 + "\n")
-            f.write("ПРИМЕЧАНИЕ:\n")
-            f.write("=" * 70 + "\n")
-            f.write("Это временная версия. Скоро будет подключена ML модель для:\n")
-            f.write("• Автоматического определения структуры документа\n")
-            f.write("• Интеллектуального применения стилей\n")
-            f.write("• Адаптивного форматирования\n")
-            f.write("• Сохранения семантической разметки\n")
+        with open(chunks_path, 'r', encoding='utf-8') as f:
+            chunks = json.load(f)
+    except Exception as e:
+        print(f"ERROR: Ошибка чтения абзацев: {e}")
+        return 1
 
-        print("PROGRESS:100")
-        print("MESSAGE:Обработка успешно завершена!")
-        print(f"RESULT:{result_path}")
+    print("PROGRESS:60")
+    outputs = ["\n".join(style_lines(chunk["text"].split('\n'), styles, chunk.get("first", False)))
+               for chunk in chunks]
+    time.sleep(1)
 
-        # Дополнительно: сохраняем сырой текст для ML модели
-        raw_path = os.path.join(output_dir, "raw_for_ml.txt")
-        with open(raw_path, 'w', encoding='utf-8') as f:
-            f.write(draft_content)
+    os.makedirs(output_dir, exist_ok=True)
+    output_path = os.path.join(output_dir, os.path.basename(chunks_path) + ".styled.json")
+    try:
+        with open(output_path, 'w', encoding='utf-8') as f:
+            json.dump(outputs, f, ensure_ascii=False)
+    except Exception as e:
+        print(f"ERROR: Ошибка сохранения абзацев: {e}")
+        return 1
 
-        return 0
+    print("PROGRESS:100")
+    print(f"RESULT:{output_path}")
+    return 0
 
+def merge_parts(template_path, draft_path, output_dir, styles, parts):
+    """Собирает размеченные части черновика по порядку в итоговый документ"""
+    print("MESSAGE:Сборка документа из частей...")
+    try:
+        bodies = []
+        for part in parts:
+            with open(part, 'r', encoding='utf-8') as f:
+                bodies.append(f.read())
+        with open(draft_path, 'r', encoding='utf-8') as f:
+            draft_content = f.read()
+
+        result_path = write_result(output_dir, template_path, draft_path, styles,
+                                   "\n".join(bodies), draft_content)
     except Exception as e:
-        print(f"ERROR: Ошибка сохранения: {e}")
+        print(f"ERROR: Ошибка сборки документа: {e}")
         return 1
 
+    print("PROGRESS:100")
+    print("MESSAGE:Обработка успешно завершена!")
+    print(f"RESULT:{result_path}")
+    return 0
+
+def worker_mode():
+    """
+    Режим долгоживущего воркера: задания приходят по одному JSON в строке через stdin,
+    вывод каждого задания завершается строкой DONE:<код_завершения>.
+    Поле mode: process (по умолчанию), chunks - отдельные абзацы черновика, merge - сборка частей
+
+    """
+    sys.stdin.reconfigure(encoding='utf-8')
+    sys.stdout.reconfigure(encoding='utf-8', line_buffering=True)
+
+    print("READY")
+    for raw in sys.stdin:
+        raw = raw.strip()
+        if not raw:
+            continue
+        try:
+            job = json.loads(raw)
+            mode = job.get("mode", "process")
+            if mode == "chunks":
+                code = process_chunks(job["draft"], job["output"], job["styles"])
+            elif mode == "merge":
+                code = merge_parts(job["template"], job["draft"], job["output"], job["styles"], job["parts"])
+            else:
+                code = process_documents(job["template"], job["draft"], job["output"], job.get("styles"))
+        except Exception as e:
+            print(f"ERROR: Ошибка выполнения задания: {e}")
+            code = 1
+        print(f"DONE:{code}")
+    return 0
+
 def main():
     """Основная функция"""
     if len(sys.argv) > 1 and sys.argv[1] == "--test":
         return test_mode()
 
+    if len(sys.argv) > 1 and sys.argv[1] == "--worker":
+        return worker_mode()
+
     if len(sys.argv) != 4:
         print("ERROR: Неправильные аргументы")
         print("Использование: python main.py <шаблон> <черновик> <выходная_директория>")
         print("Пример: python main.py template.txt draft.txt ./output")
         print("Тест: python main.py --test")
+        print("Воркер: python main.py --worker")
         return 2
 
     template_path = sys.argv[1]
@@ -165,7 +276,10 @@ def main():
     print(f"MESSAGE:Черновик: {draft_path}")
     print(f"MESSAGE:Выходная директория: {output_dir}")
 
-    return process_documents(template_path, draft_path, output_dir)
+    styles_json = os.environ.get("DOCSTYLER_STYLES")
+    styles = json.loads(styles_json) if styles_json else None
+
+    return process_documents(template_path, draft_path, output_dir, styles)
 
 if __name__ == "__main__":
     try: